@@ -0,0 +1,18 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+/**
+ * Call sites linked by a user bootstrap method, which the rewrite turns into cached invokers rather than expanding
+ * them, implemented by the class {@link BootstrapShapesGenerator} spins.
+ *
+ * @author Foundry
+ */
+public interface BootstrapShapes {
+
+    int staticInts(int a, int b);
+
+    double longsAndDoubles(long a, double b, long c, double d);
+
+    int virtualTarget(Bootstraps.Counter counter, int delta);
+
+    Object references(Object a, Object b);
+}
@@ -0,0 +1,68 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Spins an implementation of {@link BootstrapShapes} whose methods are single invokedynamic call sites linked by
+ * {@link Bootstraps#link}, since javac cannot be made to emit these.
+ *
+ * @author Foundry
+ */
+final class BootstrapShapesGenerator {
+
+    static final String CLASS_NAME = "io/github/foundry27/snakepit/benchmarks/GeneratedBootstrapShapes";
+
+    private static final String BOOTSTRAPS = Type.getInternalName(Bootstraps.class);
+
+    private static final Handle LINK = new Handle(H_INVOKESTATIC, BOOTSTRAPS, "link",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;)Ljava/lang/invoke/CallSite;", false);
+
+    private BootstrapShapesGenerator() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static void createCallSiteMethod(final ClassWriter cw, final String name, final String descriptor, final Handle target) {
+        final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, name, descriptor, null, null);
+        mv.visitCode();
+        final Type[] argTypes = Type.getArgumentTypes(descriptor);
+        for (int i = 0, varIdx = 1; i < argTypes.length; varIdx += argTypes[i].getSize(), ++i) {
+            mv.visitVarInsn(argTypes[i].getOpcode(ILOAD), varIdx);
+        }
+        mv.visitInvokeDynamicInsn(target.getName(), descriptor, LINK, target);
+        mv.visitInsn(Type.getReturnType(descriptor).getOpcode(IRETURN));
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    static byte[] generate() {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V11, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, CLASS_NAME, null, "java/lang/Object",
+                new String[]{Type.getInternalName(BootstrapShapes.class)});
+
+        final MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        final String counter = Type.getInternalName(Bootstraps.Counter.class);
+        createCallSiteMethod(cw, "staticInts", "(II)I",
+                new Handle(H_INVOKESTATIC, BOOTSTRAPS, "add", "(II)I", false));
+        createCallSiteMethod(cw, "longsAndDoubles", "(JDJD)D",
+                new Handle(H_INVOKESTATIC, BOOTSTRAPS, "mix", "(JDJD)D", false));
+        createCallSiteMethod(cw, "virtualTarget", "(L" + counter + ";I)I",
+                new Handle(H_INVOKEVIRTUAL, counter, "add", "(I)I", false));
+        createCallSiteMethod(cw, "references", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;",
+                new Handle(H_INVOKESTATIC, BOOTSTRAPS, "pick", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", false));
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The bootstrap method of the {@link BootstrapShapes} call sites and the methods they are linked to.
+ *
+ * @author Foundry
+ */
+public final class Bootstraps {
+
+    private Bootstraps() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static CallSite link(final MethodHandles.Lookup lookup, final String name, final MethodType type, final MethodHandle target) {
+        return new ConstantCallSite(target.asType(type));
+    }
+
+    public static int add(final int a, final int b) {
+        return a + b;
+    }
+
+    public static double mix(final long a, final double b, final long c, final double d) {
+        return a * b + c * d;
+    }
+
+    public static Object pick(final Object a, final Object b) {
+        return a != null ? a : b;
+    }
+
+    /**
+     * The receiver of call sites linked to a virtual method handle.
+     */
+    public static final class Counter {
+
+        private int value;
+
+        public int add(final int delta) {
+            return value += delta;
+        }
+    }
+}
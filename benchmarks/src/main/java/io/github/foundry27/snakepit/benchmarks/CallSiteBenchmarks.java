@@ -0,0 +1,102 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of each call site shape with its original invokedynamic instruction against the same shape after
+ * the rewrite. Throughput and sample time are both reported, and {@link BenchmarkMain} adds the GC profiler for the
+ * allocation rate.
+ *
+ * @author Foundry
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CallSiteBenchmarks {
+
+    @Param({"INDY", "REWRITTEN"})
+    public CallSiteVariant variant;
+
+    private LambdaShapes lambdas;
+
+    private BootstrapShapes bootstraps;
+
+    private Bootstraps.Counter counter;
+
+    private int intValue;
+
+    private long longValue;
+
+    private double doubleValue;
+
+    private String stringValue;
+
+    private Object objectValue;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        lambdas = variant.newLambdaShapes();
+        bootstraps = variant.newBootstrapShapes();
+        counter = new Bootstraps.Counter();
+        intValue = 42;
+        longValue = 1L << 40;
+        doubleValue = Math.PI;
+        stringValue = "  snakepit  ";
+        objectValue = Thread.State.RUNNABLE;
+    }
+
+    @Benchmark
+    public String nonCapturingLambda() {
+        return lambdas.nonCapturingLambda().get();
+    }
+
+    @Benchmark
+    public int capturingLambda() {
+        return lambdas.capturingLambda(intValue).getAsInt();
+    }
+
+    @Benchmark
+    public Integer unboundMethodReference() {
+        return lambdas.unboundMethodReference().apply(stringValue);
+    }
+
+    @Benchmark
+    public String boundMethodReference() {
+        return lambdas.boundMethodReference(stringValue).get();
+    }
+
+    @Benchmark
+    public String concat() {
+        return lambdas.concat(stringValue, intValue, 'c', objectValue);
+    }
+
+    @Benchmark
+    public String concatWidePrimitives() {
+        return lambdas.concatWidePrimitives(longValue, doubleValue, true);
+    }
+
+    @Benchmark
+    public int staticIntsCallSite() {
+        return bootstraps.staticInts(intValue, intValue);
+    }
+
+    @Benchmark
+    public double longsAndDoublesCallSite() {
+        return bootstraps.longsAndDoubles(longValue, doubleValue, longValue, doubleValue);
+    }
+
+    @Benchmark
+    public int virtualTargetCallSite() {
+        return bootstraps.virtualTarget(counter, intValue);
+    }
+
+    @Benchmark
+    public Object referencesCallSite() {
+        return bootstraps.references(objectValue, stringValue);
+    }
+}
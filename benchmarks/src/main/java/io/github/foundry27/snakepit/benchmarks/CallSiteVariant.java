@@ -0,0 +1,80 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import io.github.foundry27.snakepit.IndyInsnSubstitutingClassVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Whether a workload class runs with its original invokedynamic instructions or as rewritten by
+ * {@link IndyInsnSubstitutingClassVisitor}. Either way it is defined by a fresh {@link VariantClassLoader}, so the two
+ * variants are loaded and linked the same way.
+ *
+ * @author Foundry
+ */
+public enum CallSiteVariant {
+
+    INDY {
+        @Override
+        Map<String, byte[]> getClasses(final String internalName, final byte[] classBytes) {
+            final Map<String, byte[]> classes = new HashMap<>();
+            classes.put(internalName, classBytes);
+            return classes;
+        }
+    },
+
+    REWRITTEN {
+        @Override
+        Map<String, byte[]> getClasses(final String internalName, final byte[] classBytes) {
+            final ClassReader cr = new ClassReader(classBytes);
+            final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            final IndyInsnSubstitutingClassVisitor cv = new IndyInsnSubstitutingClassVisitor(cw, cr.getClassName());
+            cr.accept(cv, 0);
+            if (!cv.hasRewrittenCallSites()) {
+                throw new IllegalStateException("'" + internalName + "' has no call sites to rewrite");
+            }
+
+            final Map<String, byte[]> classes = new HashMap<>(cv.getGeneratedClasses());
+            classes.put(internalName, cw.toByteArray());
+            return classes;
+        }
+    };
+
+    abstract Map<String, byte[]> getClasses(String internalName, byte[] classBytes);
+
+    private static byte[] readClassBytes(final Class<?> type) {
+        try (final InputStream is = type.getResourceAsStream(type.getSimpleName() + ".class")) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int nRead;
+            while ((nRead = is.read(buffer)) != -1) {
+                out.write(buffer, 0, nRead);
+            }
+            return out.toByteArray();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private <T> T instantiate(final Class<T> interfaceType, final String internalName, final byte[] classBytes) {
+        final VariantClassLoader loader = new VariantClassLoader(getClass().getClassLoader(), getClasses(internalName, classBytes));
+        try {
+            return interfaceType.cast(loader.loadClass(internalName.replace('/', '.')).getDeclaredConstructor().newInstance());
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    LambdaShapes newLambdaShapes() {
+        return instantiate(LambdaShapes.class, JavacLambdaShapes.class.getName().replace('.', '/'), readClassBytes(JavacLambdaShapes.class));
+    }
+
+    BootstrapShapes newBootstrapShapes() {
+        return instantiate(BootstrapShapes.class, BootstrapShapesGenerator.CLASS_NAME, BootstrapShapesGenerator.generate());
+    }
+}
@@ -0,0 +1,291 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.RecordComponentVisitor;
+import org.objectweb.asm.Type;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates archives of {@link CorpusShape} as reproducible workloads for the transformer itself: classes with
+ * LambdaMetafactory, StringConcatFactory and generic call sites and records, resources, and archives nested under
+ * {@code BOOT-INF/lib}. The classes are only meant to be transformed; their generic call sites link to
+ * {@link Bootstraps#link}.
+ *
+ * @author Foundry
+ */
+public final class CorpusGenerator {
+
+    /*
+     * every entry gets the same timestamp, so that the archive only depends on the shape
+     */
+    private static final LocalDateTime ENTRY_TIME = LocalDateTime.of(2020, 1, 1, 0, 0);
+
+    private static final String NESTED_ARCHIVE_DIRECTORY = "BOOT-INF/lib/";
+
+    private static final int CLASSES_PER_PACKAGE = 100;
+
+    private static final Handle METAFACTORY = new Handle(H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false);
+
+    private static final Handle MAKE_CONCAT_WITH_CONSTANTS = new Handle(H_INVOKESTATIC, "java/lang/invoke/StringConcatFactory", "makeConcatWithConstants",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+
+    private static final Handle OBJECT_METHODS = new Handle(H_INVOKESTATIC, "java/lang/runtime/ObjectMethods", "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/TypeDescriptor;Ljava/lang/Class;Ljava/lang/String;[Ljava/lang/invoke/MethodHandle;)Ljava/lang/Object;", false);
+
+    private static final Handle LINK = new Handle(H_INVOKESTATIC, Type.getInternalName(Bootstraps.class), "link",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;)Ljava/lang/invoke/CallSite;", false);
+
+    private static final Handle ADD = new Handle(H_INVOKESTATIC, Type.getInternalName(Bootstraps.class), "add", "(II)I", false);
+
+    private static final String[] WORDS = {
+            "invoke", "dynamic", "bootstrap", "lambda", "handle", "site", "class", "frame", "stack", "constant", "pool", "method"
+    };
+
+    private final CorpusShape shape;
+
+    private final Random random;
+
+    private int remainingClasses;
+
+    private int remainingArchives;
+
+    private CorpusGenerator(final CorpusShape shape) {
+        this.shape = shape;
+        this.random = new Random(shape.seed);
+        this.remainingClasses = shape.classes;
+        this.remainingArchives = shape.getArchiveCount();
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final List<String> remaining = new ArrayList<>(Arrays.asList(args));
+        final CorpusShape shape = CorpusShape.parse(remaining);
+        if (remaining.size() != 1 || remaining.get(0).startsWith("--")) {
+            System.err.println("usage: CorpusGenerator [corpus options] <output jar>\n" + CorpusShape.USAGE);
+            System.exit(2);
+        }
+        generate(shape, Paths.get(remaining.get(0)));
+    }
+
+    /**
+     * Writes the archive of {@code shape} to {@code file}.
+     */
+    static void generate(final CorpusShape shape, final Path file) throws IOException {
+        try (final OutputStream os = Files.newOutputStream(file)) {
+            new CorpusGenerator(shape).writeArchive(os, "a0", 0);
+        }
+    }
+
+    private static ZipEntry newEntry(final String name) {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTimeLocal(ENTRY_TIME);
+        return entry;
+    }
+
+    /*
+     * archives are generated depth first, each taking an equal share of the classes which are left
+     */
+    private void writeArchive(final OutputStream os, final String archiveName, final int depth) throws IOException {
+        final int classes = remainingClasses / remainingArchives--;
+        remainingClasses -= classes;
+        try (final ZipOutputStream zos = new ZipOutputStream(os)) {
+            for (int i = 0; i < classes; ++i) {
+                final String className = "corpus/" + archiveName + "/p" + (i / CLASSES_PER_PACKAGE) + "/C" + i;
+                zos.putNextEntry(newEntry(className + ".class"));
+                zos.write(generateClass(className));
+                zos.closeEntry();
+            }
+            for (int i = 0; i < shape.resources; ++i) {
+                zos.putNextEntry(newEntry("resources/" + archiveName + "/r" + i + ".txt"));
+                zos.write(generateResource());
+                zos.closeEntry();
+            }
+            if (depth < shape.nestedDepth) {
+                for (int i = 0; i < shape.nestedJars; ++i) {
+                    final String nestedName = archiveName + "_" + i;
+                    final ByteArrayOutputStream nested = new ByteArrayOutputStream();
+                    writeArchive(nested, nestedName, depth + 1);
+                    final byte[] bytes = nested.toByteArray();
+
+                    /*
+                     * nested archives are stored, as launchers which read them in place expect them to be
+                     */
+                    final ZipEntry entry = newEntry(NESTED_ARCHIVE_DIRECTORY + nestedName + ".jar");
+                    final CRC32 crc = new CRC32();
+                    crc.update(bytes, 0, bytes.length);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(bytes.length);
+                    entry.setCompressedSize(bytes.length);
+                    entry.setCrc(crc.getValue());
+                    zos.putNextEntry(entry);
+                    zos.write(bytes);
+                    zos.closeEntry();
+                }
+            }
+        }
+    }
+
+    /*
+     * words separated by spaces, which compress about as well as typical text resources do
+     */
+    private byte[] generateResource() {
+        final StringBuilder sb = new StringBuilder(shape.resourceBytes + 16);
+        while (sb.length() < shape.resourceBytes) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+        sb.setLength(shape.resourceBytes);
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] generateClass(final String className) {
+        final int siteWeight = shape.lambdaWeight + shape.concatWeight + shape.genericWeight;
+        final boolean isRecord = random.nextInt(siteWeight + shape.recordWeight) >= siteWeight;
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(isRecord ? V17 : V11, ACC_PUBLIC + ACC_FINAL + ACC_SUPER + (isRecord ? ACC_RECORD : 0), className, null,
+                isRecord ? "java/lang/Record" : "java/lang/Object", null);
+
+        cw.visitField(ACC_PRIVATE + ACC_FINAL, "id", "I", null, null).visitEnd();
+        cw.visitField(ACC_PRIVATE + ACC_FINAL, "name", "Ljava/lang/String;", null, null).visitEnd();
+        cw.visitField(ACC_PRIVATE + ACC_FINAL, "weight", "D", null, null).visitEnd();
+
+        final MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "(ILjava/lang/String;D)V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, isRecord ? "java/lang/Record" : "java/lang/Object", "<init>", "()V", false);
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(ILOAD, 1);
+        init.visitFieldInsn(PUTFIELD, className, "id", "I");
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(ALOAD, 2);
+        init.visitFieldInsn(PUTFIELD, className, "name", "Ljava/lang/String;");
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(DLOAD, 3);
+        init.visitFieldInsn(PUTFIELD, className, "weight", "D");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        if (isRecord) {
+            createRecordMembers(cw, className);
+        }
+        for (int i = 0; i < (siteWeight == 0 ? 0 : shape.sitesPerClass); ++i) {
+            final int kind = random.nextInt(siteWeight);
+            if (kind < shape.lambdaWeight) {
+                createLambdaSite(cw, className, i);
+            } else if (kind < shape.lambdaWeight + shape.concatWeight) {
+                createConcatSite(cw, i);
+            } else {
+                createGenericSite(cw, i);
+            }
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /*
+     * as javac compiles a record: a component and accessor per field, and equals, hashCode and toString bootstrapped by
+     * ObjectMethods with getters reading the fields
+     */
+    private static void createRecordMembers(final ClassWriter cw, final String className) {
+        final String[][] components = {{"id", "I"}, {"name", "Ljava/lang/String;"}, {"weight", "D"}};
+        final Object[] bootstrapArguments = new Object[2 + components.length];
+        bootstrapArguments[0] = Type.getObjectType(className);
+        bootstrapArguments[1] = "id;name;weight";
+        for (int i = 0; i < components.length; ++i) {
+            final String name = components[i][0];
+            final String desc = components[i][1];
+            final RecordComponentVisitor rcv = cw.visitRecordComponent(name, desc, null);
+            rcv.visitEnd();
+            bootstrapArguments[2 + i] = new Handle(H_GETFIELD, className, name, desc, false);
+
+            final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, name, "()" + desc, null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, name, desc);
+            mv.visitInsn(Type.getType(desc).getOpcode(IRETURN));
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        final String host = "L" + className + ";";
+        createObjectMethod(cw, "toString", "()Ljava/lang/String;", "(" + host + ")Ljava/lang/String;", ARETURN, bootstrapArguments);
+        createObjectMethod(cw, "hashCode", "()I", "(" + host + ")I", IRETURN, bootstrapArguments);
+        createObjectMethod(cw, "equals", "(Ljava/lang/Object;)Z", "(" + host + "Ljava/lang/Object;)Z", IRETURN, bootstrapArguments);
+    }
+
+    private static void createObjectMethod(final ClassWriter cw, final String name, final String descriptor, final String callsiteDescriptor,
+                                           final int returnOpcode, final Object[] bootstrapArguments) {
+        final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC + ACC_FINAL, name, descriptor, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        if (Type.getArgumentTypes(descriptor).length > 0) {
+            mv.visitVarInsn(ALOAD, 1);
+        }
+        mv.visitInvokeDynamicInsn(name, callsiteDescriptor, OBJECT_METHODS, bootstrapArguments);
+        mv.visitInsn(returnOpcode);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void createLambdaSite(final ClassWriter cw, final String className, final int siteIdx) {
+        final String implName = "lambda$site" + siteIdx + "$0";
+        final MethodVisitor impl = cw.visitMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, implName, "(I)I", null, null);
+        impl.visitCode();
+        impl.visitVarInsn(ILOAD, 0);
+        impl.visitLdcInsn(siteIdx);
+        impl.visitInsn(IADD);
+        impl.visitInsn(IRETURN);
+        impl.visitMaxs(0, 0);
+        impl.visitEnd();
+
+        final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "site" + siteIdx, "()Ljava/util/function/IntUnaryOperator;", null, null);
+        mv.visitCode();
+        mv.visitInvokeDynamicInsn("applyAsInt", "()Ljava/util/function/IntUnaryOperator;", METAFACTORY,
+                Type.getMethodType("(I)I"), new Handle(H_INVOKESTATIC, className, implName, "(I)I", false), Type.getMethodType("(I)I"));
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void createConcatSite(final ClassWriter cw, final int siteIdx) {
+        final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "site" + siteIdx, "(ILjava/lang/String;)Ljava/lang/String;", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitInvokeDynamicInsn("makeConcatWithConstants", "(ILjava/lang/String;)Ljava/lang/String;", MAKE_CONCAT_WITH_CONSTANTS,
+                "site" + siteIdx + "=\u0001 of \u0001");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void createGenericSite(final ClassWriter cw, final int siteIdx) {
+        final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "site" + siteIdx, "(II)I", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitInvokeDynamicInsn("add", "(II)I", LINK, ADD);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+}
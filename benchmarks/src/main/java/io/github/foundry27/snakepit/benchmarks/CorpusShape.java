@@ -0,0 +1,200 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import java.util.List;
+
+/**
+ * What {@link CorpusGenerator} generates. The same shape and seed always generate the same archive, byte for byte.
+ *
+ * @author Foundry
+ */
+final class CorpusShape {
+
+    /**
+     * The number of classes over all archives, split evenly between the outer archive and the archives nested in it.
+     */
+    final int classes;
+
+    /**
+     * The number of lambda, concatenation and generic call sites in each class, which records have besides those of
+     * their object methods.
+     */
+    final int sitesPerClass;
+
+    /*
+     * relative weights of the bootstrap kinds of call sites. The record weight is that of classes generated as records,
+     * whose equals, hashCode and toString are three ObjectMethods call sites instead
+     */
+    final int lambdaWeight;
+
+    final int concatWeight;
+
+    final int genericWeight;
+
+    final int recordWeight;
+
+    /**
+     * The number of resource entries in each archive, and the size of each of them.
+     */
+    final int resources;
+
+    final int resourceBytes;
+
+    /**
+     * How many archives each archive nests under {@code BOOT-INF/lib}, down to {@link #nestedDepth} levels.
+     */
+    final int nestedJars;
+
+    final int nestedDepth;
+
+    final long seed;
+
+    private CorpusShape(final int classes, final int sitesPerClass, final int lambdaWeight, final int concatWeight,
+                        final int genericWeight, final int recordWeight, final int resources, final int resourceBytes,
+                        final int nestedJars, final int nestedDepth, final long seed) {
+        this.classes = classes;
+        this.sitesPerClass = sitesPerClass;
+        this.lambdaWeight = lambdaWeight;
+        this.concatWeight = concatWeight;
+        this.genericWeight = genericWeight;
+        this.recordWeight = recordWeight;
+        this.resources = resources;
+        this.resourceBytes = resourceBytes;
+        this.nestedJars = nestedJars;
+        this.nestedDepth = nestedDepth;
+        this.seed = seed;
+    }
+
+    static final String USAGE = "corpus options:\n"
+            + "  --classes N            classes over all archives (default 2000)\n"
+            + "  --sites N              invokedynamic call sites per class (default 4)\n"
+            + "  --mix K=W,...          weights of the bootstrap kinds lambda, concat, generic and record\n"
+            + "                         (default lambda=4,concat=3,generic=2,record=1)\n"
+            + "  --resources N          resource entries per archive (default 20)\n"
+            + "  --resource-bytes N     bytes per resource entry (default 16384)\n"
+            + "  --nested-jars N        archives nested in each archive (default 0)\n"
+            + "  --nested-depth N       levels of nested archives (default 1)\n"
+            + "  --seed N               seed of the generated contents (default 27)";
+
+    int getArchiveCount() {
+        int count = 1;
+        int level = 1;
+        for (int depth = 0; depth < (nestedJars > 0 ? nestedDepth : 0); ++depth) {
+            level *= nestedJars;
+            count += level;
+        }
+        return count;
+    }
+
+    private static String getOptionValue(final List<String> args, final int idx) {
+        if (idx < args.size()) {
+            return args.get(idx);
+        } else {
+            throw new IllegalStateException("option '" + args.get(idx - 1) + "' requires a value");
+        }
+    }
+
+    private static int parseCount(final String value) {
+        final int count;
+        try {
+            count = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalStateException("'" + value + "' is not a valid count", e);
+        }
+        if (count < 0) {
+            throw new IllegalStateException("counts cannot be negative");
+        }
+        return count;
+    }
+
+    /**
+     * Parses the corpus options out of {@code args}, removing them, and leaves anything else in place.
+     */
+    static CorpusShape parse(final List<String> args) {
+        int classes = 2000;
+        int sitesPerClass = 4;
+        int lambdaWeight = 4;
+        int concatWeight = 3;
+        int genericWeight = 2;
+        int recordWeight = 1;
+        int resources = 20;
+        int resourceBytes = 16384;
+        int nestedJars = 0;
+        int nestedDepth = 1;
+        long seed = 27;
+        for (int i = 0; i < args.size(); ) {
+            final String option = args.get(i);
+            final String value;
+            switch (option) {
+                case "--classes":
+                case "--sites":
+                case "--mix":
+                case "--resources":
+                case "--resource-bytes":
+                case "--nested-jars":
+                case "--nested-depth":
+                case "--seed":
+                    value = getOptionValue(args, i + 1);
+                    args.subList(i, i + 2).clear();
+                    break;
+                default:
+                    ++i;
+                    continue;
+            }
+            switch (option) {
+                case "--classes":
+                    classes = parseCount(value);
+                    break;
+                case "--sites":
+                    sitesPerClass = parseCount(value);
+                    break;
+                case "--mix":
+                    lambdaWeight = concatWeight = genericWeight = recordWeight = 0;
+                    for (final String weight : value.split(",")) {
+                        final int eq = weight.indexOf('=');
+                        final int w = parseCount(eq < 0 ? "" : weight.substring(eq + 1));
+                        switch (eq < 0 ? weight : weight.substring(0, eq)) {
+                            case "lambda":
+                                lambdaWeight = w;
+                                break;
+                            case "concat":
+                                concatWeight = w;
+                                break;
+                            case "generic":
+                                genericWeight = w;
+                                break;
+                            case "record":
+                                recordWeight = w;
+                                break;
+                            default:
+                                throw new IllegalStateException("unknown bootstrap kind in '" + weight + "'");
+                        }
+                    }
+                    if (lambdaWeight + concatWeight + genericWeight + recordWeight == 0) {
+                        throw new IllegalStateException("the bootstrap kind weights cannot all be 0");
+                    }
+                    break;
+                case "--resources":
+                    resources = parseCount(value);
+                    break;
+                case "--resource-bytes":
+                    resourceBytes = parseCount(value);
+                    break;
+                case "--nested-jars":
+                    nestedJars = parseCount(value);
+                    break;
+                case "--nested-depth":
+                    nestedDepth = parseCount(value);
+                    break;
+                default:
+                    try {
+                        seed = Long.parseLong(value);
+                    } catch (final NumberFormatException e) {
+                        throw new IllegalStateException("'" + value + "' is not a valid seed", e);
+                    }
+                    break;
+            }
+        }
+        return new CorpusShape(classes, sitesPerClass, lambdaWeight, concatWeight, genericWeight, recordWeight, resources,
+                resourceBytes, nestedJars, nestedDepth, seed);
+    }
+}
@@ -0,0 +1,44 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Compiled by javac into invokedynamic call sites bootstrapped by {@code LambdaMetafactory} and
+ * {@code StringConcatFactory}, and loaded either as is or rewritten by {@link CallSiteVariant}.
+ *
+ * @author Foundry
+ */
+public final class JavacLambdaShapes implements LambdaShapes {
+
+    @Override
+    public Supplier<String> nonCapturingLambda() {
+        return () -> "constant";
+    }
+
+    @Override
+    public IntSupplier capturingLambda(final int value) {
+        return () -> value + 1;
+    }
+
+    @Override
+    public Function<String, Integer> unboundMethodReference() {
+        return String::length;
+    }
+
+    @Override
+    public Supplier<String> boundMethodReference(final String value) {
+        return value::trim;
+    }
+
+    @Override
+    public String concat(final String s, final int i, final char c, final Object o) {
+        return "s=" + s + ", i=" + i + ", c=" + c + ", o=" + o;
+    }
+
+    @Override
+    public String concatWidePrimitives(final long l, final double d, final boolean z) {
+        return l + "/" + d + "/" + z;
+    }
+}
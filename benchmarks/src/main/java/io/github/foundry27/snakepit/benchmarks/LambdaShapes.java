@@ -0,0 +1,26 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The call site shapes javac emits for lambdas, method references and string concatenation, implemented by
+ * {@link JavacLambdaShapes}.
+ *
+ * @author Foundry
+ */
+public interface LambdaShapes {
+
+    Supplier<String> nonCapturingLambda();
+
+    IntSupplier capturingLambda(int value);
+
+    Function<String, Integer> unboundMethodReference();
+
+    Supplier<String> boundMethodReference(String value);
+
+    String concat(String s, int i, char c, Object o);
+
+    String concatWidePrimitives(long l, double d, boolean z);
+}
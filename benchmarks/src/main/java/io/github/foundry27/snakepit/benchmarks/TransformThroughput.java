@@ -0,0 +1,229 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import io.github.foundry27.snakepit.Main;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Runs the whole pipeline of {@link Main} over a corpus archive, generated by {@link CorpusGenerator} unless one is
+ * given, and reports classes and megabytes of input per second, bytes allocated per class, and the peak resident set
+ * size of the process. Unlike the JMH benchmarks, each operation takes long enough on its own that a few warmup runs
+ * in the same JVM are enough, and the numbers are meant to be compared between builds on the same corpus.
+ * <p>
+ * Allocation is counted over all threads where the JVM can tell, which it can from Java 21. On older JVMs only the
+ * calling thread is counted, which is everything with a single job, and nothing is reported otherwise.
+ *
+ * @author Foundry
+ */
+public final class TransformThroughput {
+
+    private static final String USAGE = "usage: TransformThroughput [corpus options] [--input JAR] [--warmup N] [--iterations N] [-- snakepit options]\n"
+            + CorpusShape.USAGE;
+
+    private TransformThroughput() {
+        throw new UnsupportedOperationException();
+    }
+
+    /*
+     * the classes and uncompressed class bytes of an archive, including those of the archives nested in it
+     */
+    private static long[] countClasses(final InputStream is) throws IOException {
+        final long[] counts = new long[2];
+        try (final ZipInputStream zis = new ZipInputStream(is)) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.getName().endsWith(".class")) {
+                    ++counts[0];
+                    counts[1] += zis.readAllBytes().length;
+                } else if (entry.getName().endsWith(".jar")) {
+                    final long[] nested = countClasses(new ByteArrayInputStream(zis.readAllBytes()));
+                    counts[0] += nested[0];
+                    counts[1] += nested[1];
+                }
+            }
+        }
+        return counts;
+    }
+
+    /*
+     * the high water mark of the resident set, which only Linux reports, or -1
+     */
+    private static long getPeakResidentSetBytes() {
+        final Path status = Paths.get("/proc/self/status");
+        if (!Files.isReadable(status)) {
+            return -1;
+        }
+        try {
+            for (final String line : Files.readAllLines(status, StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) << 10;
+                }
+            }
+        } catch (final IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    /*
+     * com.sun.management.ThreadMXBean#getTotalThreadAllocatedBytes, which counts threads that have terminated too, as
+     * the parallel workers have by the time a run returns
+     */
+    private static Method getTotalAllocatedBytesMethod(final ThreadMXBean threads) {
+        try {
+            final Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getTotalThreadAllocatedBytes");
+            return (Long) method.invoke(threads) >= 0 ? method : null;
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static long getAllocatedBytes(final ThreadMXBean threads, final Method totalAllocatedBytes) {
+        try {
+            if (totalAllocatedBytes != null) {
+                return (Long) totalAllocatedBytes.invoke(threads);
+            }
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean usesSingleJob(final List<String> transformArgs) {
+        for (int i = 0; i < transformArgs.size() - 1; ++i) {
+            if ("-j".equals(transformArgs.get(i)) || "--jobs".equals(transformArgs.get(i))) {
+                return "1".equals(transformArgs.get(i + 1));
+            }
+        }
+        return true;
+    }
+
+    private static int parseIterations(final String value) {
+        try {
+            final int n = Integer.parseInt(value);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (final NumberFormatException e) {
+            /*
+             * reported below
+             */
+        }
+        throw new IllegalStateException("'" + value + "' is not a valid number of iterations");
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final List<String> harnessArgs = new ArrayList<>(Arrays.asList(args));
+        final int separator = harnessArgs.indexOf("--");
+        final List<String> transformArgs = new ArrayList<>();
+        if (separator >= 0) {
+            transformArgs.addAll(harnessArgs.subList(separator + 1, harnessArgs.size()));
+            harnessArgs.subList(separator, harnessArgs.size()).clear();
+        }
+        final CorpusShape shape = CorpusShape.parse(harnessArgs);
+        Path input = null;
+        int warmup = 3;
+        int iterations = 5;
+        for (int i = 0; i < harnessArgs.size(); ++i) {
+            final String option = harnessArgs.get(i);
+            if (i + 1 >= harnessArgs.size()) {
+                System.err.println("unknown option or missing value: '" + option + "'\n" + USAGE);
+                System.exit(2);
+            }
+            final String value = harnessArgs.get(++i);
+            switch (option) {
+                case "--input":
+                    input = Paths.get(value);
+                    break;
+                case "--warmup":
+                    warmup = parseIterations(value);
+                    break;
+                case "--iterations":
+                    iterations = parseIterations(value);
+                    break;
+                default:
+                    System.err.println("unknown option '" + option + "'\n" + USAGE);
+                    System.exit(2);
+            }
+        }
+
+        final Path workDirectory = Files.createTempDirectory("snakepit-throughput");
+        try {
+            if (input == null) {
+                input = workDirectory.resolve("corpus.jar");
+                CorpusGenerator.generate(shape, input);
+            }
+            final Path output = workDirectory.resolve("out.jar");
+            final long[] classCounts;
+            try (final InputStream is = Files.newInputStream(input)) {
+                classCounts = countClasses(is);
+            }
+            final long inputBytes = Files.size(input);
+            System.out.printf(Locale.ROOT, "corpus %s: %d classes, %.1f MB of classes, %.1f MB archive%n",
+                    input, classCounts[0], classCounts[1] / 1e6, inputBytes / 1e6);
+
+            final List<String> mainArgs = new ArrayList<>(transformArgs);
+            mainArgs.add(input.toString());
+            mainArgs.add(output.toString());
+            final String[] mainArgsArray = mainArgs.toArray(new String[0]);
+
+            final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            final Method totalAllocatedBytes = getTotalAllocatedBytesMethod(threads);
+            final boolean countsAllocation = totalAllocatedBytes != null || usesSingleJob(transformArgs);
+
+            double classesPerSecondSum = 0;
+            double megabytesPerSecondSum = 0;
+            double allocatedPerClassSum = 0;
+            for (int i = -warmup; i < iterations; ++i) {
+                System.gc();
+                final long allocatedBefore = countsAllocation ? getAllocatedBytes(threads, totalAllocatedBytes) : 0;
+                final long startNanos = System.nanoTime();
+                Main.main(mainArgsArray);
+                final double seconds = (System.nanoTime() - startNanos) / 1e9;
+                final long allocated = countsAllocation ? getAllocatedBytes(threads, totalAllocatedBytes) - allocatedBefore : -1;
+
+                final double classesPerSecond = classCounts[0] / seconds;
+                final double megabytesPerSecond = inputBytes / 1e6 / seconds;
+                final double allocatedPerClass = classCounts[0] == 0 || allocated < 0 ? Double.NaN : (double) allocated / classCounts[0];
+                System.out.printf(Locale.ROOT, "%s %2d: %8.3f s %10.0f classes/s %8.2f MB/s %10.0f B/class%n",
+                        i < 0 ? "warmup   " : "iteration", i < 0 ? i + warmup + 1 : i + 1, seconds, classesPerSecond,
+                        megabytesPerSecond, allocatedPerClass);
+                if (i >= 0) {
+                    classesPerSecondSum += classesPerSecond;
+                    megabytesPerSecondSum += megabytesPerSecond;
+                    allocatedPerClassSum += allocatedPerClass;
+                }
+            }
+
+            final long peakResidentSetBytes = getPeakResidentSetBytes();
+            if (iterations > 0) {
+                System.out.printf(Locale.ROOT, "classesPerSecond=%.0f megabytesPerSecond=%.2f allocatedBytesPerClass=%.0f peakRssMegabytes=%s%n",
+                        classesPerSecondSum / iterations, megabytesPerSecondSum / iterations, allocatedPerClassSum / iterations,
+                        peakResidentSetBytes < 0 ? "n/a" : String.format(Locale.ROOT, "%.1f", peakResidentSetBytes / 1e6));
+            }
+        } finally {
+            try (final Stream<Path> files = Files.list(workDirectory)) {
+                for (final Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(workDirectory);
+        }
+    }
+}
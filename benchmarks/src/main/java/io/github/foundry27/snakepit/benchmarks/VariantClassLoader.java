@@ -0,0 +1,37 @@
+package io.github.foundry27.snakepit.benchmarks;
+
+import java.util.Map;
+
+/**
+ * Defines a workload class and the classes generated for it itself, even when its parent could load a class of the
+ * same name, and delegates everything else to its parent.
+ *
+ * @author Foundry
+ */
+final class VariantClassLoader extends ClassLoader {
+
+    private final Map<String, byte[]> classes;
+
+    VariantClassLoader(final ClassLoader parent, final Map<String, byte[]> classes) {
+        super(parent);
+        this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+        final byte[] bytes = classes.get(name.replace('.', '/'));
+        if (bytes == null) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                c = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+}
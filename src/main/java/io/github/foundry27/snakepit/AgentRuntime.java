@@ -0,0 +1,97 @@
+package io.github.foundry27.snakepit;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Defines the classes generated for a class rewritten by {@link SnakepitAgent}. The agent registers them while the
+ * rewritten class is being loaded, and the static initializer of the rewritten class hands over its own lookup to
+ * define them, since a class file transformer can only replace the bytes of the class being loaded.
+ *
+ * @author Foundry
+ */
+public final class AgentRuntime {
+
+    /*
+     * generated classes by defining loader and then by internal name of the class they were generated for
+     */
+    private static final Map<ClassLoader, Map<String, Map<String, byte[]>>> PENDING_CLASSES = new WeakHashMap<>();
+
+    /*
+     * Lookup.defineClass on Java 9 and later, or null on Java 8, where ClassLoader.defineClass is still accessible
+     */
+    private static final Method LOOKUP_DEFINE_CLASS = findLookupDefineClass();
+
+    private AgentRuntime() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static Method findLookupDefineClass() {
+        try {
+            return MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Registers the classes generated for the class {@code hostName} which {@code loader} is about to define, keyed by
+     * internal name in the order they have to be defined in.
+     */
+    static void registerGeneratedClasses(final ClassLoader loader, final String hostName, final Map<String, byte[]> classes) {
+        synchronized (PENDING_CLASSES) {
+            Map<String, Map<String, byte[]>> pending = PENDING_CLASSES.get(loader);
+            if (pending == null) {
+                pending = new HashMap<>();
+                PENDING_CLASSES.put(loader, pending);
+            }
+            pending.put(hostName, classes);
+        }
+    }
+
+    private static Map<String, byte[]> takeGeneratedClasses(final Class<?> host) {
+        synchronized (PENDING_CLASSES) {
+            final Map<String, Map<String, byte[]>> pending = PENDING_CLASSES.get(host.getClassLoader());
+            return pending != null ? pending.remove(host.getName().replace('.', '/')) : null;
+        }
+    }
+
+    private static void defineClass(final MethodHandles.Lookup lookup, final String internalName, final byte[] bytes)
+            throws ReflectiveOperationException {
+        if (LOOKUP_DEFINE_CLASS != null) {
+            LOOKUP_DEFINE_CLASS.invoke(lookup, (Object) bytes);
+        } else {
+            final Class<?> host = lookup.lookupClass();
+            final Method defineClass = ClassLoader.class.getDeclaredMethod("defineClass",
+                    String.class, byte[].class, int.class, int.class, ProtectionDomain.class);
+            defineClass.setAccessible(true);
+            defineClass.invoke(host.getClassLoader(), internalName.replace('/', '.'), bytes, 0, bytes.length, host.getProtectionDomain());
+        }
+    }
+
+    /**
+     * Defines the classes generated for the class of {@code lookup}, which must have full privilege access. Called
+     * reflectively first thing in the static initializer of every class the agent generated classes for, which is
+     * why this has to be public.
+     */
+    public static void defineGeneratedClasses(final MethodHandles.Lookup lookup) {
+        final Map<String, byte[]> classes = takeGeneratedClasses(lookup.lookupClass());
+        if (classes == null) {
+            return;
+        }
+        for (final Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            try {
+                defineClass(lookup, entry.getKey(), entry.getValue());
+            } catch (final InvocationTargetException e) {
+                throw new IllegalStateException("failed to define '" + entry.getKey() + "'", e.getCause());
+            } catch (final ReflectiveOperationException e) {
+                throw new IllegalStateException("failed to define '" + entry.getKey() + "'", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * The single instruction which takes the place of a rewritten invokedynamic instruction, consuming the same arguments
+ * and producing the same result.
+ *
+ * @author Foundry
+ */
+final class CallSiteReplacement {
+
+    private final int opcode;
+
+    private final String owner;
+
+    private final String name;
+
+    private final String descriptor;
+
+    private final boolean isInterface;
+
+    private CallSiteReplacement(final int opcode, final String owner, final String name, final String descriptor, final boolean isInterface) {
+        this.opcode = opcode;
+        this.owner = owner;
+        this.name = name;
+        this.descriptor = descriptor;
+        this.isInterface = isInterface;
+    }
+
+    static CallSiteReplacement invokeStatic(final String owner, final String name, final String descriptor, final boolean isInterface) {
+        return new CallSiteReplacement(Opcodes.INVOKESTATIC, owner, name, descriptor, isInterface);
+    }
+
+    static CallSiteReplacement getStatic(final String owner, final String name, final String descriptor) {
+        return new CallSiteReplacement(Opcodes.GETSTATIC, owner, name, descriptor, false);
+    }
+
+    void emit(final MethodVisitor mv) {
+        if (opcode == Opcodes.GETSTATIC) {
+            mv.visitFieldInsn(opcode, owner, name, descriptor);
+        } else {
+            mv.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+    }
+}
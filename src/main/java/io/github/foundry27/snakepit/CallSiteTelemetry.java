@@ -0,0 +1,149 @@
+package io.github.foundry27.snakepit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the telemetry of call sites rewritten with {@code --telemetry}, and exposes it over JMX as the
+ * {@value #OBJECT_NAME} MXBean. Rewritten classes then depend on this class, which {@link Main} adds to the
+ * archives it rewrites, and which {@link SnakepitAgent} provides itself.
+ * <p>
+ * The holder class of every {@code $indy$} helper registers its call site here when it is initialized, timing the
+ * bootstrap method around it, and keeps the counter it gets back in a static final field. The helper increments that
+ * counter on every invocation, so counting never looks anything up, and a {@link LongAdder} spreads contended
+ * increments over cells of their own instead of having all threads retry on one value.
+ * <p>
+ * With the system property {@value #PROFILE_PROPERTY} set to a file name, the telemetry is written to that file as a
+ * profile when the JVM exits, as {@link #writeProfile} does.
+ *
+ * @author Foundry
+ */
+public final class CallSiteTelemetry implements CallSiteTelemetryMXBean {
+
+    public static final String OBJECT_NAME = "io.github.foundry27.snakepit:type=CallSiteTelemetry";
+
+    public static final String PROFILE_PROPERTY = "snakepit.telemetry.profile";
+
+    /*
+     * the first line of a profile, by which RewritePolicyGenerator tells it from a flight recording
+     */
+    static final String PROFILE_HEADER = "# snakepit call site profile: invocations, bootstrap nanos, bootstrap method, call site";
+
+    private static final Map<String, CallSite> CALL_SITES = new ConcurrentHashMap<>();
+
+    static {
+        final CallSiteTelemetry telemetry = new CallSiteTelemetry();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(telemetry, new ObjectName(OBJECT_NAME));
+        } catch (final JMException e) {
+            /*
+             * most likely another class loader's copy of this class got there first, which its own call sites use
+             */
+            System.err.println("snakepit: failed to register the call site telemetry MXBean: " + e);
+        }
+        final String profileFileName = System.getProperty(PROFILE_PROPERTY);
+        if (profileFileName != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    telemetry.writeProfile(profileFileName);
+                } catch (final IOException e) {
+                    System.err.println("snakepit: failed to write the call site profile: " + e);
+                }
+            }, "snakepit-profile-writer"));
+        }
+    }
+
+    private CallSiteTelemetry() {
+    }
+
+    private static final class CallSite {
+
+        final String bootstrapMethod;
+
+        final LongAdder invocations;
+
+        final LongAdder bootstrapNanos;
+
+        CallSite(final String bootstrapMethod) {
+            this.bootstrapMethod = bootstrapMethod;
+            this.invocations = new LongAdder();
+            this.bootstrapNanos = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers the call site {@code callSite}, whose bootstrap method {@code bootstrapMethod} took
+     * {@code bootstrapNanos} to link it, and returns the counter to increment on each of its invocations. A call site
+     * registered more than once, as by a class loaded by several class loaders, shares a single counter.
+     */
+    public static LongAdder registerCallSite(final String callSite, final String bootstrapMethod, final long bootstrapNanos) {
+        final CallSite site = CALL_SITES.computeIfAbsent(callSite, name -> new CallSite(bootstrapMethod));
+        site.bootstrapNanos.add(bootstrapNanos);
+        return site.invocations;
+    }
+
+    @Override
+    public int getCallSiteCount() {
+        return CALL_SITES.size();
+    }
+
+    @Override
+    public long getTotalInvocationCount() {
+        return CALL_SITES.values().stream().mapToLong(site -> site.invocations.sum()).sum();
+    }
+
+    @Override
+    public long getTotalBootstrapNanos() {
+        return CALL_SITES.values().stream().mapToLong(site -> site.bootstrapNanos.sum()).sum();
+    }
+
+    @Override
+    public Map<String, Long> getInvocationCounts() {
+        final Map<String, Long> counts = new TreeMap<>();
+        CALL_SITES.forEach((name, site) -> counts.put(name, site.invocations.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getBootstrapNanos() {
+        final Map<String, Long> nanos = new TreeMap<>();
+        CALL_SITES.forEach((name, site) -> nanos.put(name, site.bootstrapNanos.sum()));
+        return nanos;
+    }
+
+    @Override
+    public Map<String, String> getBootstrapMethods() {
+        final Map<String, String> bootstrapMethods = new TreeMap<>();
+        CALL_SITES.forEach((name, site) -> bootstrapMethods.put(name, site.bootstrapMethod));
+        return bootstrapMethods;
+    }
+
+    @Override
+    public void resetInvocationCounts() {
+        CALL_SITES.values().forEach(site -> site.invocations.reset());
+    }
+
+    /*
+     * one tab separated line per call site, ordered by name so that profiles of similar runs diff well
+     */
+    @Override
+    public void writeProfile(final String fileName) throws IOException {
+        try (final Writer w = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            w.write(PROFILE_HEADER + "\n");
+            for (final Map.Entry<String, CallSite> entry : new TreeMap<>(CALL_SITES).entrySet()) {
+                final CallSite site = entry.getValue();
+                w.write(site.invocations.sum() + "\t" + site.bootstrapNanos.sum() + "\t" + site.bootstrapMethod + "\t" + entry.getKey() + "\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package io.github.foundry27.snakepit;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The JMX view of {@link CallSiteTelemetry}. Call sites are named {@code host.helper}, after the binary name of the
+ * rewritten class and the {@code $indy$} helper method which replaced them.
+ *
+ * @author Foundry
+ */
+public interface CallSiteTelemetryMXBean {
+
+    int getCallSiteCount();
+
+    long getTotalInvocationCount();
+
+    long getTotalBootstrapNanos();
+
+    /**
+     * Returns the number of invocations of each call site since it was bootstrapped or last reset.
+     */
+    Map<String, Long> getInvocationCounts();
+
+    /**
+     * Returns how long the bootstrap method of each call site took to link it.
+     */
+    Map<String, Long> getBootstrapNanos();
+
+    /**
+     * Returns the bootstrap method of each call site, as {@code owner.name}.
+     */
+    Map<String, String> getBootstrapMethods();
+
+    void resetInvocationCounts();
+
+    /**
+     * Writes the telemetry of every call site to the file {@code fileName} as a profile which
+     * {@link RewritePolicyGenerator} turns into a {@link RewritePolicy}.
+     */
+    void writeProfile(String fileName) throws IOException;
+}
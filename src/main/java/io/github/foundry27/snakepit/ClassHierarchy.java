@@ -0,0 +1,231 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Answers supertype queries about classes from the headers of their class files, without loading them, so that
+ * {@link HierarchyClassWriter} can compute stack map frames for classes whose dependencies the tool itself cannot load.
+ * <p>
+ * A type's header is only parsed the first time it is asked about, and is then remembered, so a hierarchy can be shared
+ * between threads and each class file is read at most once however many classes are transformed against it. Types
+ * which are not found through the hierarchy's own class files are looked up in its parent.
+ *
+ * @author Foundry
+ */
+final class ClassHierarchy {
+
+    private static final String OBJECT = "java/lang/Object";
+
+    private static final String[] NO_INTERFACES = new String[0];
+
+    private static final String VERSIONED_CLASSES_PREFIX = "META-INF/versions/";
+
+    private final Function<String, byte[]> classFileLocator;
+
+    private final ClassHierarchy parent;
+
+    private final Map<String, TypeInfo> types;
+
+    /**
+     * @param classFileLocator returns the bytes of the class file of a class by its internal name, or null if there is
+     *                         none
+     * @param parent           the hierarchy to consult for types which are not found by {@code classFileLocator}, or null
+     */
+    ClassHierarchy(final Function<String, byte[]> classFileLocator, final ClassHierarchy parent) {
+        this.classFileLocator = classFileLocator;
+        this.parent = parent;
+        this.types = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns a hierarchy over the class files of the JDK, leaving out those on the class path of the tool itself.
+     */
+    static ClassHierarchy ofPlatformClasses() {
+        return new ClassHierarchy(name -> readClassFile(ClassLoader.getSystemClassLoader().getParent(), name), null);
+    }
+
+    /**
+     * Returns a hierarchy over the class files which {@code loader} can see as resources. The loader is only weakly
+     * referenced, so that the hierarchy can be kept for as long as the loader is alive.
+     */
+    static ClassHierarchy ofClassLoader(final ClassLoader loader) {
+        final WeakReference<ClassLoader> loaderRef = new WeakReference<>(loader);
+        return new ClassHierarchy(name -> {
+            final ClassLoader l = loaderRef.get();
+            return l == null ? null : readClassFile(l, name);
+        }, null);
+    }
+
+    /**
+     * Returns a hierarchy over the class entries of {@code readers}, where an earlier archive takes precedence over a
+     * later one, falling back to {@code parent}. Only the central directories are read up front; the archives must stay
+     * open for as long as the hierarchy is used.
+     */
+    static ClassHierarchy ofArchives(final List<ZipArchiveReader> readers, final ClassHierarchy parent) {
+        final Map<String, ArchivedClassFile> classFiles = new HashMap<>();
+        final Map<String, ArchivedClassFile> versionedClassFiles = new HashMap<>();
+        for (final ZipArchiveReader reader : readers) {
+            for (final ZipArchiveEntry entry : reader.getEntries()) {
+                if (entry.isDirectory() || !entry.name.endsWith(".class")) {
+                    continue;
+                }
+                final String path = entry.name.substring(0, entry.name.length() - ".class".length());
+                if (!path.startsWith(VERSIONED_CLASSES_PREFIX)) {
+                    classFiles.putIfAbsent(path, new ArchivedClassFile(reader, entry));
+                } else if (path.indexOf('/', VERSIONED_CLASSES_PREFIX.length()) >= 0) {
+                    versionedClassFiles.putIfAbsent(path.substring(path.indexOf('/', VERSIONED_CLASSES_PREFIX.length()) + 1),
+                            new ArchivedClassFile(reader, entry));
+                }
+            }
+        }
+        /*
+         * a class under META-INF/versions/N of a multi-release jar has to keep the supertypes of the base class it
+         * stands in for, so it is only consulted for classes which exist in some versions alone
+         */
+        versionedClassFiles.forEach(classFiles::putIfAbsent);
+        return new ClassHierarchy(name -> {
+            final ArchivedClassFile classFile = classFiles.get(name);
+            if (classFile == null) {
+                return null;
+            }
+            try {
+                return classFile.reader.readData(classFile.entry);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, parent);
+    }
+
+    private static final class ArchivedClassFile {
+
+        final ZipArchiveReader reader;
+
+        final ZipArchiveEntry entry;
+
+        ArchivedClassFile(final ZipArchiveReader reader, final ZipArchiveEntry entry) {
+            this.reader = reader;
+            this.entry = entry;
+        }
+    }
+
+    /*
+     * null if the loader has no such class file
+     */
+    static byte[] readClassFile(final ClassLoader loader, final String name) {
+        try (final InputStream is = loader.getResourceAsStream(name + ".class")) {
+            if (is == null) {
+                return null;
+            }
+            final ByteArrayOutputStream data = new ByteArrayOutputStream(Math.max(is.available(), 1024));
+            final byte[] buffer = new byte[8192];
+            int nRead;
+            while ((nRead = is.read(buffer)) != -1) {
+                data.write(buffer, 0, nRead);
+            }
+            return data.toByteArray();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class TypeInfo {
+
+        final String superName;
+
+        final String[] interfaces;
+
+        final boolean isInterface;
+
+        TypeInfo(final String superName, final String[] interfaces, final boolean isInterface) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+    }
+
+    /*
+     * only the header following the constant pool is parsed, which ClassReader does without looking at any members
+     */
+    private TypeInfo findTypeInfo(final String name) {
+        final TypeInfo known = types.get(name);
+        if (known != null) {
+            return known;
+        }
+        final byte[] classFile = classFileLocator.apply(name);
+        if (classFile == null) {
+            return parent == null ? null : parent.findTypeInfo(name);
+        }
+        final ClassReader cr = new ClassReader(classFile);
+        final String[] interfaces = cr.getInterfaces();
+        final TypeInfo info = new TypeInfo(cr.getSuperName(), interfaces.length == 0 ? NO_INTERFACES : interfaces,
+                (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+        final TypeInfo raced = types.putIfAbsent(name, info);
+        return raced == null ? info : raced;
+    }
+
+    private TypeInfo getTypeInfo(final String name) {
+        final TypeInfo info = findTypeInfo(name);
+        if (info == null) {
+            throw new TypeNotPresentException(name.replace('/', '.'), null);
+        }
+        return info;
+    }
+
+    /**
+     * Returns whether a value of type {@code from} can be assigned to a variable of type {@code to}, both given as
+     * internal names of classes or interfaces.
+     */
+    boolean isAssignableFrom(final String to, final String from) {
+        if (to.equals(from) || OBJECT.equals(to)) {
+            return true;
+        }
+        if (OBJECT.equals(from)) {
+            return false;
+        }
+        final TypeInfo info = getTypeInfo(from);
+        if (info.superName != null && isAssignableFrom(to, info.superName)) {
+            return true;
+        }
+        for (final String itf : info.interfaces) {
+            if (isAssignableFrom(to, itf)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the most specific class which both {@code type1} and {@code type2} extend, following the same rules as
+     * {@link org.objectweb.asm.ClassWriter#getCommonSuperClass}: interfaces are only merged with their own subtypes,
+     * and otherwise with {@code java/lang/Object}.
+     *
+     * @throws TypeNotPresentException if the hierarchy of either type is not known
+     */
+    String getCommonSuperClass(final String type1, final String type2) {
+        if (isAssignableFrom(type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type2, type1)) {
+            return type2;
+        }
+        if (getTypeInfo(type1).isInterface || getTypeInfo(type2).isInterface) {
+            return OBJECT;
+        }
+        String common = type1;
+        do {
+            common = getTypeInfo(common).superName;
+        } while (!isAssignableFrom(common, type2));
+        return common;
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs {@link IndyInsnSubstitutingClassVisitor} over a single class, as shared by the offline and the load-time entry
+ * points.
+ *
+ * @author Foundry
+ */
+final class ClassTransformation {
+
+    /*
+     * the first class file version whose methods carry stack map frames
+     */
+    private static final int FIRST_VERSION_WITH_FRAMES = Opcodes.V1_6;
+
+    private ClassTransformation() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the rewritten class first, followed by the classes generated for it, all keyed by internal name, or an
+     * empty map if the class was left as it was.
+     * <p>
+     * The frames the class came with are kept as long as the code it is given does not branch, since the replacement of
+     * an invokedynamic instruction leaves the stack as the instruction did. Otherwise all of its frames are recomputed,
+     * with the common supertypes of the types they merge taken from {@code hierarchy}. Should the hierarchy not know a
+     * type the frames merge, the class is rewritten once more without code which branches: record methods then keep
+     * their bootstrap method, and generic call sites get a bootstrap method each rather than the shared runtime.
+     * <p>
+     * With {@code recordTelemetry}, call sites with a generic bootstrap method report their bootstrap time and
+     * invocations to {@link CallSiteTelemetry}. Call sites which {@code policy} denies keep their invokedynamic
+     * instruction. With {@code useSharedRuntime}, call sites with a generic bootstrap method are linked through
+     * {@link SnakepitRuntime}.
+     */
+    static Map<String, byte[]> transform(final byte[] classBytes, final ClassHierarchy hierarchy, final boolean recordTelemetry,
+                                         final RewritePolicy policy, final boolean useSharedRuntime) {
+        return transform(classBytes, hierarchy, recordTelemetry, policy, useSharedRuntime, null);
+    }
+
+    /**
+     * As {@link #transform(byte[], ClassHierarchy, boolean, RewritePolicy, boolean)}, putting the answer to each common
+     * supertype query the recomputed frames were based on into {@code commonSuperClasses}, keyed by the two types
+     * asked about. It stays empty for a class whose frames were kept, or which was rewritten without code which
+     * branches as the hierarchy did not know a type.
+     */
+    static Map<String, byte[]> transform(final byte[] classBytes, final ClassHierarchy hierarchy, final boolean recordTelemetry,
+                                         final RewritePolicy policy, final boolean useSharedRuntime,
+                                         final Map<List<String>, String> commonSuperClasses) {
+        final ClassReader cr = new ClassReader(classBytes);
+        final Map<String, byte[]> classes = transform(cr, classBytes, null, null, recordTelemetry, policy, useSharedRuntime, true);
+        if (classes != null) {
+            return classes;
+        }
+        try {
+            return transform(cr, classBytes, hierarchy, commonSuperClasses, recordTelemetry, policy, useSharedRuntime, true);
+        } catch (final TypeNotPresentException e) {
+            if (commonSuperClasses != null) {
+                commonSuperClasses.clear();
+            }
+            return transform(cr, classBytes, null, null, recordTelemetry, policy, useSharedRuntime, false);
+        }
+    }
+
+    /*
+     * frames are only recomputed when given a hierarchy to compute them against; without one, null is returned for a
+     * class which turns out to need them. The classes generated so far are part of the hierarchy, as the rewritten code
+     * refers to them
+     */
+    private static Map<String, byte[]> transform(final ClassReader cr, final byte[] classBytes, final ClassHierarchy hierarchy,
+                                                final Map<List<String>, String> commonSuperClasses,
+                                                final boolean recordTelemetry, final RewritePolicy policy,
+                                                final boolean useSharedRuntime, final boolean allowBranchingCode) {
+        final String className = cr.getClassName();
+        final Map<String, byte[]> generatedClasses = new LinkedHashMap<>();
+        final ClassWriter cw = hierarchy == null
+                ? new ClassWriter(ClassWriter.COMPUTE_MAXS)
+                : new HierarchyClassWriter(ClassWriter.COMPUTE_FRAMES,
+                        new ClassHierarchy(name -> name.equals(className) ? classBytes : generatedClasses.get(name), hierarchy),
+                        commonSuperClasses);
+        final IndyInsnSubstitutingClassVisitor cv = new IndyInsnSubstitutingClassVisitor(cw, className, generatedClasses, recordTelemetry, policy,
+                useSharedRuntime, allowBranchingCode);
+        cr.accept(cv, hierarchy == null ? 0 : ClassReader.SKIP_FRAMES);
+        if (!cv.hasRewrittenCallSites()) {
+            return Collections.emptyMap();
+        }
+        if (hierarchy == null && cv.requiresFrames() && cr.readUnsignedShort(6) >= FIRST_VERSION_WITH_FRAMES) {
+            return null;
+        }
+
+        final Map<String, byte[]> classes = new LinkedHashMap<>(generatedClasses.size() * 2 + 2);
+        classes.put(className, cw.toByteArray());
+        classes.putAll(generatedClasses);
+        return classes;
+    }
+}
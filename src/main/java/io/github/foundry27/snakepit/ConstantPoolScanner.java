@@ -0,0 +1,298 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.Type;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Walks the constant pool of raw class file bytes without building a {@link org.objectweb.asm.ClassReader}, to tell
+ * whether a class has any invokedynamic call sites and which bootstrap methods they use.
+ *
+ * @author Foundry
+ */
+final class ConstantPoolScanner {
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static final int CONSTANT_INTEGER = 3;
+
+    private static final int CONSTANT_FLOAT = 4;
+
+    private static final int CONSTANT_LONG = 5;
+
+    private static final int CONSTANT_DOUBLE = 6;
+
+    private static final int CONSTANT_CLASS = 7;
+
+    private static final int CONSTANT_STRING = 8;
+
+    private static final int CONSTANT_FIELDREF = 9;
+
+    private static final int CONSTANT_METHODREF = 10;
+
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+
+    private static final int CONSTANT_METHOD_TYPE = 16;
+
+    private static final int CONSTANT_DYNAMIC = 17;
+
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+    private static final int CONSTANT_MODULE = 19;
+
+    private static final int CONSTANT_PACKAGE = 20;
+
+    /*
+     * magic, minor version, major version
+     */
+    private static final int CONSTANT_POOL_COUNT_OFFSET = 8;
+
+    private static final String STRING_CONCAT_FACTORY_PREFIX = "java.lang.invoke.StringConcatFactory.";
+
+    private static final byte[] BOOTSTRAP_METHODS_ATTRIBUTE_NAME = "BootstrapMethods".getBytes(StandardCharsets.UTF_8);
+
+    private ConstantPoolScanner() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static int readUnsignedShort(final byte[] b, final int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(final byte[] b, final int offset) {
+        return (readUnsignedShort(b, offset) << 16) | readUnsignedShort(b, offset + 2);
+    }
+
+    /*
+     * the length of the constant at offset, including its tag byte
+     */
+    private static int getConstantLength(final byte[] b, final int offset) {
+        switch (b[offset]) {
+            case CONSTANT_UTF8:
+                return 3 + readUnsignedShort(b, offset + 1);
+            case CONSTANT_CLASS: //fall through
+            case CONSTANT_STRING:
+            case CONSTANT_METHOD_TYPE:
+            case CONSTANT_MODULE:
+            case CONSTANT_PACKAGE:
+                return 3;
+            case CONSTANT_METHOD_HANDLE:
+                return 4;
+            case CONSTANT_INTEGER: //fall through
+            case CONSTANT_FLOAT:
+            case CONSTANT_FIELDREF:
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACE_METHODREF:
+            case CONSTANT_NAME_AND_TYPE:
+            case CONSTANT_DYNAMIC:
+            case CONSTANT_INVOKE_DYNAMIC:
+                return 5;
+            case CONSTANT_LONG: //fall through
+            case CONSTANT_DOUBLE:
+                return 9;
+            default:
+                throw new IllegalStateException("unknown constant pool tag " + b[offset] + " at offset " + offset);
+        }
+    }
+
+    /**
+     * Returns whether the constant pool of {@code classBytes} contains a {@code CONSTANT_InvokeDynamic} entry. A class
+     * without one has no invokedynamic instructions, so it can be passed through untouched.
+     */
+    static boolean hasInvokeDynamic(final byte[] classBytes) {
+        final int count = readUnsignedShort(classBytes, CONSTANT_POOL_COUNT_OFFSET);
+        int offset = CONSTANT_POOL_COUNT_OFFSET + 2;
+        for (int i = 1; i < count; ++i) {
+            final int tag = classBytes[offset];
+            if (tag == CONSTANT_INVOKE_DYNAMIC) {
+                return true;
+            }
+            offset += getConstantLength(classBytes, offset);
+            if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE) {
+                ++i;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether {@code classBytes} has a {@code CONSTANT_Class} entry for the class with the internal name
+     * {@code internalName}, as every class referring to it does.
+     */
+    static boolean refersToClass(final byte[] classBytes, final String internalName) {
+        final byte[] expected = internalName.getBytes(StandardCharsets.UTF_8);
+        final int count = readUnsignedShort(classBytes, CONSTANT_POOL_COUNT_OFFSET);
+        final int[] offsets = new int[count];
+        int offset = CONSTANT_POOL_COUNT_OFFSET + 2;
+        for (int i = 1; i < count; ++i) {
+            final int tag = classBytes[offset];
+            offsets[i] = offset;
+            offset += getConstantLength(classBytes, offset);
+            if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE) {
+                ++i;
+            }
+        }
+        for (int i = 1; i < count; ++i) {
+            if (offsets[i] != 0 && classBytes[offsets[i]] == CONSTANT_CLASS
+                    && isUtf8Equal(classBytes, offsets, readUnsignedShort(classBytes, offsets[i] + 1), expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String readUtf8(final byte[] b, final int[] offsets, final int index) {
+        final int offset = offsets[index];
+        return new String(b, offset + 3, readUnsignedShort(b, offset + 1), StandardCharsets.UTF_8);
+    }
+
+    private static boolean isUtf8Equal(final byte[] b, final int[] offsets, final int index, final byte[] expected) {
+        final int offset = offsets[index];
+        if (b[offset] != CONSTANT_UTF8 || readUnsignedShort(b, offset + 1) != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; ++i) {
+            if (b[offset + 3 + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * skips the attributes table starting at offset, returning the offset just past it
+     */
+    private static int skipAttributes(final byte[] b, int offset) {
+        final int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            offset += 6 + readInt(b, offset + 2);
+        }
+        return offset;
+    }
+
+    /*
+     * skips the fields or methods table starting at offset, returning the offset just past it
+     */
+    private static int skipMembers(final byte[] b, int offset) {
+        final int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            offset = skipAttributes(b, offset + 6);
+        }
+        return offset;
+    }
+
+    /*
+     * a bootstrap method handle in the form owner.name, with the owner as a binary class name
+     */
+    private static String describeBootstrapMethod(final byte[] b, final int[] offsets, final int handleIndex) {
+        final int memberRef = offsets[readUnsignedShort(b, offsets[handleIndex] + 2)];
+        final int ownerName = readUnsignedShort(b, offsets[readUnsignedShort(b, memberRef + 1)] + 1);
+        final int memberName = readUnsignedShort(b, offsets[readUnsignedShort(b, memberRef + 3)] + 1);
+        return readUtf8(b, offsets, ownerName).replace('/', '.') + '.' + readUtf8(b, offsets, memberName);
+    }
+
+    /**
+     * Counts the {@code CONSTANT_InvokeDynamic} entries of {@code classBytes} by the bootstrap method they are linked
+     * with, keyed as {@code owner.name}. Returns an empty map for a class without any.
+     */
+    static Map<String, Integer> countBootstrapMethods(final byte[] classBytes) {
+        final Map<String, Integer> counts = new HashMap<>();
+        forEachInvokeDynamic(classBytes, (bootstrapMethod, descriptor) -> counts.merge(bootstrapMethod, 1, Integer::sum));
+        return counts;
+    }
+
+    /**
+     * Counts the {@code CONSTANT_InvokeDynamic} entries of {@code classBytes} which are string concatenations with a
+     * long, float or double argument, which {@link StringConcatGenerator} leaves to {@code StringConcatFactory}.
+     */
+    static int countWideStringConcatenations(final byte[] classBytes) {
+        final int[] count = new int[1];
+        forEachInvokeDynamic(classBytes, (bootstrapMethod, descriptor) -> {
+            if (bootstrapMethod.startsWith(STRING_CONCAT_FACTORY_PREFIX) && hasWideArgument(descriptor)) {
+                ++count[0];
+            }
+        });
+        return count[0];
+    }
+
+    private static boolean hasWideArgument(final String methodDescriptor) {
+        for (final Type argType : Type.getArgumentTypes(methodDescriptor)) {
+            if (argType.getSort() == Type.LONG || argType.getSort() == Type.FLOAT || argType.getSort() == Type.DOUBLE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * passes the bootstrap method, as described by describeBootstrapMethod, and the method descriptor of each
+     * CONSTANT_InvokeDynamic entry to action
+     */
+    private static void forEachInvokeDynamic(final byte[] classBytes, final BiConsumer<String, String> action) {
+        final int count = readUnsignedShort(classBytes, CONSTANT_POOL_COUNT_OFFSET);
+        final int[] offsets = new int[count];
+        int indyCount = 0;
+        int offset = CONSTANT_POOL_COUNT_OFFSET + 2;
+        for (int i = 1; i < count; ++i) {
+            final int tag = classBytes[offset];
+            offsets[i] = offset;
+            if (tag == CONSTANT_INVOKE_DYNAMIC) {
+                ++indyCount;
+            }
+            offset += getConstantLength(classBytes, offset);
+            if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE) {
+                ++i;
+            }
+        }
+        if (indyCount == 0) {
+            return;
+        }
+
+        /*
+         * access flags, this class and super class come before the interfaces
+         */
+        offset += 6;
+        offset += 2 + 2 * readUnsignedShort(classBytes, offset);
+        offset = skipMembers(classBytes, offset);
+        offset = skipMembers(classBytes, offset);
+
+        int bootstrapMethodsOffset = -1;
+        final int attributeCount = readUnsignedShort(classBytes, offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount && bootstrapMethodsOffset < 0; ++i) {
+            if (isUtf8Equal(classBytes, offsets, readUnsignedShort(classBytes, offset), BOOTSTRAP_METHODS_ATTRIBUTE_NAME)) {
+                bootstrapMethodsOffset = offset + 6;
+            }
+            offset += 6 + readInt(classBytes, offset + 2);
+        }
+        if (bootstrapMethodsOffset < 0) {
+            throw new IllegalStateException("class file has invokedynamic constants but no BootstrapMethods attribute");
+        }
+
+        final int bootstrapMethodCount = readUnsignedShort(classBytes, bootstrapMethodsOffset);
+        final int[] bootstrapMethodHandles = new int[bootstrapMethodCount];
+        offset = bootstrapMethodsOffset + 2;
+        for (int i = 0; i < bootstrapMethodCount; ++i) {
+            bootstrapMethodHandles[i] = readUnsignedShort(classBytes, offset);
+            offset += 4 + 2 * readUnsignedShort(classBytes, offset + 2);
+        }
+
+        for (int i = 1; i < count; ++i) {
+            if (offsets[i] != 0 && classBytes[offsets[i]] == CONSTANT_INVOKE_DYNAMIC) {
+                final int handleIndex = bootstrapMethodHandles[readUnsignedShort(classBytes, offsets[i] + 1)];
+                final int nameAndType = offsets[readUnsignedShort(classBytes, offsets[i] + 3)];
+                action.accept(describeBootstrapMethod(classBytes, offsets, handleIndex),
+                        readUtf8(classBytes, offsets, readUnsignedShort(classBytes, nameAndType + 3)));
+            }
+        }
+    }
+}
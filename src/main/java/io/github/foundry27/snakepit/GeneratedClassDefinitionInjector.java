@@ -0,0 +1,81 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Makes the static initializer of a class call {@link AgentRuntime#defineGeneratedClasses} with the class's own lookup
+ * before anything else, adding a static initializer if the class has none.
+ * <p>
+ * The call is made reflectively through the system class loader, which the agent jar is always on, so the class only
+ * refers to JDK types and works from any class loader and module.
+ *
+ * @author Foundry
+ */
+final class GeneratedClassDefinitionInjector extends ClassVisitor {
+
+    private boolean hasStaticInitializer;
+
+    GeneratedClassDefinitionInjector(final ClassVisitor cv) {
+        super(Opcodes.ASM9, cv);
+    }
+
+    private static void emitDefinitionCall(final MethodVisitor mv) {
+        mv.visitLdcInsn(AgentRuntime.class.getName());
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/ClassLoader", "getSystemClassLoader", "()Ljava/lang/ClassLoader;", false);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Class", "forName", "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;", false);
+
+        mv.visitLdcInsn("defineGeneratedClasses");
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Class");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitLdcInsn(Type.getType(MethodHandles.Lookup.class));
+        mv.visitInsn(Opcodes.AASTORE);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class", "getMethod", "(Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;", false);
+
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", false);
+        mv.visitInsn(Opcodes.AASTORE);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/reflect/Method", "invoke", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", false);
+        mv.visitInsn(Opcodes.POP);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        final MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+        if (!"<clinit>".equals(name)) {
+            return mv;
+        }
+        hasStaticInitializer = true;
+        return new MethodVisitor(Opcodes.ASM9, mv) {
+            @Override
+            public void visitCode() {
+                super.visitCode();
+                emitDefinitionCall(mv);
+            }
+        };
+    }
+
+    @Override
+    public void visitEnd() {
+        if (!hasStaticInitializer) {
+            final MethodVisitor mv = super.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+            mv.visitCode();
+            emitDefinitionCall(mv);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        super.visitEnd();
+    }
+}
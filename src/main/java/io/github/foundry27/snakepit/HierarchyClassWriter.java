@@ -0,0 +1,40 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.ClassWriter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ClassWriter} which answers the common supertype queries of {@link ClassWriter#COMPUTE_FRAMES} from a
+ * {@link ClassHierarchy}, instead of loading the classes involved. These answers are all the frames it computes depend
+ * on besides the class itself, so they are collected for {@link TransformCache} to tell whether frames it stored are
+ * still valid.
+ *
+ * @author Foundry
+ */
+final class HierarchyClassWriter extends ClassWriter {
+
+    private final ClassHierarchy hierarchy;
+
+    private final Map<List<String>, String> commonSuperClasses;
+
+    /**
+     * @param commonSuperClasses receives each common supertype given, keyed by the two types asked about, or null
+     */
+    HierarchyClassWriter(final int flags, final ClassHierarchy hierarchy, final Map<List<String>, String> commonSuperClasses) {
+        super(flags);
+        this.hierarchy = hierarchy;
+        this.commonSuperClasses = commonSuperClasses;
+    }
+
+    @Override
+    protected String getCommonSuperClass(final String type1, final String type2) {
+        final String common = hierarchy.getCommonSuperClass(type1, type2);
+        if (commonSuperClasses != null) {
+            commonSuperClasses.put(Arrays.asList(type1, type2), common);
+        }
+        return common;
+    }
+}
@@ -1,9 +1,19 @@
 package io.github.foundry27.snakepit;
 
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
 /**
  * @author Foundry
  */
@@ -11,13 +21,219 @@ public final class IndyInsnSubstitutingClassVisitor extends ClassVisitor {
 
     private final String className;
 
+    private final Map<String, byte[]> generatedClasses;
+
+    private final Map<List<Object>, CallSiteReplacement> callSiteReplacements;
+
+    private int classVersion;
+
+    private boolean isInterface;
+
+    private String simpleName;
+
+    private String nestHost;
+
+    private final Set<String> nestMembers;
+
+    private long generationMethodID;
+
+    private int rewrittenCallSiteCount;
+
+    private boolean requiresFrames;
+
+    private final boolean recordTelemetry;
+
+    private final RewritePolicy policy;
+
+    private final boolean useSharedRuntime;
+
+    private final boolean allowBranchingCode;
+
+    private SharedRuntimeBootstrapGenerator sharedRuntimeBootstrap;
+
     public IndyInsnSubstitutingClassVisitor(final ClassVisitor cv, final String className) {
-        super(Opcodes.ASM5, cv);
+        this(cv, className, new LinkedHashMap<>(), false, RewritePolicy.ALLOW_ALL, false, true);
+    }
+
+    /*
+     * generated classes are put into generatedClasses as soon as they are generated, before the methods referring to
+     * them are finished. With recordTelemetry, generic call sites report to CallSiteTelemetry. Call sites the policy
+     * denies are left as they are. With useSharedRuntime, generic call sites are linked through SnakepitRuntime.
+     * Without allowBranchingCode, call sites are only replaced with code that does not branch, and so never needs
+     * frames to be computed
+     */
+    IndyInsnSubstitutingClassVisitor(final ClassVisitor cv, final String className, final Map<String, byte[]> generatedClasses,
+                                     final boolean recordTelemetry, final RewritePolicy policy, final boolean useSharedRuntime,
+                                     final boolean allowBranchingCode) {
+        super(Opcodes.ASM9, cv);
         this.className = className;
+        this.generatedClasses = generatedClasses;
+        this.recordTelemetry = recordTelemetry;
+        this.policy = policy;
+        this.useSharedRuntime = useSharedRuntime && allowBranchingCode;
+        this.allowBranchingCode = allowBranchingCode;
+        this.callSiteReplacements = new HashMap<>();
+        this.nestMembers = new HashSet<>();
+        this.generationMethodID = 0;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        this.classVersion = version;
+        this.isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public void visitNestHost(String nestHost) {
+        this.nestHost = nestHost;
+        super.visitNestHost(nestHost);
+    }
+
+    @Override
+    public void visitNestMember(String nestMember) {
+        nestMembers.add(nestMember);
+        super.visitNestMember(nestMember);
+    }
+
+    @Override
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+        if (name.equals(className) && innerName != null) {
+            this.simpleName = innerName;
+        }
+        super.visitInnerClass(name, outerName, innerName, access);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-        return new IndyInsnSubstitutingMethodVisitor(cv.visitMethod(access, name, descriptor, signature, exceptions), cv, className, name);
+        return new IndyInsnSubstitutingMethodVisitor(cv.visitMethod(access, name, descriptor, signature, exceptions), this, className, name);
+    }
+
+    @Override
+    public void visitEnd() {
+        if (sharedRuntimeBootstrap != null) {
+            sharedRuntimeBootstrap.generate();
+        }
+        super.visitEnd();
+    }
+
+    /**
+     * Returns the classes generated while rewriting the visited class, keyed by internal name. These must be written
+     * alongside the rewritten class for it to link.
+     */
+    public Map<String, byte[]> getGeneratedClasses() {
+        return Collections.unmodifiableMap(generatedClasses);
+    }
+
+    /**
+     * Returns whether any invokedynamic instruction was rewritten, which when false means the visited class passed
+     * through unchanged.
+     */
+    public boolean hasRewrittenCallSites() {
+        return rewrittenCallSiteCount > 0;
+    }
+
+    boolean allowsRewrite(final String methodName, final Handle bootstrapMethodHandle) {
+        return policy.allows(className, methodName, bootstrapMethodHandle);
+    }
+
+    /**
+     * Returns whether code was generated into the visited class which needs stack map frames that the class did not
+     * come with.
+     */
+    boolean requiresFrames() {
+        return requiresFrames;
+    }
+
+    /*
+     * to be called when generating code with branches into the visited class, which is then given frames computed
+     * against the class hierarchy
+     */
+    void requireFrames() {
+        requiresFrames = true;
+    }
+
+    boolean allowsBranchingCode() {
+        return allowBranchingCode;
+    }
+
+    MethodVisitor visitGeneratedMethod(int access, String name, String descriptor) {
+        return cv.visitMethod(access, name, descriptor, null, null);
+    }
+
+    void defineGeneratedClass(final String internalName, final byte[] bytes) {
+        generatedClasses.put(internalName, bytes);
+    }
+
+    /*
+     * invokedynamic instructions with the same name, descriptor, bootstrap method and bootstrap arguments share one
+     * replacement, so the helpers, classes and runtime bootstrap behind it are only generated once per class. A generic
+     * bootstrap method is then linked once for all of these instructions instead of once per instruction, which is
+     * only observable by bootstrap methods that keep state per call site. The key is made by the method visitor, and
+     * with telemetry also holds the method a generic call site is in
+     */
+    CallSiteReplacement getCallSiteReplacement(final List<Object> callSiteKey, final Supplier<CallSiteReplacement> generator) {
+        CallSiteReplacement replacement = callSiteReplacements.get(callSiteKey);
+        if (replacement == null) {
+            replacement = generator.get();
+            callSiteReplacements.put(callSiteKey, replacement);
+        }
+        return replacement;
+    }
+
+    void markCallSiteRewritten() {
+        ++rewrittenCallSiteCount;
+    }
+
+    long nextGenerationMethodID() {
+        return generationMethodID++;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    int getClassVersion() {
+        return classVersion;
+    }
+
+    boolean isInterface() {
+        return isInterface;
+    }
+
+    /*
+     * as Class.getSimpleName would return it, which for nested classes is the name their InnerClasses entry gives them.
+     * The InnerClasses attribute is always visited before any method
+     */
+    String getSimpleName() {
+        return simpleName != null ? simpleName : className.substring(className.lastIndexOf('/') + 1);
+    }
+
+    /*
+     * whether the private members of a class may be accessible to the visited class as a nestmate. A nest member only
+     * names its host, so the other members of the nest are recognized by the names javac gives nested classes. The
+     * nest attributes are always visited before any method
+     */
+    boolean isPossibleNestmate(final String name) {
+        final String topLevelName = nestHost != null ? nestHost : className;
+        return name.equals(topLevelName) || nestMembers.contains(name) || name.startsWith(topLevelName + "$");
+    }
+
+    boolean isRecordingTelemetry() {
+        return recordTelemetry;
+    }
+
+    boolean usesSharedRuntime() {
+        return useSharedRuntime;
+    }
+
+    /*
+     * collects the generic call sites which are linked through SnakepitRuntime, to be generated at the end of the class
+     */
+    SharedRuntimeBootstrapGenerator getSharedRuntimeBootstrap() {
+        if (sharedRuntimeBootstrap == null) {
+            sharedRuntimeBootstrap = new SharedRuntimeBootstrapGenerator(this);
+        }
+        return sharedRuntimeBootstrap;
     }
 }
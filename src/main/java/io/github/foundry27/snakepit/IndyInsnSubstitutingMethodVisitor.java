@@ -2,6 +2,9 @@ package io.github.foundry27.snakepit;
 
 import org.objectweb.asm.*;
 
+import java.util.Arrays;
+import java.util.List;
+
 import static org.objectweb.asm.Opcodes.*;
 
 /**
@@ -9,18 +12,25 @@ import static org.objectweb.asm.Opcodes.*;
  */
 public final class IndyInsnSubstitutingMethodVisitor extends MethodVisitor {
 
-    private final ClassVisitor cv;
+    private static final String CALLSITE_HOLDER_FIELD_NAME = "TARGET";
+
+    private static final String INVOCATION_COUNTER_FIELD_NAME = "INVOCATIONS";
+
+    private static final String INVOCATION_COUNTER_DESCRIPTOR = "Ljava/util/concurrent/atomic/LongAdder;";
+
+    private final IndyInsnSubstitutingClassVisitor owner;
 
     private final String className;
 
-    private final String callerMethodName;
+    private final String methodName;
 
-    private long generationMethodID;
+    private final String callerMethodName;
 
-    public IndyInsnSubstitutingMethodVisitor(final MethodVisitor mv, final ClassVisitor cv, final String className, final String callerMethodName) {
-        super(Opcodes.ASM5, mv);
-        this.cv = cv;
+    public IndyInsnSubstitutingMethodVisitor(final MethodVisitor mv, final IndyInsnSubstitutingClassVisitor owner, final String className, final String callerMethodName) {
+        super(Opcodes.ASM9, mv);
+        this.owner = owner;
         this.className = className;
+        this.methodName = callerMethodName;
         switch (callerMethodName) {
             case "<init>":
                 this.callerMethodName = "new";
@@ -32,7 +42,6 @@ public final class IndyInsnSubstitutingMethodVisitor extends MethodVisitor {
                 this.callerMethodName = callerMethodName;
                 break;
         }
-        this.generationMethodID = 0;
     }
 
     private static int storeMethodHandleLookupObject(final MethodVisitor mv, int baseVarIdx) {
@@ -42,80 +51,132 @@ public final class IndyInsnSubstitutingMethodVisitor extends MethodVisitor {
         return varIdx;
     }
 
-    private static void pushPrimitiveType(final MethodVisitor mv, final Type primitiveType) {
-        String owner;
-        switch (primitiveType.getSort()) {
+    static void pushInt(final MethodVisitor mv, final int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private static int storeCallSiteMethodDescriptor(final MethodVisitor mv, final Type methodType, int baseVarIdx) {
+        final int varIdx = baseVarIdx + 2;
+        /*
+         * invokedynamic only exists in class files of version 51 and up, which can always load MethodType and
+         * MethodHandle constants directly
+         */
+        mv.visitLdcInsn(methodType);
+        mv.visitVarInsn(ASTORE, varIdx);
+        return varIdx;
+    }
+
+    /*
+     * whether pushConstant can load a bootstrap method argument. Besides Class, MethodHandle, MethodType, String, int,
+     * long, float and double constants, the JVMS allows dynamically-computed constants, which are not
+     */
+    private static boolean isLoadableConstant(final Object constant) {
+        return constant instanceof Integer || constant instanceof Long || constant instanceof Float || constant instanceof Double
+                || constant instanceof String || constant instanceof Type || constant instanceof Handle;
+    }
+
+    static void pushConstant(final MethodVisitor mv, final Object constant, final Type targetType) {
+        final Type constantType;
+        if (constant instanceof Integer) {
+            constantType = Type.INT_TYPE;
+        } else if (constant instanceof Long) {
+            constantType = Type.LONG_TYPE;
+        } else if (constant instanceof Float) {
+            constantType = Type.FLOAT_TYPE;
+        } else if (constant instanceof Double) {
+            constantType = Type.DOUBLE_TYPE;
+        } else if (constant instanceof String) {
+            constantType = Type.getObjectType("java/lang/String");
+        } else if (constant instanceof Type) {
+            constantType = ((Type) constant).getSort() == Type.METHOD
+                    ? Type.getObjectType("java/lang/invoke/MethodType")
+                    : Type.getObjectType("java/lang/Class");
+        } else if (constant instanceof Handle) {
+            constantType = Type.getObjectType("java/lang/invoke/MethodHandle");
+        } else {
+            throw new IllegalStateException("Unloadable constant of type '" + constant.getClass().getCanonicalName() + "' in bootstrap method argument list");
+        }
+        mv.visitLdcInsn(constant);
+        TypeConversions.convert(mv, constantType, targetType);
+    }
+
+    private static void pushNewArray(final MethodVisitor mv, final Type elementType) {
+        switch (elementType.getSort()) {
             case Type.BOOLEAN:
-                owner = "java/lang/Boolean";
-                break;
-            case Type.BYTE:
-                owner = "java/lang/Byte";
+                mv.visitIntInsn(NEWARRAY, T_BOOLEAN);
                 break;
             case Type.CHAR:
-                owner = "java/lang/Character";
+                mv.visitIntInsn(NEWARRAY, T_CHAR);
+                break;
+            case Type.BYTE:
+                mv.visitIntInsn(NEWARRAY, T_BYTE);
                 break;
             case Type.SHORT:
-                owner = "java/lang/Short";
+                mv.visitIntInsn(NEWARRAY, T_SHORT);
                 break;
             case Type.INT:
-                owner = "java/lang/Integer";
+                mv.visitIntInsn(NEWARRAY, T_INT);
                 break;
             case Type.LONG:
-                owner = "java/lang/Long";
+                mv.visitIntInsn(NEWARRAY, T_LONG);
                 break;
             case Type.FLOAT:
-                owner = "java/lang/Float";
+                mv.visitIntInsn(NEWARRAY, T_FLOAT);
                 break;
             case Type.DOUBLE:
-                owner = "java/lang/Double";
-                break;
-            case Type.VOID:
-                owner = "java/lang/Void";
-                break;
-            default:
-                throw new IllegalStateException("type '" + primitiveType.getClassName() + "' is not primitive");
-        }
-        mv.visitFieldInsn(GETSTATIC, owner, "TYPE", "Ljava/lang/Class;");
-    }
-
-    private static void pushType(final MethodVisitor mv, final Type type) {
-        switch (type.getSort()) {
-            case Type.OBJECT: //fall through
-            case Type.ARRAY:
-                mv.visitLdcInsn(type);
+                mv.visitIntInsn(NEWARRAY, T_DOUBLE);
                 break;
             default:
-                pushPrimitiveType(mv, type);
+                mv.visitTypeInsn(ANEWARRAY, elementType.getInternalName());
                 break;
         }
     }
 
-    private static void pushTypeArray(final MethodVisitor mv, final Type[] types) {
-        mv.visitIntInsn(BIPUSH, types.length);
-        mv.visitTypeInsn(ANEWARRAY, "java/lang/Class");
-        for (int i = 0; i < types.length; ++i) {
-            mv.visitInsn(DUP);
-            mv.visitIntInsn(BIPUSH, i);
-            pushType(mv, types[i]);
-            mv.visitInsn(AASTORE);
+    private static void pushBootstrapMethodArguments(final MethodVisitor mv, final Handle bootstrapMethodHandle, final Object[] bootstrapMethodArguments) {
+        final Type[] paramTypes = Type.getArgumentTypes(bootstrapMethodHandle.getDesc());
+        final int firstStaticParamIdx = bootstrapMethodHandle.getTag() == H_INVOKESTATIC ? 3 : 2;
+        final int staticParamCount = paramTypes.length - firstStaticParamIdx;
+
+        /*
+         * no constant can be an array, so a trailing array parameter always collects the remaining static arguments
+         * the same way the JVM does for a varargs bootstrap method
+         */
+        final boolean isVarargs = staticParamCount > 0 && paramTypes[paramTypes.length - 1].getSort() == Type.ARRAY;
+        final int fixedParamCount = isVarargs ? staticParamCount - 1 : staticParamCount;
+        if (bootstrapMethodArguments.length < fixedParamCount || (!isVarargs && bootstrapMethodArguments.length != fixedParamCount)) {
+            throw new IllegalStateException("bootstrap method '" + bootstrapMethodHandle.getName() + "' cannot accept " + bootstrapMethodArguments.length + " static arguments");
         }
-    }
 
-    private static int storeCallSiteMethodDescriptor(final MethodVisitor mv, final Type methodType, int baseVarIdx) {
-        final int varIdx = baseVarIdx + 2;
-        final Type[] argTypes = methodType.getArgumentTypes();
-        pushType(mv, methodType.getReturnType());
-        pushTypeArray(mv, argTypes);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/invoke/MethodType", "methodType", "(Ljava/lang/Class;[Ljava/lang/Class;)Ljava/lang/invoke/MethodType;", false);
-        mv.visitVarInsn(ASTORE, varIdx);
-        return varIdx;
+        for (int i = 0; i < fixedParamCount; ++i) {
+            pushConstant(mv, bootstrapMethodArguments[i], paramTypes[firstStaticParamIdx + i]);
+        }
+        if (isVarargs) {
+            final Type elementType = Type.getType(paramTypes[paramTypes.length - 1].getDescriptor().substring(1));
+            pushInt(mv, bootstrapMethodArguments.length - fixedParamCount);
+            pushNewArray(mv, elementType);
+            for (int i = fixedParamCount; i < bootstrapMethodArguments.length; ++i) {
+                mv.visitInsn(DUP);
+                pushInt(mv, i - fixedParamCount);
+                pushConstant(mv, bootstrapMethodArguments[i], elementType);
+                mv.visitInsn(elementType.getOpcode(IASTORE));
+            }
+        }
     }
 
-    private static void pushMethodTypeObject(final MethodVisitor mv, final Type methodType) {
-        final Type[] argTypes = methodType.getArgumentTypes();
-        pushType(mv, methodType.getReturnType());
-        pushTypeArray(mv, argTypes);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/invoke/MethodType", "methodType", "(Ljava/lang/Class;[Ljava/lang/Class;)Ljava/lang/invoke/MethodType;", false);
+    /*
+     * whether storeCallSite can call the bootstrap method from generated code. The JVM also links call sites through
+     * the constructor of a CallSite subclass, and those are left to it
+     */
+    private static boolean isCallableBootstrapMethod(final Handle bootstrapMethodHandle) {
+        return bootstrapMethodHandle.getTag() == H_INVOKESTATIC || bootstrapMethodHandle.getTag() == H_INVOKEVIRTUAL;
     }
 
     private static int storeCallSite(final MethodVisitor mv,
@@ -127,192 +188,42 @@ public final class IndyInsnSubstitutingMethodVisitor extends MethodVisitor {
         mv.visitLdcInsn(name);
         mv.visitVarInsn(ALOAD, methodDescriptorVarIdx);
 
-        /*
-         * the JLS guarantees that bootstrapMethodArguments can contain only Class, MethodHandle, MethodType, String, int, long, float, and double types
-         */
-        for (final Object o : bootstrapMethodArguments) {
-            if (o instanceof Type) {
-                final Type t = (Type) o;
-                if (t.getSort() == Type.METHOD) {
-                    pushMethodTypeObject(mv, t);
-                } else {
-                    throw new UnsupportedOperationException("Bootstrap method arguments of type Class are not yet supported");
-                }
-            } else if (o instanceof Handle) {
-                final Handle h = (Handle) o;
-                mv.visitVarInsn(ALOAD, lookupObjectVarIdx);
-                mv.visitLdcInsn(Type.getType("L" + h.getOwner() + ";"));
-                mv.visitLdcInsn(h.getName());
-                
-                final Type t = Type.getMethodType(h.getDesc());
-                pushMethodTypeObject(mv, t);
-
-                switch (h.getTag()) {
-                    case H_INVOKESTATIC:
-                        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandles$Lookup", "findStatic", "(Ljava/lang/Class;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/MethodHandle;", false);
-                        break;
-                    case H_INVOKEVIRTUAL:
-                        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandles$Lookup", "findVirtual", "(Ljava/lang/Class;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/MethodHandle;", false);
-                        break;
-                    default:
-                        throw new UnsupportedOperationException("Method handles with a tag of '" + h.getTag() + "' are not yet supported");
-                }
-            } else if (o instanceof String) {
-                throw new UnsupportedOperationException("Bootstrap method arguments of type String are not yet supported");
-            } else if (o instanceof Integer) {
-                throw new UnsupportedOperationException("Bootstrap method arguments of type Integer are not yet supported");
-            } else if (o instanceof Long) {
-                throw new UnsupportedOperationException("Bootstrap method arguments of type Long are not yet supported");
-            } else if (o instanceof Float) {
-                throw new UnsupportedOperationException("Bootstrap method arguments of type Float are not yet supported");
-            } else if (o instanceof Double) {
-                throw new UnsupportedOperationException("Bootstrap method arguments of type Double are not yet supported");
-            } else {
-                throw new IllegalStateException("Illegal type '" + o.getClass().getCanonicalName() + "' in bootstrap method argument list");
-            }
-        }
+        pushBootstrapMethodArguments(mv, bootstrapMethodHandle, bootstrapMethodArguments);
 
-        switch (bootstrapMethodHandle.getTag()) {
-            case H_INVOKESTATIC:
-                mv.visitMethodInsn(INVOKESTATIC, bootstrapMethodHandle.getOwner(), bootstrapMethodHandle.getName(), bootstrapMethodHandle.getDesc(), bootstrapMethodHandle.isInterface());
-                break;
-            case H_INVOKEVIRTUAL:
-                mv.visitMethodInsn(INVOKEVIRTUAL, bootstrapMethodHandle.getOwner(), bootstrapMethodHandle.getName(), bootstrapMethodHandle.getDesc(), bootstrapMethodHandle.isInterface());
-                break;
-            default:
-                throw new UnsupportedOperationException("Method handles with a tag of '" + bootstrapMethodHandle.getTag() + "' are not yet supported");
-        }
+        mv.visitMethodInsn(bootstrapMethodHandle.getTag() == H_INVOKESTATIC ? INVOKESTATIC : INVOKEVIRTUAL,
+                bootstrapMethodHandle.getOwner(), bootstrapMethodHandle.getName(), bootstrapMethodHandle.getDesc(), bootstrapMethodHandle.isInterface());
         mv.visitTypeInsn(CHECKCAST, "java/lang/invoke/CallSite");
         mv.visitVarInsn(ASTORE, varIdx);
         return varIdx;
     }
 
-    private static void returnObjectProducedFromCallsiteInvocation(final MethodVisitor mv, final Type methodType, final int callsiteVarIdx) {
+    private static void returnCallSiteInvoker(final MethodVisitor mv, final int callsiteVarIdx) {
         mv.visitVarInsn(ALOAD, callsiteVarIdx);
-//        mv.visitTypeInsn(CHECKCAST, "java/lang/invoke/CallSite");
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/CallSite", "getTarget", "()Ljava/lang/invoke/MethodHandle;", false);
+        /*
+         * for a ConstantCallSite this is the target itself, and for mutable call sites it is a handle which always
+         * follows the current target, so caching it never changes the semantics of the call site
+         */
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/CallSite", "dynamicInvoker", "()Ljava/lang/invoke/MethodHandle;", false);
+        mv.visitInsn(ARETURN);
+    }
+
+    private static void returnObjectProducedFromCallsiteInvocation(final MethodVisitor mv, final Type methodType, final String holderName) {
+        mv.visitFieldInsn(GETSTATIC, holderName, CALLSITE_HOLDER_FIELD_NAME, "Ljava/lang/invoke/MethodHandle;");
 
         final Type[] argTypes = methodType.getArgumentTypes();
-        mv.visitIntInsn(BIPUSH, argTypes.length);
-        mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
-        for (int i = 0, varIdx = 0; i < argTypes.length; ++i, ++varIdx) {
-            mv.visitInsn(DUP);
-            mv.visitIntInsn(BIPUSH, i);
-            switch (argTypes[i].getSort()) {
-                case Type.BOOLEAN:
-                    mv.visitVarInsn(ILOAD, varIdx);
-                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", false);
-                    break;
-                case Type.BYTE:
-                    mv.visitVarInsn(ILOAD, varIdx);
-                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Byte", "valueOf", "(B)Ljava/lang/Byte;", false);
-                    break;
-                case Type.CHAR:
-                    mv.visitVarInsn(ILOAD, varIdx);
-                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "valueOf", "(C)Ljava/lang/Character;", false);
-                    break;
-                case Type.SHORT:
-                    mv.visitVarInsn(ILOAD, varIdx);
-                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Short", "valueOf", "(S)Ljava/lang/Short;", false);
-                    break;
-                case Type.INT:
-                    mv.visitVarInsn(ILOAD, varIdx);
-                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false);
-                    break;
-                case Type.LONG:
-                    mv.visitVarInsn(LLOAD, varIdx);
-                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "valueOf", "(J)Ljava/lang/Long;", false);
-                    varIdx += 1; //two slots used to store a long
-                    break;
-                case Type.FLOAT:
-                    mv.visitVarInsn(FLOAD, varIdx);
-                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "valueOf", "(F)Ljava/lang/Float;", false);
-                    break;
-                case Type.DOUBLE:
-                    mv.visitVarInsn(DLOAD, varIdx);
-                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", false);
-                    varIdx += 1; //two slots used to store a double
-                    break;
-                case Type.OBJECT:
-                case Type.ARRAY:
-                    mv.visitVarInsn(ALOAD, varIdx);
-                    break;
-                default:
-                    throw new UnsupportedOperationException("Callsite method arguments of type '" + argTypes[i].getClassName() + "' are not yet supported");
-            }
-            mv.visitInsn(AASTORE);
+        for (int i = 0, varIdx = 0; i < argTypes.length; varIdx += argTypes[i].getSize(), ++i) {
+            mv.visitVarInsn(argTypes[i].getOpcode(ILOAD), varIdx);
         }
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false);
 
-        final Type returnType = methodType.getReturnType();
-        switch (returnType.getSort()) {
-            case Type.BOOLEAN:
-                mv.visitTypeInsn(CHECKCAST, "java/lang/Boolean");
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
-                mv.visitInsn(IRETURN);
-                break;
-            case Type.BYTE:
-                mv.visitTypeInsn(CHECKCAST, "java/lang/Byte");
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Byte", "byteValue", "()B", false);
-                mv.visitInsn(IRETURN);
-                break;
-            case Type.CHAR:
-                mv.visitTypeInsn(CHECKCAST, "java/lang/Character");
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Character", "charValue", "()C", false);
-                mv.visitInsn(IRETURN);
-                break;
-            case Type.SHORT:
-                mv.visitTypeInsn(CHECKCAST, "java/lang/Short");
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Short", "shortValue", "()S", false);
-                mv.visitInsn(IRETURN);
-                break;
-            case Type.INT:
-                mv.visitTypeInsn(CHECKCAST, "java/lang/Integer");
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I", false);
-                mv.visitInsn(IRETURN);
-                break;
-            case Type.LONG:
-                mv.visitTypeInsn(CHECKCAST, "java/lang/Long");
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Long", "longValue", "()J", false);
-                mv.visitInsn(LRETURN);
-                break;
-            case Type.FLOAT:
-                mv.visitTypeInsn(CHECKCAST, "java/lang/Float");
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Float", "floatValue", "()F", false);
-                mv.visitInsn(FRETURN);
-                break;
-            case Type.DOUBLE:
-                mv.visitTypeInsn(CHECKCAST, "java/lang/Double");
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D", false);
-                mv.visitInsn(DRETURN);
-                break;
-            case Type.VOID:
-                mv.visitInsn(RETURN);
-                break;
-            case Type.OBJECT: //fall through
-            case Type.ARRAY:
-                mv.visitTypeInsn(CHECKCAST, returnType.getClassName().replace('.', '/'));
-                mv.visitInsn(ARETURN);
-                break;
-            default:
-                throw new UnsupportedOperationException("Callsite return values of type '" + returnType.getClassName() + "' are not yet supported");
-        }
-    }
+        /*
+         * invokeExact is signature polymorphic, so using the call site's own descriptor passes every argument and the
+         * result in its native type with no boxing, no varargs array and no asType adaptation. The invoker always has
+         * exactly the call site's type, since the bootstrap method is required to produce a call site of that type
+         */
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", methodType.getDescriptor(), false);
 
-    private static int calculateBaseVarIdx(final Type[] argTypes) {
-        int varIdx = -1;
-        for (final Type t : argTypes) {
-            switch (t.getSort()) {
-                case Type.DOUBLE: //fall through
-                case Type.LONG:
-                    varIdx += 2;
-                    break;
-                default:
-                    varIdx += 1;
-                    break;
-            }
-        }
-        return varIdx;
+        final Type returnType = methodType.getReturnType();
+        mv.visitInsn(returnType.getSort() == Type.VOID ? RETURN : returnType.getOpcode(IRETURN));
     }
 
     private static class MethodDescriptor {
@@ -327,30 +238,191 @@ public final class IndyInsnSubstitutingMethodVisitor extends MethodVisitor {
         }
     }
 
-    private MethodDescriptor createCallsiteInvokerMethod(final String callsiteName, final String callsiteDescriptor, final Handle bootstrapMethodHandle, final Object[] bootstrapMethodArguments) {
-        final String generatedName = callerMethodName + "$indy$" + generationMethodID++;
-        final MethodVisitor mv = cv.visitMethod(
-                Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
-                generatedName, callsiteDescriptor, null, null);
+    /*
+     * with telemetry, the holder also times the bootstrap and keeps the invocation counter of the call site, which
+     * telemetrySiteName and telemetryBootstrapName describe. A bootstrap method shared by several call sites is passed
+     * bootstrapCase to tell which one to link, which is -1 for a bootstrap method of its own
+     */
+    private static byte[] createCallsiteHolderClass(final int version, final String holderName, final String hostName,
+                                                    final boolean hostIsInterface, final String bootstrapName, final int bootstrapCase,
+                                                    final String telemetrySiteName, final String telemetryBootstrapName) {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(version, Opcodes.ACC_FINAL + Opcodes.ACC_SUPER + Opcodes.ACC_SYNTHETIC, holderName, null, "java/lang/Object", null);
+        cw.visitField(Opcodes.ACC_STATIC + Opcodes.ACC_FINAL + Opcodes.ACC_SYNTHETIC,
+                CALLSITE_HOLDER_FIELD_NAME, "Ljava/lang/invoke/MethodHandle;", null, null).visitEnd();
+        if (telemetrySiteName != null) {
+            cw.visitField(Opcodes.ACC_STATIC + Opcodes.ACC_FINAL + Opcodes.ACC_SYNTHETIC,
+                    INVOCATION_COUNTER_FIELD_NAME, INVOCATION_COUNTER_DESCRIPTOR, null, null).visitEnd();
+        }
+
+        final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        if (telemetrySiteName != null) {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+            mv.visitVarInsn(LSTORE, 0);
+        }
+        if (bootstrapCase >= 0) {
+            pushInt(mv, bootstrapCase);
+            mv.visitMethodInsn(INVOKESTATIC, hostName, bootstrapName, "(I)Ljava/lang/invoke/MethodHandle;", hostIsInterface);
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, hostName, bootstrapName, "()Ljava/lang/invoke/MethodHandle;", hostIsInterface);
+        }
+        mv.visitFieldInsn(PUTSTATIC, holderName, CALLSITE_HOLDER_FIELD_NAME, "Ljava/lang/invoke/MethodHandle;");
+        if (telemetrySiteName != null) {
+            mv.visitLdcInsn(telemetrySiteName);
+            mv.visitLdcInsn(telemetryBootstrapName);
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+            mv.visitVarInsn(LLOAD, 0);
+            mv.visitInsn(LSUB);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(CallSiteTelemetry.class), "registerCallSite",
+                    "(Ljava/lang/String;Ljava/lang/String;J)" + INVOCATION_COUNTER_DESCRIPTOR, false);
+            mv.visitFieldInsn(PUTSTATIC, holderName, INVOCATION_COUNTER_FIELD_NAME, INVOCATION_COUNTER_DESCRIPTOR);
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    static void createCallsiteBootstrapMethod(final IndyInsnSubstitutingClassVisitor owner, final String bootstrapName,
+                                              final String callsiteName, final String callsiteDescriptor,
+                                              final Handle bootstrapMethodHandle, final Object[] bootstrapMethodArguments) {
+        /*
+         * the holder class has to be able to call this, and interface methods can only be public or private
+         */
+        final int access = owner.isInterface() ? Opcodes.ACC_PUBLIC : 0;
+        final MethodVisitor mv = owner.visitGeneratedMethod(
+                access + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+                bootstrapName, "()Ljava/lang/invoke/MethodHandle;");
 
         mv.visitCode();
         final Type callsiteMethodType = Type.getMethodType(callsiteDescriptor);
-        final int baseVarIdx = calculateBaseVarIdx(callsiteMethodType.getArgumentTypes());
+        final int baseVarIdx = -1;
 
         final int lookupVarIdx = storeMethodHandleLookupObject(mv, baseVarIdx);
         final int descVarIdx = storeCallSiteMethodDescriptor(mv, callsiteMethodType, baseVarIdx);
         final int callsiteVarIdx = storeCallSite(mv, callsiteName, bootstrapMethodHandle, bootstrapMethodArguments, lookupVarIdx, descVarIdx, baseVarIdx);
-        returnObjectProducedFromCallsiteInvocation(mv, callsiteMethodType, callsiteVarIdx);
+        returnCallSiteInvoker(mv, callsiteVarIdx);
 
-        mv.visitMaxs(12, 4 + baseVarIdx);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /*
+     * the holder of the call site replaced by the helper generatedName, whose invoker the bootstrap method bootstrapName
+     * returns
+     */
+    static void defineCallsiteHolderClass(final IndyInsnSubstitutingClassVisitor owner, final String hostName, final String generatedName,
+                                          final String bootstrapName, final int bootstrapCase, final Handle bootstrapMethodHandle) {
+        final String holderName = getHolderName(hostName, generatedName);
+        final boolean recordTelemetry = owner.isRecordingTelemetry();
+        owner.defineGeneratedClass(holderName, createCallsiteHolderClass(owner.getClassVersion(), holderName, hostName, owner.isInterface(),
+                bootstrapName, bootstrapCase,
+                recordTelemetry ? hostName.replace('/', '.') + '.' + generatedName : null,
+                recordTelemetry ? bootstrapMethodHandle.getOwner().replace('/', '.') + '.' + bootstrapMethodHandle.getName() : null));
+    }
+
+    private static String getHolderName(final String hostName, final String generatedName) {
+        return hostName + "$" + generatedName;
+    }
+
+    private MethodDescriptor createCallsiteInvokerMethod(final String callsiteName, final String callsiteDescriptor, final Handle bootstrapMethodHandle, final Object[] bootstrapMethodArguments) {
+        final String generatedName = callerMethodName + "$indy$" + owner.nextGenerationMethodID();
+        final String holderName = getHolderName(className, generatedName);
+
+        /*
+         * the call site is bootstrapped once, when the holder class is initialized on the first invocation, and its
+         * invoker is kept in a static final field so the JIT can treat it as a constant. With the shared runtime, the
+         * bootstrap method and holder are generated once all call sites of the class are known
+         */
+        if (owner.usesSharedRuntime()) {
+            owner.getSharedRuntimeBootstrap().addCallSite(generatedName, callsiteName, callsiteDescriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        } else {
+            final String bootstrapName = generatedName + "$bootstrap";
+            createCallsiteBootstrapMethod(owner, bootstrapName, callsiteName, callsiteDescriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+            defineCallsiteHolderClass(owner, className, generatedName, bootstrapName, -1, bootstrapMethodHandle);
+        }
+        final boolean recordTelemetry = owner.isRecordingTelemetry();
+
+        final MethodVisitor mv = owner.visitGeneratedMethod(
+                Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+                generatedName, callsiteDescriptor);
+
+        mv.visitCode();
+        if (recordTelemetry) {
+            mv.visitFieldInsn(GETSTATIC, holderName, INVOCATION_COUNTER_FIELD_NAME, INVOCATION_COUNTER_DESCRIPTOR);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/concurrent/atomic/LongAdder", "increment", "()V", false);
+        }
+        final Type callsiteMethodType = Type.getMethodType(callsiteDescriptor);
+        returnObjectProducedFromCallsiteInvocation(mv, callsiteMethodType, holderName);
+
+        mv.visitMaxs(0, 0);
         mv.visitEnd();
 
         return new MethodDescriptor(generatedName, callsiteDescriptor);
     }
 
+    private CallSiteReplacement createCallSiteReplacement(final String callsiteName, final String callsiteDescriptor,
+                                                          final Handle bootstrapMethodHandle, final Object[] bootstrapMethodArguments) {
+        if (LambdaClassGenerator.isLambdaMetafactory(bootstrapMethodHandle)) {
+            return new LambdaClassGenerator(owner, className, owner.nextGenerationMethodID(), callsiteName, callsiteDescriptor, bootstrapMethodArguments)
+                    .generate();
+        }
+        if (StringConcatGenerator.isStringConcatFactory(bootstrapMethodHandle)) {
+            return new StringConcatGenerator(owner, className, callerMethodName + "$concat$" + owner.nextGenerationMethodID(), callsiteDescriptor, bootstrapMethodHandle, bootstrapMethodArguments)
+                    .generate();
+        }
+        if (ObjectMethodsGenerator.isObjectMethods(bootstrapMethodHandle)
+                && ObjectMethodsGenerator.isExpandable(callsiteName, owner.allowsBranchingCode())) {
+            final ObjectMethodsGenerator generator = ObjectMethodsGenerator.forCallSite(owner, className, callerMethodName + "$record$" + owner.nextGenerationMethodID(),
+                    callsiteName, callsiteDescriptor, bootstrapMethodArguments);
+            if (generator != null) {
+                return generator.generate();
+            }
+        }
+        final MethodDescriptor m = createCallsiteInvokerMethod(callsiteName, callsiteDescriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        return CallSiteReplacement.invokeStatic(className, m.name, m.desc, owner.isInterface());
+    }
+
+    /*
+     * call sites are left as they are when the policy denies them, or when nothing can replace them: concatenations
+     * which are not expanded, bootstrap methods which generated code cannot call, and bootstrap method arguments which
+     * it cannot load. The special bootstrap methods are all static, so only generic call sites are kept for the second
+     */
+    private boolean keepsCallSite(final String callsiteDescriptor, final Handle bootstrapMethodHandle, final Object[] bootstrapMethodArguments) {
+        if (!owner.allowsRewrite(methodName, bootstrapMethodHandle) || !isCallableBootstrapMethod(bootstrapMethodHandle)) {
+            return true;
+        }
+        for (final Object argument : bootstrapMethodArguments) {
+            if (!isLoadableConstant(argument)) {
+                return true;
+            }
+        }
+        return StringConcatGenerator.isStringConcatFactory(bootstrapMethodHandle)
+                && !StringConcatGenerator.isExpandable(callsiteDescriptor, bootstrapMethodHandle, bootstrapMethodArguments, owner.allowsBranchingCode());
+    }
+
+    /*
+     * generic call sites report their telemetry under the helper of the method they are in, which is what
+     * RewritePolicyGenerator allows or denies, so with telemetry they are only shared within that method
+     */
+    private String getTelemetryScope(final Handle bootstrapMethodHandle) {
+        return owner.isRecordingTelemetry() && !LambdaClassGenerator.isLambdaMetafactory(bootstrapMethodHandle)
+                && !StringConcatGenerator.isStringConcatFactory(bootstrapMethodHandle) ? methodName : null;
+    }
+
     @Override
     public void visitInvokeDynamicInsn(final String callsiteName, final String callsiteDescriptor, final Handle bootstrapMethodHandle, final Object[] bootstrapMethodArguments) {
-        final MethodDescriptor m = createCallsiteInvokerMethod(callsiteName, callsiteDescriptor, bootstrapMethodHandle, bootstrapMethodArguments);
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, m.name, m.desc, false);
+        if (keepsCallSite(callsiteDescriptor, bootstrapMethodHandle, bootstrapMethodArguments)) {
+            super.visitInvokeDynamicInsn(callsiteName, callsiteDescriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+            return;
+        }
+        owner.markCallSiteRewritten();
+        final List<Object> callSiteKey = Arrays.asList(callsiteName, callsiteDescriptor, bootstrapMethodHandle, Arrays.asList(bootstrapMethodArguments),
+                getTelemetryScope(bootstrapMethodHandle));
+        owner.getCallSiteReplacement(callSiteKey, () -> createCallSiteReplacement(callsiteName, callsiteDescriptor, bootstrapMethodHandle, bootstrapMethodArguments))
+                .emit(mv);
     }
 }
@@ -0,0 +1,21 @@
+package io.github.foundry27.snakepit;
+
+import java.nio.file.Path;
+import java.util.TreeSet;
+
+/**
+ * Stands in for the reader of JFR execution samples on Java 8, which cannot read flight recordings. Like
+ * {@link TransformMetricsEvents}, Java 11 and up use the version under {@code src/main/java11}.
+ *
+ * @author Foundry
+ */
+final class JfrExecutionSamples {
+
+    private JfrExecutionSamples() {
+        throw new UnsupportedOperationException();
+    }
+
+    static TreeSet<String> getHotMethods(final Path recording, final long minSamples) {
+        throw new UnsupportedOperationException("flight recordings can only be read on Java 11 and up");
+    }
+}
@@ -0,0 +1,351 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.*;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Expands call sites bootstrapped by {@code LambdaMetafactory} into concrete classes at transform time, so that no
+ * lambda class has to be spun at runtime.
+ *
+ * @author Foundry
+ */
+final class LambdaClassGenerator {
+
+    private static final String LAMBDA_METAFACTORY = "java/lang/invoke/LambdaMetafactory";
+
+    private static final String FACTORY_METHOD_NAME = "get$Lambda";
+
+    private static final String INSTANCE_FIELD_NAME = "LAMBDA_INSTANCE$";
+
+    private static final int FLAG_SERIALIZABLE = 1;
+
+    private static final int FLAG_MARKERS = 1 << 1;
+
+    private static final int FLAG_BRIDGES = 1 << 2;
+
+    private final IndyInsnSubstitutingClassVisitor owner;
+
+    private final String hostName;
+
+    private final String lambdaName;
+
+    private final String accessorName;
+
+    private final String samName;
+
+    private final Type factoryType;
+
+    private final Type samMethodType;
+
+    private final Handle implMethod;
+
+    private final Type instantiatedMethodType;
+
+    private final boolean isSerializable;
+
+    private final Set<String> interfaces;
+
+    private final Set<Type> bridges;
+
+    LambdaClassGenerator(final IndyInsnSubstitutingClassVisitor owner, final String hostName, final long generationID,
+                         final String callsiteName, final String callsiteDescriptor, final Object[] bootstrapMethodArguments) {
+        this.owner = owner;
+        this.hostName = hostName;
+        this.lambdaName = hostName + "$$Lambda$" + generationID;
+        this.accessorName = "access$lambda$" + generationID;
+        this.samName = callsiteName;
+        this.factoryType = Type.getMethodType(callsiteDescriptor);
+        this.samMethodType = (Type) bootstrapMethodArguments[0];
+        this.implMethod = (Handle) bootstrapMethodArguments[1];
+        this.instantiatedMethodType = (Type) bootstrapMethodArguments[2];
+        this.interfaces = new LinkedHashSet<>();
+        this.bridges = new LinkedHashSet<>();
+        this.interfaces.add(factoryType.getReturnType().getInternalName());
+
+        /*
+         * altMetafactory appends an int of flags, then optionally a count followed by that many marker interfaces,
+         * then optionally a count followed by that many bridge method types
+         */
+        int flags = 0;
+        int argIdx = 3;
+        if (bootstrapMethodArguments.length > argIdx) {
+            flags = (Integer) bootstrapMethodArguments[argIdx++];
+        }
+        if ((flags & FLAG_MARKERS) != 0) {
+            final int markerCount = (Integer) bootstrapMethodArguments[argIdx++];
+            for (int i = 0; i < markerCount; ++i) {
+                interfaces.add(((Type) bootstrapMethodArguments[argIdx++]).getInternalName());
+            }
+        }
+        if ((flags & FLAG_BRIDGES) != 0) {
+            final int bridgeCount = (Integer) bootstrapMethodArguments[argIdx++];
+            for (int i = 0; i < bridgeCount; ++i) {
+                bridges.add((Type) bootstrapMethodArguments[argIdx++]);
+            }
+        }
+        bridges.remove(samMethodType);
+        this.isSerializable = (flags & FLAG_SERIALIZABLE) != 0;
+        if (isSerializable) {
+            interfaces.add("java/io/Serializable");
+        }
+    }
+
+    static boolean isLambdaMetafactory(final Handle bootstrapMethodHandle) {
+        return bootstrapMethodHandle.getTag() == H_INVOKESTATIC
+                && LAMBDA_METAFACTORY.equals(bootstrapMethodHandle.getOwner())
+                && ("metafactory".equals(bootstrapMethodHandle.getName()) || "altMetafactory".equals(bootstrapMethodHandle.getName()));
+    }
+
+    /**
+     * Generates the lambda class, plus an accessor in the host class if the implementation method cannot be invoked
+     * from outside of it, and returns the instruction which replaces the call site.
+     */
+    CallSiteReplacement generate() {
+        if (requiresAccessor()) {
+            createAccessorMethod();
+        }
+        owner.defineGeneratedClass(lambdaName, createLambdaClass());
+
+        if (factoryType.getArgumentTypes().length == 0) {
+            return CallSiteReplacement.getStatic(lambdaName, INSTANCE_FIELD_NAME, "L" + lambdaName + ";");
+        } else {
+            return CallSiteReplacement.invokeStatic(lambdaName, FACTORY_METHOD_NAME, factoryType.getDescriptor(), false);
+        }
+    }
+
+    /*
+     * members of the host class are usually private synthetic lambda bodies, and invokespecial can only be issued
+     * from the class it names, so both go through a static accessor placed in the host. So do members of the other
+     * classes of the host's nest, which javac 11 and up refers to directly even when they are private: the host may
+     * access them as a nestmate, but the lambda class is not part of the nest
+     */
+    private boolean requiresAccessor() {
+        return hostName.equals(implMethod.getOwner()) || implMethod.getTag() == H_INVOKESPECIAL
+                || owner.isPossibleNestmate(implMethod.getOwner());
+    }
+
+    private Type[] getImplParameterTypes() {
+        final Type[] argTypes = Type.getArgumentTypes(implMethod.getDesc());
+        switch (implMethod.getTag()) {
+            case H_INVOKESTATIC: //fall through
+            case H_NEWINVOKESPECIAL:
+                return argTypes;
+            case H_INVOKEVIRTUAL: //fall through
+            case H_INVOKEINTERFACE:
+            case H_INVOKESPECIAL:
+                final Type[] withReceiver = new Type[argTypes.length + 1];
+                withReceiver[0] = implMethod.getTag() == H_INVOKESPECIAL ? Type.getObjectType(hostName) : Type.getObjectType(implMethod.getOwner());
+                System.arraycopy(argTypes, 0, withReceiver, 1, argTypes.length);
+                return withReceiver;
+            default:
+                throw new UnsupportedOperationException("Lambda implementation methods with a tag of '" + implMethod.getTag() + "' are not yet supported");
+        }
+    }
+
+    private Type getImplReturnType() {
+        return implMethod.getTag() == H_NEWINVOKESPECIAL ? Type.getObjectType(implMethod.getOwner()) : Type.getReturnType(implMethod.getDesc());
+    }
+
+    private void invokeImplMethod(final MethodVisitor mv) {
+        switch (implMethod.getTag()) {
+            case H_INVOKESTATIC:
+                mv.visitMethodInsn(INVOKESTATIC, implMethod.getOwner(), implMethod.getName(), implMethod.getDesc(), implMethod.isInterface());
+                break;
+            case H_INVOKEVIRTUAL:
+                mv.visitMethodInsn(INVOKEVIRTUAL, implMethod.getOwner(), implMethod.getName(), implMethod.getDesc(), implMethod.isInterface());
+                break;
+            case H_INVOKEINTERFACE:
+                mv.visitMethodInsn(INVOKEINTERFACE, implMethod.getOwner(), implMethod.getName(), implMethod.getDesc(), true);
+                break;
+            case H_INVOKESPECIAL: //fall through
+            case H_NEWINVOKESPECIAL:
+                mv.visitMethodInsn(INVOKESPECIAL, implMethod.getOwner(), implMethod.getName(), implMethod.getDesc(), implMethod.isInterface());
+                break;
+            default:
+                throw new UnsupportedOperationException("Lambda implementation methods with a tag of '" + implMethod.getTag() + "' are not yet supported");
+        }
+    }
+
+    private String getAccessorDescriptor() {
+        return Type.getMethodDescriptor(getImplReturnType(), getImplParameterTypes());
+    }
+
+    private void createAccessorMethod() {
+        final int access = owner.isInterface() ? ACC_PUBLIC : 0;
+        final MethodVisitor mv = owner.visitGeneratedMethod(access + ACC_STATIC + ACC_SYNTHETIC, accessorName, getAccessorDescriptor());
+        mv.visitCode();
+        if (implMethod.getTag() == H_NEWINVOKESPECIAL) {
+            mv.visitTypeInsn(NEW, implMethod.getOwner());
+            mv.visitInsn(DUP);
+        }
+        int varIdx = 0;
+        for (final Type t : getImplParameterTypes()) {
+            mv.visitVarInsn(t.getOpcode(ILOAD), varIdx);
+            varIdx += t.getSize();
+        }
+        invokeImplMethod(mv);
+        mv.visitInsn(getImplReturnType().getOpcode(IRETURN));
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private byte[] createLambdaClass() {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(owner.getClassVersion(), ACC_FINAL + ACC_SUPER + ACC_SYNTHETIC, lambdaName, null, "java/lang/Object",
+                interfaces.toArray(new String[0]));
+
+        final Type[] capturedTypes = factoryType.getArgumentTypes();
+        for (int i = 0; i < capturedTypes.length; ++i) {
+            cw.visitField(ACC_PRIVATE + ACC_FINAL, getCapturedFieldName(i), capturedTypes[i].getDescriptor(), null, null).visitEnd();
+        }
+
+        createConstructor(cw, capturedTypes);
+        if (capturedTypes.length == 0) {
+            createSingletonInitializer(cw);
+        } else {
+            createFactoryMethod(cw, capturedTypes);
+        }
+
+        createForwardingMethod(cw, samMethodType, capturedTypes);
+        for (final Type bridge : bridges) {
+            createForwardingMethod(cw, bridge, capturedTypes);
+        }
+        if (isSerializable) {
+            createWriteReplaceMethod(cw, capturedTypes);
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static String getCapturedFieldName(final int capturedIdx) {
+        return "arg$" + (capturedIdx + 1);
+    }
+
+    private void createConstructor(final ClassWriter cw, final Type[] capturedTypes) {
+        final MethodVisitor mv = cw.visitMethod(ACC_PRIVATE, "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, capturedTypes), null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        for (int i = 0, varIdx = 1; i < capturedTypes.length; varIdx += capturedTypes[i].getSize(), ++i) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(capturedTypes[i].getOpcode(ILOAD), varIdx);
+            mv.visitFieldInsn(PUTFIELD, lambdaName, getCapturedFieldName(i), capturedTypes[i].getDescriptor());
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void createSingletonInitializer(final ClassWriter cw) {
+        cw.visitField(ACC_STATIC + ACC_FINAL, INSTANCE_FIELD_NAME, "L" + lambdaName + ";", null, null).visitEnd();
+
+        final MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        mv.visitTypeInsn(NEW, lambdaName);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, lambdaName, "<init>", "()V", false);
+        mv.visitFieldInsn(PUTSTATIC, lambdaName, INSTANCE_FIELD_NAME, "L" + lambdaName + ";");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void createFactoryMethod(final ClassWriter cw, final Type[] capturedTypes) {
+        final MethodVisitor mv = cw.visitMethod(ACC_STATIC, FACTORY_METHOD_NAME, factoryType.getDescriptor(), null, null);
+        mv.visitCode();
+        mv.visitTypeInsn(NEW, lambdaName);
+        mv.visitInsn(DUP);
+        for (int i = 0, varIdx = 0; i < capturedTypes.length; varIdx += capturedTypes[i].getSize(), ++i) {
+            mv.visitVarInsn(capturedTypes[i].getOpcode(ILOAD), varIdx);
+        }
+        mv.visitMethodInsn(INVOKESPECIAL, lambdaName, "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, capturedTypes), false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void createForwardingMethod(final ClassWriter cw, final Type methodType, final Type[] capturedTypes) {
+        final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, samName, methodType.getDescriptor(), null, null);
+        mv.visitCode();
+
+        final boolean useAccessor = requiresAccessor();
+        if (implMethod.getTag() == H_NEWINVOKESPECIAL && !useAccessor) {
+            mv.visitTypeInsn(NEW, implMethod.getOwner());
+            mv.visitInsn(DUP);
+        }
+
+        final Type[] implParamTypes = getImplParameterTypes();
+        int implParamIdx = 0;
+        for (int i = 0; i < capturedTypes.length; ++i) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, lambdaName, getCapturedFieldName(i), capturedTypes[i].getDescriptor());
+            TypeConversions.convert(mv, capturedTypes[i], implParamTypes[implParamIdx++]);
+        }
+
+        final Type[] argTypes = methodType.getArgumentTypes();
+        final Type[] instantiatedArgTypes = instantiatedMethodType.getArgumentTypes();
+        for (int i = 0, varIdx = 1; i < argTypes.length; varIdx += argTypes[i].getSize(), ++i) {
+            mv.visitVarInsn(argTypes[i].getOpcode(ILOAD), varIdx);
+            TypeConversions.convert(mv, argTypes[i], instantiatedArgTypes[i]);
+            TypeConversions.convert(mv, instantiatedArgTypes[i], implParamTypes[implParamIdx++]);
+        }
+
+        if (useAccessor) {
+            mv.visitMethodInsn(INVOKESTATIC, hostName, accessorName, getAccessorDescriptor(), owner.isInterface());
+        } else {
+            invokeImplMethod(mv);
+        }
+
+        final Type implReturnType = getImplReturnType();
+        final Type returnType = methodType.getReturnType();
+        if (returnType.getSort() == Type.VOID) {
+            if (implReturnType.getSize() == 2) {
+                mv.visitInsn(POP2);
+            } else if (implReturnType.getSize() == 1) {
+                mv.visitInsn(POP);
+            }
+        } else {
+            TypeConversions.convert(mv, implReturnType, instantiatedMethodType.getReturnType());
+            TypeConversions.convert(mv, instantiatedMethodType.getReturnType(), returnType);
+        }
+        mv.visitInsn(returnType.getOpcode(IRETURN));
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void createWriteReplaceMethod(final ClassWriter cw, final Type[] capturedTypes) {
+        final MethodVisitor mv = cw.visitMethod(ACC_PRIVATE + ACC_FINAL, "writeReplace", "()Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        mv.visitTypeInsn(NEW, "java/lang/invoke/SerializedLambda");
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(Type.getObjectType(hostName));
+        mv.visitLdcInsn(factoryType.getReturnType().getInternalName());
+        mv.visitLdcInsn(samName);
+        mv.visitLdcInsn(samMethodType.getDescriptor());
+        mv.visitLdcInsn(implMethod.getTag());
+        mv.visitLdcInsn(implMethod.getOwner());
+        mv.visitLdcInsn(implMethod.getName());
+        mv.visitLdcInsn(implMethod.getDesc());
+        mv.visitLdcInsn(instantiatedMethodType.getDescriptor());
+        mv.visitLdcInsn(capturedTypes.length);
+        mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+        for (int i = 0; i < capturedTypes.length; ++i) {
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn(i);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, lambdaName, getCapturedFieldName(i), capturedTypes[i].getDescriptor());
+            TypeConversions.convert(mv, capturedTypes[i], Type.getObjectType("java/lang/Object"));
+            mv.visitInsn(AASTORE);
+        }
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/invoke/SerializedLambda", "<init>",
+                "(Ljava/lang/Class;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;ILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;[Ljava/lang/Object;)V", false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+}
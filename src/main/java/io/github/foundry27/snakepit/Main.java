@@ -1,147 +1,796 @@
 package io.github.foundry27.snakepit;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
 
 import java.io.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.stream.StreamSupport;
 
 /**
  * @author Foundry
  */
 public final class Main {
-    private static File getSourceFile(final String[] args) {
-        if (args.length > 0) {
-            return new File(args[0]);
+
+    /*
+     * how many entries each worker may have in flight ahead of the writer before submission blocks
+     */
+    private static final int ENTRIES_IN_FLIGHT_PER_JOB = 8;
+
+    /*
+     * the size from which an entry which is only recompressed is streamed through a temporary file instead of being
+     * read into memory, which also lifts the limit of arrays on its size
+     */
+    private static final long SPOOLED_ENTRY_SIZE = 1 << 20;
+
+    private static final String SHARED_RUNTIME_CLASS_NAME = Type.getInternalName(SnakepitRuntime.class);
+
+    private static final String TELEMETRY_CLASS_NAME = Type.getInternalName(CallSiteTelemetry.class);
+
+    /*
+     * the classes added to an archive whose rewritten classes refer to the shared runtime or to the telemetry, which
+     * the archive cannot be expected to have on its classpath outside of the agent
+     */
+    private static final List<String> SHARED_RUNTIME_CLASS_NAMES = getRuntimeClassNames(SnakepitRuntime.class);
+
+    private static final List<String> TELEMETRY_CLASS_NAMES = getRuntimeClassNames(CallSiteTelemetry.class, CallSiteTelemetryMXBean.class);
+
+    /*
+     * 1980-01-01 00:00, the earliest MS-DOS timestamp, which the added runtime classes get so that output stays
+     * deterministic
+     */
+    private static final int DOS_EPOCH = ((1 << 5) | 1) << 16;
+
+    /**
+     * Transforms an archive as described by {@link TransformOptions}. Given {@code --serve <file>} as its first
+     * arguments instead, runs a {@link SnakepitDaemon}, and given {@code --connect <file>}, runs the rest of the
+     * arguments on the daemon which wrote that file. Given {@code --policy-from}, generates a {@link RewritePolicy} with
+     * {@link RewritePolicyGenerator}.
+     */
+    public static void main(final String[] args) throws IOException  {
+        if (args.length >= 1 && "--policy-from".equals(args[0])) {
+            RewritePolicyGenerator.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length >= 2 && "--serve".equals(args[0])) {
+            SnakepitDaemon.serve(Paths.get(args[1]));
+            return;
+        }
+        if (args.length >= 2 && "--connect".equals(args[0])) {
+            System.exit(SnakepitDaemon.submit(Paths.get(args[1]), Arrays.copyOfRange(args, 2, args.length)));
+        }
+        final TransformOptions options = TransformOptions.parse(args);
+        if (options.scanOnly) {
+            printBootstrapMethodReport(options, System.out);
         } else {
-            throw new IllegalStateException("an input file name must be specified as a first argument");
+            try (final SnakepitTransformer transformer = new SnakepitTransformer(options)) {
+                transformer.transform(options, System.out);
+                final TransformCache cache = transformer.getCache();
+                if (cache != null) {
+                    System.out.println("transform cache: " + cache.getHitCount() + " hits, " + cache.getMissCount() + " misses");
+                }
+            }
+        }
+    }
+
+    /*
+     * the state a transformer keeps between archives is passed in: dependencies are the classes of the classpath and the
+     * platform, which the classes of the archive are looked up before, and executor is the one to transform entries on
+     * with more than one job, or null to start one for this archive
+     */
+    static void transform(final TransformOptions options, final TransformCache cache, final ClassHierarchy dependencies,
+                          final ExecutorService executor, final PrintStream out) throws IOException {
+        final long startNanos = System.nanoTime();
+        final TransformMetrics metrics = new TransformMetrics(options.metricsFileName != null
+                || TransformMetricsEvents.isAvailable() && TransformMetricsEvents.isRecordingBootstrapConstants());
+        try (final ZipArchiveReader reader = new ZipArchiveReader(options.sourceFile.toPath())) {
+            final ClassHierarchy hierarchy = ClassHierarchy.ofArchives(Collections.singletonList(reader), dependencies);
+            writeTransformedEntries(reader, reader.getEntries(), new EntryTransformer(reader, hierarchy, cache, options, metrics),
+                    executor, options);
         }
+        metrics.setWallNanos(System.nanoTime() - startNanos);
+        metrics.setArchiveSizes(Files.size(options.sourceFile.toPath()), Files.size(Paths.get(options.outputFileName)));
+        reportMetrics(metrics, cache, options, out);
     }
 
-    private static String getOutputFileName(final String[] args) {
-        if (args.length > 1) {
-            return args[1];
+    private static void writeTransformedEntries(final ZipArchiveReader reader, final List<ZipArchiveEntry> entries, final EntryTransformer transformer,
+                                                final ExecutorService executor, final TransformOptions options) throws IOException {
+        if (options.jobs > 1) {
+            final ExecutorService workers = executor != null ? executor : newWorkerPool(options.jobs);
+            try (final Stream<FileData> transformed = streamTransformedEntriesInParallel(entries, transformer, workers,
+                    options.jobs * ENTRIES_IN_FLIGHT_PER_JOB, options.maxBufferedBytes)) {
+                saveDataToJar(reader, transformed, options.outputFileName, transformer);
+            } finally {
+                if (workers != executor) {
+                    workers.shutdownNow();
+                }
+            }
         } else {
-            return "out.jar";
+            saveDataToJar(reader, entries.stream().flatMap(e -> transformer.transform(e).stream()), options.outputFileName, transformer);
         }
     }
 
-    public static void main(final String[] args) throws IOException  {
-        final File sourceFile = getSourceFile(args);
-        final String outputFileName = getOutputFileName(args);
-        try (final JarFile jarFile = new JarFile(sourceFile)) {
-            final Stream<EagerFileData> dataStream = Stream.concat(
-                    streamClassFilesInJar(jarFile).map(Main::getTransformedClassBytes),
-                    streamNonClassFilesFromJar(jarFile).map(Main::toEagerData)
-            );
-            saveDataToJar(dataStream, outputFileName);
+    static ExecutorService newWorkerPool(final int jobs) {
+        return Executors.newFixedThreadPool(jobs, Main::newWorkerThread);
+    }
+
+    private static void reportMetrics(final TransformMetrics metrics, final TransformCache cache, final TransformOptions options,
+                                      final PrintStream out) throws IOException {
+        if (TransformMetricsEvents.isAvailable()) {
+            TransformMetricsEvents.commit(metrics, options.sourceFile.getPath(), options.outputFileName);
+        }
+        if (options.metricsFileName == null) {
+            return;
+        }
+        final Map<String, Long> extra = new LinkedHashMap<>();
+        extra.put("jobs", (long) options.jobs);
+        if (cache != null) {
+            extra.put("cacheHits", (long) cache.getHitCount());
+            extra.put("cacheMisses", (long) cache.getMissCount());
+        }
+        final String json = metrics.toJson(options.sourceFile.getPath(), options.outputFileName, extra);
+        if ("-".equals(options.metricsFileName)) {
+            out.print(json);
+        } else {
+            Files.write(Paths.get(options.metricsFileName), json.getBytes(StandardCharsets.UTF_8));
         }
     }
 
+    private static Thread newWorkerThread(final Runnable r) {
+        final Thread t = new Thread(r, "snakepit-worker");
+        t.setDaemon(true);
+        return t;
+    }
+
     private static boolean areHeaderBytesValue(final byte first, final byte second, final byte third, final byte fourth) {
         return first == (byte) 0xCA && second == (byte) 0xFE && third == (byte) 0xBA && fourth == (byte) 0xBE;
     }
 
-    private static ClassReader readClassBytesFromEntry(final JarFile jar, final JarEntry entry) {
-        try (final InputStream jis = jar.getInputStream(entry)) {
-            final byte[] bytes = toByteArray(jis);
-
-            if (areHeaderBytesValue(bytes[0], bytes[1], bytes[2], bytes[3])) {
-                return new ClassReader(bytes);
+    private static byte[] readClassBytesFromEntry(final ZipArchiveReader reader, final ZipArchiveEntry entry) {
+        try {
+            final byte[] bytes = reader.readData(entry);
+            if (bytes.length >= 4 && areHeaderBytesValue(bytes[0], bytes[1], bytes[2], bytes[3])) {
+                return bytes;
             } else {
-                throw new IllegalStateException("malformed class file '" + jar.getName() + "' present in jar file: invalid magic header");
+                throw new IllegalStateException("malformed class file '" + entry.name + "' present in jar file: invalid magic header");
             }
         } catch (final IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static Stream<ClassReader> streamClassFilesInJar(final JarFile jarFile) throws IOException {
-        return jarFile.stream()
-                .filter(e -> e.getName().endsWith(".class"))
-                .map(z -> readClassBytesFromEntry(jarFile, z));
+    private static boolean isClassEntry(final ZipArchiveEntry entry) {
+        return !entry.isDirectory() && entry.name.endsWith(".class");
     }
 
-    private static EagerFileData getTransformedClassBytes(final ClassReader cr) {
-        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-        cr.accept(new IndyInsnSubstitutingClassVisitor(cw, cr.getClassName()), 0);
-        return new EagerFileData(cr.getClassName(), cw.toByteArray());
+    static void printBootstrapMethodReport(final TransformOptions options, final PrintStream out) throws IOException {
+        try (final ZipArchiveReader reader = new ZipArchiveReader(options.sourceFile.toPath())) {
+            final BootstrapMethodReport report = new BootstrapMethodReport();
+            report.scan(reader, reader.getEntries());
+            report.print(out);
+        }
     }
 
-    private static LazyFileData getFileDataFromZipEntry(final ZipFile file, final ZipEntry entry) {
+    private static boolean isNestedArchiveEntry(final ZipArchiveEntry entry) {
+        return !entry.isDirectory() && entry.name.endsWith(".jar");
+    }
+
+    /*
+     * nested archives are read from a temporary copy, as the readers map whole files. Whoever gets the copy deletes it
+     * once it has closed its reader, as a long running daemon cannot leave them to be deleted on exit
+     */
+    private static Path extractNestedArchive(final ZipArchiveReader reader, final ZipArchiveEntry entry) throws IOException {
+        final Path file = createTemporaryArchive();
+        try (final InputStream is = reader.getInputStream(entry)) {
+            Files.copy(is, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException | RuntimeException e) {
+            deleteTemporaryFile(file);
+            throw e;
+        }
+        return file;
+    }
+
+    private static Path createTemporaryArchive() throws IOException {
+        return Files.createTempFile("snakepit-", ".jar");
+    }
+
+    /*
+     * returns null for an entry named like an archive which is not one, which is then left as it is
+     */
+    private static ZipArchiveReader openNestedArchive(final Path file) {
         try {
-            return new LazyFileData(entry.getName(), file.getInputStream(entry));
+            return new ZipArchiveReader(file);
         } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    private static void deleteTemporaryFile(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            /*
+             * this runs in finally blocks, where failing would hide what went wrong in the first place
+             */
+            System.err.println("snakepit: failed to delete the temporary file '" + file + "': " + e);
+        }
+    }
+
+    /*
+     * entries are transformed on the executor, but at most maxInFlight of them and an estimated maxBufferedBytes of
+     * their data are pending at once, and they are handed to the writer in their original order so that the output jar
+     * is deterministic. An entry larger than maxBufferedBytes on its own is still transformed, but only once nothing
+     * else is pending. Closing the stream waits for the entries still in flight, which read from the archive, so that
+     * it can be closed once the writer gives up early
+     */
+    private static Stream<FileData> streamTransformedEntriesInParallel(final List<ZipArchiveEntry> entries, final EntryTransformer transformer,
+                                                                      final ExecutorService executor,
+                                                                      final int maxInFlight, final long maxBufferedBytes) {
+        final Iterator<ZipArchiveEntry> pending = entries.iterator();
+        final Deque<Future<List<FileData>>> inFlight = new ArrayDeque<>(maxInFlight);
+        final Deque<Long> inFlightBytes = new ArrayDeque<>(maxInFlight);
+        final Iterator<List<FileData>> completed = new Iterator<List<FileData>>() {
+            private ZipArchiveEntry next;
+
+            private long bufferedBytes;
+
+            /*
+             * the writer has consumed the previous result by the time it asks for another one
+             */
+            private long writtenBytes;
+
+            private void submitPending() {
+                bufferedBytes -= writtenBytes;
+                writtenBytes = 0;
+                while (inFlight.size() < maxInFlight && (next != null || pending.hasNext())) {
+                    if (next == null) {
+                        next = pending.next();
+                    }
+                    final long bytes = transformer.getBufferedBytesEstimate(next);
+                    if (!inFlight.isEmpty() && bufferedBytes + bytes > maxBufferedBytes) {
+                        break;
+                    }
+                    final ZipArchiveEntry entry = next;
+                    next = null;
+                    bufferedBytes += bytes;
+                    inFlightBytes.add(bytes);
+                    inFlight.add(executor.submit(() -> transformer.transform(entry)));
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                submitPending();
+                return !inFlight.isEmpty();
+            }
+
+            @Override
+            public List<FileData> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                writtenBytes = inFlightBytes.poll();
+                return awaitResult(inFlight.poll());
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(completed, Spliterator.ORDERED), false)
+                .flatMap(List::stream)
+                .onClose(() -> {
+                    awaitCompletion(inFlight);
+                    releaseResults(inFlight);
+                });
+    }
+
+    /*
+     * releases the data of completed tasks which the writer never took
+     */
+    private static void releaseResults(final Collection<Future<List<FileData>>> futures) {
+        for (final Future<List<FileData>> future : futures) {
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    future.get().forEach(Main::release);
+                } catch (final InterruptedException | ExecutionException e) {
+                    /*
+                     * a task which failed has nothing to release
+                     */
+                }
+            }
+        }
+    }
+
+    /*
+     * deletes the file the data was spooled to, once it has been written or will never be
+     */
+    private static void release(final FileData data) {
+        if (data instanceof CompressedFileData && ((CompressedFileData) data).data.file != null) {
+            deleteTemporaryFile(((CompressedFileData) data).data.file);
+        }
+    }
+
+    /*
+     * waits for every task to finish, however it finishes, and only then passes on an interrupt received meanwhile
+     */
+    private static void awaitCompletion(final Collection<? extends Future<?>> futures) {
+        boolean interrupted = false;
+        for (final Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> T awaitResult(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
     }
 
-    private static Stream<LazyFileData> streamNonClassFilesFromJar(final JarFile jarFile) throws IOException {
-        return jarFile.stream()
-                .filter(e -> !e.getName().endsWith(".class") && !e.isDirectory())
-                .map(e -> getFileDataFromZipEntry(jarFile, e));
+    private static List<FileData> toFileData(final ZipArchiveEntry entry, final Map<String, byte[]> classes, final ZipCompression compression) {
+        final Iterator<Map.Entry<String, byte[]>> iterator = classes.entrySet().iterator();
+        final Map.Entry<String, byte[]> host = iterator.next();
+
+        /*
+         * generated classes go next to the class they were generated for, which also keeps them inside the same
+         * META-INF/versions/N tree of a multi-release jar
+         */
+        final String classFileName = host.getKey() + ".class";
+        final String prefix = entry.name.endsWith(classFileName) ? entry.name.substring(0, entry.name.length() - classFileName.length()) : "";
+
+        final List<FileData> data = new ArrayList<>(classes.size());
+        data.add(new CompressedFileData(entry.name, null, ZipArchiveWriter.compress(host.getValue(), compression), entry.dosDateTime));
+        iterator.forEachRemaining(generated -> data.add(new CompressedFileData(prefix + generated.getKey() + ".class", null,
+                ZipArchiveWriter.compress(generated.getValue(), compression), entry.dosDateTime)));
+        return data;
+    }
+
+    private static List<String> getRuntimeClassNames(final Class<?>... classes) {
+        final List<String> names = new ArrayList<>();
+        for (final Class<?> c : classes) {
+            names.add(Type.getInternalName(c));
+            for (final Class<?> nested : c.getDeclaredClasses()) {
+                names.add(Type.getInternalName(nested));
+            }
+        }
+        return Collections.unmodifiableList(names);
     }
 
-    private static void saveDataToJar(final Stream<EagerFileData> dataStream, final String fileName) throws IOException {
-        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(fileName))) {
-            dataStream.forEach(data -> {
+    /*
+     * the runtime classes are added last, once every class which might refer to them has been transformed, unless the
+     * archive already has them
+     */
+    private static void saveDataToJar(final ZipArchiveReader reader, final Stream<FileData> dataStream, final String fileName,
+                                      final EntryTransformer transformer) throws IOException {
+        final TransformMetrics metrics = transformer.metrics;
+        try (final ZipArchiveWriter out = new ZipArchiveWriter(Paths.get(fileName))) {
+            dataStream.forEachOrdered(data -> {
                 try {
-                    final String fileExtension = data.name.contains(".") ? "" : ".class";
-                    out.putNextEntry(new ZipEntry(data.name + fileExtension));
-                    out.write(data.bytes);
-                    out.closeEntry();
+                    final long startNanos = System.nanoTime();
+                    if (data instanceof RawFileData) {
+                        out.writeRawEntry(reader, ((RawFileData) data).entry);
+                    } else {
+                        final CompressedFileData compressed = (CompressedFileData) data;
+                        if (compressed.original != null) {
+                            out.writeEntry(compressed.original, compressed.data);
+                        } else {
+                            out.writeEntry(compressed.name, compressed.data, compressed.dosDateTime);
+                        }
+                    }
+                    metrics.addPhaseTime(TransformMetrics.Phase.WRITE, startNanos);
                 } catch (final IOException e) {
                     throw new RuntimeException(e);
+                } finally {
+                    release(data);
                 }
             });
+            if (transformer.referencesSharedRuntime.get()) {
+                writeRuntimeClasses(reader, out, transformer, SHARED_RUNTIME_CLASS_NAMES);
+            }
+            if (transformer.referencesTelemetry.get()) {
+                writeRuntimeClasses(reader, out, transformer, TELEMETRY_CLASS_NAMES);
+            }
         }
     }
 
-    private static byte[] toByteArray(final InputStream is) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        byte[] data = new byte[1024];
-        while ((nRead = is.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
+    private static void writeRuntimeClasses(final ZipArchiveReader reader, final ZipArchiveWriter out, final EntryTransformer transformer,
+                                            final List<String> classNames) throws IOException {
+        for (final String className : classNames) {
+            final String entryName = className + ".class";
+            if (reader.getEntries().stream().anyMatch(e -> e.name.equals(entryName))) {
+                continue;
+            }
+            final byte[] runtime = ClassHierarchy.readClassFile(Main.class.getClassLoader(), className);
+            if (runtime == null) {
+                throw new IllegalStateException("the class file of " + className.replace('/', '.') + " cannot be found");
+            }
+            out.writeEntry(entryName, ZipArchiveWriter.compress(runtime, transformer.getRewrittenClassCompression()), DOS_EPOCH);
+            transformer.metrics.addClassWritten(runtime.length);
         }
-        buffer.flush();
-        return buffer.toByteArray();
     }
 
-    private static EagerFileData toEagerData(final LazyFileData lazy) {
-        try {
-            return new EagerFileData(lazy.name, toByteArray(lazy.byteStream));
-        } catch (final IOException e) {
-            throw new RuntimeException(e);
+    /*
+     * what transforming a single entry needs, shared by all workers
+     */
+    private static final class EntryTransformer {
+
+        final ZipArchiveReader reader;
+
+        final ClassHierarchy hierarchy;
+
+        final TransformCache cache;
+
+        final boolean recordTelemetry;
+
+        final RewritePolicy policy;
+
+        final boolean useSharedRuntime;
+
+        /*
+         * how each type of entry is compressed, where null keeps the compression of the input as described in
+         * TransformOptions
+         */
+        final ZipCompression classCompression;
+
+        final ZipCompression archiveCompression;
+
+        final ZipCompression resourceCompression;
+
+        /*
+         * set once a class rewritten by any worker refers to SnakepitRuntime
+         */
+        final AtomicBoolean referencesSharedRuntime;
+
+        /*
+         * set once a class generated by any worker refers to CallSiteTelemetry
+         */
+        final AtomicBoolean referencesTelemetry;
+
+        final TransformMetrics metrics;
+
+        EntryTransformer(final ZipArchiveReader reader, final ClassHierarchy hierarchy, final TransformCache cache,
+                         final TransformOptions options, final TransformMetrics metrics) {
+            this.reader = reader;
+            this.hierarchy = hierarchy;
+            this.cache = cache;
+            this.recordTelemetry = options.recordTelemetry;
+            this.policy = options.policy;
+            this.useSharedRuntime = options.useSharedRuntime;
+            this.classCompression = options.classCompression;
+            this.archiveCompression = options.archiveCompression;
+            this.resourceCompression = options.resourceCompression;
+            this.referencesSharedRuntime = new AtomicBoolean();
+            this.referencesTelemetry = new AtomicBoolean();
+            this.metrics = metrics;
+        }
+
+        /*
+         * the same settings for the entries of a nested archive
+         */
+        private EntryTransformer(final ZipArchiveReader reader, final ClassHierarchy hierarchy, final EntryTransformer outer) {
+            this.reader = reader;
+            this.hierarchy = hierarchy;
+            this.cache = outer.cache;
+            this.recordTelemetry = outer.recordTelemetry;
+            this.policy = outer.policy;
+            this.useSharedRuntime = outer.useSharedRuntime;
+            this.classCompression = outer.classCompression;
+            this.archiveCompression = outer.archiveCompression;
+            this.resourceCompression = outer.resourceCompression;
+            this.referencesSharedRuntime = new AtomicBoolean();
+            this.referencesTelemetry = new AtomicBoolean();
+            this.metrics = outer.metrics;
+        }
+
+        ZipCompression getRewrittenClassCompression() {
+            return classCompression != null ? classCompression : ZipCompression.DEFAULT;
+        }
+
+        /*
+         * the compression of entries which would otherwise be copied as they are, or null to copy them
+         */
+        private ZipCompression getCopiedEntryCompression(final ZipArchiveEntry entry) {
+            if (entry.isDirectory()) {
+                return null;
+            }
+            final ZipCompression compression = isClassEntry(entry) ? classCompression
+                    : isNestedArchiveEntry(entry) ? archiveCompression : resourceCompression;
+            return compression == ZipCompression.STORED && entry.method == ZipArchiveEntry.STORED ? null : compression;
+        }
+
+        /*
+         * what transforming an entry is expected to keep on the heap until it has been written: class files are held
+         * uncompressed together with their rewritten bytes, and recompressed entries below SPOOLED_ENTRY_SIZE together
+         * with their compressed bytes. A nested archive is transformed and compressed on disk, so it holds no more
+         * than one of its classes at a time, and larger recompressed entries are streamed through disk. Everything else
+         * is copied raw without being buffered
+         */
+        long getBufferedBytesEstimate(final ZipArchiveEntry entry) {
+            if (isClassEntry(entry)) {
+                return 2 * entry.size;
+            }
+            return !isNestedArchiveEntry(entry) && entry.size < SPOOLED_ENTRY_SIZE && getCopiedEntryCompression(entry) != null
+                    ? 2 * entry.size : 0;
+        }
+
+        /*
+         * anything which is not rewritten keeps the exact bytes it had in the input, and is later copied without being
+         * decompressed and compressed again
+         */
+        List<FileData> transform(final ZipArchiveEntry entry) {
+            if (isClassEntry(entry)) {
+                long phaseStart = System.nanoTime();
+                final byte[] classBytes = readClassBytesFromEntry(reader, entry);
+                metrics.addClassRead(classBytes.length);
+                phaseStart = metrics.addPhaseTime(TransformMetrics.Phase.READ, phaseStart);
+
+                final boolean hasInvokeDynamic = ConstantPoolScanner.hasInvokeDynamic(classBytes);
+                if (hasInvokeDynamic) {
+                    metrics.addClassWithInvokeDynamic();
+                    if (metrics.countsBootstrapMethods()) {
+                        metrics.addInvokeDynamicConstants(ConstantPoolScanner.countBootstrapMethods(classBytes));
+                    }
+                }
+                phaseStart = metrics.addPhaseTime(TransformMetrics.Phase.SCAN, phaseStart);
+
+                if (hasInvokeDynamic) {
+                    final Map<String, byte[]> transformed = getTransformedClasses(classBytes);
+                    metrics.addPhaseTime(TransformMetrics.Phase.TRANSFORM, phaseStart);
+                    if (!transformed.isEmpty()) {
+                        if (useSharedRuntime && ConstantPoolScanner.refersToClass(transformed.values().iterator().next(), SHARED_RUNTIME_CLASS_NAME)) {
+                            referencesSharedRuntime.set(true);
+                        }
+                        if (recordTelemetry && !referencesTelemetry.get()
+                                && transformed.values().stream().anyMatch(bytes -> ConstantPoolScanner.refersToClass(bytes, TELEMETRY_CLASS_NAME))) {
+                            referencesTelemetry.set(true);
+                        }
+                        metrics.addRewrittenClasses(transformed);
+                        transformed.values().forEach(bytes -> metrics.addClassWritten(bytes.length));
+                        phaseStart = System.nanoTime();
+                        final List<FileData> data = toFileData(entry, transformed, getRewrittenClassCompression());
+                        metrics.addPhaseTime(TransformMetrics.Phase.COMPRESS, phaseStart);
+                        return data;
+                    }
+                }
+            } else if (isNestedArchiveEntry(entry)) {
+                final Path transformed = transformNestedArchive(entry);
+                if (transformed != null) {
+                    /*
+                     * some readers, like the launchers of archives nesting other archives, read stored archives in
+                     * place, so they stay stored unless told otherwise
+                     */
+                    final ZipCompression compression = archiveCompression != null ? archiveCompression
+                            : entry.method == ZipArchiveEntry.STORED ? ZipCompression.STORED : ZipCompression.DEFAULT;
+                    FileData data = null;
+                    try {
+                        data = compress(entry, transformed, compression);
+                        return Collections.singletonList(data);
+                    } catch (final IOException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        if (data == null) {
+                            deleteTemporaryFile(transformed);
+                        }
+                    }
+                }
+            }
+            final ZipCompression compression = getCopiedEntryCompression(entry);
+            if (compression != null) {
+                try {
+                    return Collections.singletonList(entry.size < SPOOLED_ENTRY_SIZE
+                            ? compress(entry, reader.readData(entry), compression)
+                            : compress(entry, compression));
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return Collections.singletonList(new RawFileData(entry));
         }
+
+        private FileData compress(final ZipArchiveEntry entry, final byte[] bytes, final ZipCompression compression) {
+            final long startNanos = System.nanoTime();
+            final FileData data = new CompressedFileData(entry.name, entry, ZipArchiveWriter.compress(bytes, compression), entry.dosDateTime);
+            metrics.addPhaseTime(TransformMetrics.Phase.COMPRESS, startNanos);
+            return data;
+        }
+
+        private FileData compress(final ZipArchiveEntry entry, final ZipCompression compression) throws IOException {
+            final long startNanos = System.nanoTime();
+            final FileData data;
+            try (final InputStream is = reader.getInputStream(entry)) {
+                data = new CompressedFileData(entry.name, entry, ZipArchiveWriter.compress(is, compression), entry.dosDateTime);
+            }
+            metrics.addPhaseTime(TransformMetrics.Phase.COMPRESS, startNanos);
+            return data;
+        }
+
+        private FileData compress(final ZipArchiveEntry entry, final Path file, final ZipCompression compression) throws IOException {
+            final long startNanos = System.nanoTime();
+            final FileData data = new CompressedFileData(entry.name, entry, ZipArchiveWriter.compress(file, compression), entry.dosDateTime);
+            metrics.addPhaseTime(TransformMetrics.Phase.COMPRESS, startNanos);
+            return data;
+        }
+
+        /*
+         * a nested archive is transformed as a whole by the worker which picked it up, entry by entry, with its own
+         * classes looked up before those of the archives enclosing it. It is streamed into a temporary file which is
+         * returned, or deleted and null returned if nothing in it was rewritten
+         */
+        private Path transformNestedArchive(final ZipArchiveEntry entry) {
+            Path source = null;
+            Path target = null;
+            final AtomicBoolean rewritten = new AtomicBoolean();
+            try {
+                source = extractNestedArchive(reader, entry);
+                try (final ZipArchiveReader nestedReader = openNestedArchive(source)) {
+                    if (nestedReader == null) {
+                        return null;
+                    }
+                    final EntryTransformer nested = new EntryTransformer(nestedReader,
+                            ClassHierarchy.ofArchives(Collections.singletonList(nestedReader), hierarchy), this);
+                    target = createTemporaryArchive();
+                    saveDataToJar(nestedReader, nestedReader.getEntries().stream()
+                            .flatMap(e -> nested.transform(e).stream())
+                            .peek(data -> {
+                                if (!(data instanceof RawFileData)) {
+                                    rewritten.set(true);
+                                }
+                            }), target.toString(), nested);
+                    return rewritten.get() ? target : null;
+                }
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (source != null) {
+                    deleteTemporaryFile(source);
+                }
+                if (target != null && !rewritten.get()) {
+                    deleteTemporaryFile(target);
+                }
+            }
+        }
+
+        private Map<String, byte[]> getTransformedClasses(final byte[] classBytes) {
+            return Main.getTransformedClasses(classBytes, hierarchy, cache, recordTelemetry, policy, useSharedRuntime);
+        }
+    }
+
+    /*
+     * as ClassTransformation#transform, through cache unless it is null
+     */
+    static Map<String, byte[]> getTransformedClasses(final byte[] classBytes, final ClassHierarchy hierarchy, final TransformCache cache,
+                                                     final boolean recordTelemetry, final RewritePolicy policy,
+                                                     final boolean useSharedRuntime) {
+        if (cache == null) {
+            return ClassTransformation.transform(classBytes, hierarchy, recordTelemetry, policy, useSharedRuntime);
+        }
+        final ByteBuffer key = cache.getKey(classBytes);
+        final Map<String, byte[]> cached = cache.get(key, hierarchy);
+        if (cached != null) {
+            return cached;
+        }
+        final Map<List<String>, String> commonSuperClasses = new LinkedHashMap<>();
+        final Map<String, byte[]> transformed = ClassTransformation.transform(classBytes, hierarchy, recordTelemetry, policy, useSharedRuntime,
+                commonSuperClasses);
+        cache.put(key, transformed, commonSuperClasses);
+        return transformed;
     }
 
-    private static final class LazyFileData {
+    private abstract static class FileData {
 
         final String name;
 
-        final InputStream byteStream;
-
-        LazyFileData(final String name, final InputStream byteStream) {
+        FileData(final String name) {
             this.name = name;
-            this.byteStream = byteStream;
         }
     }
 
-    private static final class EagerFileData {
+    private static final class RawFileData extends FileData {
 
-        final String name;
+        final ZipArchiveEntry entry;
 
-        final byte[] bytes;
+        RawFileData(final ZipArchiveEntry entry) {
+            super(entry.name);
+            this.entry = entry;
+        }
+    }
 
-        EagerFileData(final String name, final byte[] bytes) {
-            this.name = name;
-            this.bytes = bytes;
+    /*
+     * new contents, compressed by the worker which produced them
+     */
+    private static final class CompressedFileData extends FileData {
+
+        /*
+         * the entry whose name, timestamp and attributes are kept, or null for a class written with only its name and
+         * timestamp
+         */
+        final ZipArchiveEntry original;
+
+        final ZipArchiveWriter.CompressedData data;
+
+        final int dosDateTime;
+
+        CompressedFileData(final String name, final ZipArchiveEntry original, final ZipArchiveWriter.CompressedData data, final int dosDateTime) {
+            super(name);
+            this.original = original;
+            this.data = data;
+            this.dosDateTime = dosDateTime;
+        }
+    }
+
+    /*
+     * the invokedynamic constants of an archive and of the archives nested in it, by bootstrap method
+     */
+    private static final class BootstrapMethodReport {
+
+        final Map<String, Integer> counts = new HashMap<>();
+
+        int classCount;
+
+        int indyClassCount;
+
+        int wideConcatCount;
+
+        void scan(final ZipArchiveReader reader, final List<ZipArchiveEntry> entries) throws IOException {
+            for (final ZipArchiveEntry entry : entries) {
+                if (isClassEntry(entry)) {
+                    final byte[] classBytes = readClassBytesFromEntry(reader, entry);
+                    final Map<String, Integer> classCounts = ConstantPoolScanner.countBootstrapMethods(classBytes);
+                    ++classCount;
+                    if (!classCounts.isEmpty()) {
+                        ++indyClassCount;
+                        classCounts.forEach((bsm, n) -> counts.merge(bsm, n, Integer::sum));
+                        wideConcatCount += ConstantPoolScanner.countWideStringConcatenations(classBytes);
+                    }
+                } else if (isNestedArchiveEntry(entry)) {
+                    final Path file = extractNestedArchive(reader, entry);
+                    try (final ZipArchiveReader nestedReader = openNestedArchive(file)) {
+                        if (nestedReader != null) {
+                            scan(nestedReader, nestedReader.getEntries());
+                        }
+                    } finally {
+                        deleteTemporaryFile(file);
+                    }
+                }
+            }
+        }
+
+        void print(final PrintStream out) {
+            final int indyCount = counts.values().stream().mapToInt(Integer::intValue).sum();
+            out.println(classCount + " classes, " + indyClassCount + " with invokedynamic, " + indyCount + " invokedynamic constants");
+            counts.entrySet().stream()
+                    .sorted(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                    .forEachOrdered(e -> out.printf("%10d  %s%n", e.getValue(), e.getKey()));
+            if (wideConcatCount > 0) {
+                out.println(wideConcatCount + " string concatenations with long, float or double arguments, which are not expanded");
+            }
         }
     }
 }
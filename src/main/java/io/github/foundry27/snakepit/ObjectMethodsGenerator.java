@@ -0,0 +1,261 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Expands the {@code equals}, {@code hashCode} and {@code toString} call sites which records bootstrap with
+ * {@code ObjectMethods} into straight-line code over the record's fields at transform time, so that no method handle
+ * combinators have to be built and inlined at runtime.
+ * <p>
+ * The generated code compares, hashes and formats components the way {@code ObjectMethods} does: floating point
+ * components are compared with {@code Float.compare} and {@code Double.compare}, references with
+ * {@code Objects.equals}, and each component is hashed with the {@code hashCode} method of its type, combined as
+ * {@code 31 * h + c}.
+ *
+ * @author Foundry
+ */
+final class ObjectMethodsGenerator {
+
+    private static final String OBJECT_METHODS = "java/lang/runtime/ObjectMethods";
+
+    private final IndyInsnSubstitutingClassVisitor owner;
+
+    private final String hostName;
+
+    private final String helperName;
+
+    private final String callsiteName;
+
+    private final Type callsiteType;
+
+    private final String[] componentNames;
+
+    private final Handle[] getters;
+
+    private ObjectMethodsGenerator(final IndyInsnSubstitutingClassVisitor owner, final String hostName, final String helperName,
+                                   final String callsiteName, final String callsiteDescriptor, final String[] componentNames,
+                                   final Handle[] getters) {
+        this.owner = owner;
+        this.hostName = hostName;
+        this.helperName = helperName;
+        this.callsiteName = callsiteName;
+        this.callsiteType = Type.getMethodType(callsiteDescriptor);
+        this.componentNames = componentNames;
+        this.getters = getters;
+    }
+
+    static boolean isObjectMethods(final Handle bootstrapMethodHandle) {
+        return bootstrapMethodHandle.getTag() == H_INVOKESTATIC
+                && OBJECT_METHODS.equals(bootstrapMethodHandle.getOwner())
+                && "bootstrap".equals(bootstrapMethodHandle.getName());
+    }
+
+    /**
+     * Returns whether a call site with the given name is expanded at all, given whether the code generated for it may
+     * branch, which only comparing the components for {@code equals} takes.
+     */
+    static boolean isExpandable(final String callsiteName, final boolean allowBranchingCode) {
+        return allowBranchingCode || !"equals".equals(callsiteName);
+    }
+
+    /**
+     * Returns a generator for the call site if it is one of the object methods of the host class itself, with the
+     * components read straight from its fields, as javac emits them for records. Any other use of {@code ObjectMethods}
+     * returns null, and is left to its bootstrap method.
+     */
+    static ObjectMethodsGenerator forCallSite(final IndyInsnSubstitutingClassVisitor owner, final String hostName, final String helperName,
+                                              final String callsiteName, final String callsiteDescriptor, final Object[] bootstrapMethodArguments) {
+        final Type hostType = Type.getObjectType(hostName);
+        final String expectedDescriptor;
+        switch (callsiteName) {
+            case "equals":
+                expectedDescriptor = Type.getMethodDescriptor(Type.BOOLEAN_TYPE, hostType, Type.getType(Object.class));
+                break;
+            case "hashCode":
+                expectedDescriptor = Type.getMethodDescriptor(Type.INT_TYPE, hostType);
+                break;
+            case "toString":
+                expectedDescriptor = Type.getMethodDescriptor(Type.getType(String.class), hostType);
+                break;
+            default:
+                return null;
+        }
+        if (!expectedDescriptor.equals(callsiteDescriptor) || bootstrapMethodArguments.length < 2
+                || !hostType.equals(bootstrapMethodArguments[0]) || !(bootstrapMethodArguments[1] instanceof String)) {
+            return null;
+        }
+
+        final String names = (String) bootstrapMethodArguments[1];
+        final String[] componentNames = names.isEmpty() ? new String[0] : names.split(";", -1);
+        final Handle[] getters = new Handle[bootstrapMethodArguments.length - 2];
+        if (componentNames.length != getters.length) {
+            return null;
+        }
+        for (int i = 0; i < getters.length; ++i) {
+            final Object arg = bootstrapMethodArguments[i + 2];
+            if (!(arg instanceof Handle) || ((Handle) arg).getTag() != H_GETFIELD || !hostName.equals(((Handle) arg).getOwner())) {
+                return null;
+            }
+            getters[i] = (Handle) arg;
+        }
+        return new ObjectMethodsGenerator(owner, hostName, helperName, callsiteName, callsiteDescriptor, componentNames, getters);
+    }
+
+    /**
+     * Generates the helper in the host class and returns the call which replaces the call site.
+     */
+    CallSiteReplacement generate() {
+        final MethodVisitor mv = owner.visitGeneratedMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, helperName, callsiteType.getDescriptor());
+        mv.visitCode();
+        switch (callsiteName) {
+            case "equals":
+                emitEquals(mv);
+                break;
+            case "hashCode":
+                emitHashCode(mv);
+                break;
+            default:
+                emitToString(mv);
+                break;
+        }
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        return CallSiteReplacement.invokeStatic(hostName, helperName, callsiteType.getDescriptor(), owner.isInterface());
+    }
+
+    private void getField(final MethodVisitor mv, final Handle getter) {
+        mv.visitFieldInsn(GETFIELD, getter.getOwner(), getter.getName(), getter.getDesc());
+    }
+
+    /*
+     * components are compared last to first, as the guards ObjectMethods nests around each other test them
+     */
+    private void emitEquals(final MethodVisitor mv) {
+        owner.requireFrames();
+        final Label notSame = new Label();
+        final Label notEqual = new Label();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitJumpInsn(IF_ACMPNE, notSame);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
+
+        mv.visitLabel(notSame);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(INSTANCEOF, hostName);
+        mv.visitJumpInsn(IFEQ, notEqual);
+        for (int i = getters.length - 1; i >= 0; --i) {
+            final Handle getter = getters[i];
+            mv.visitVarInsn(ALOAD, 0);
+            getField(mv, getter);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(CHECKCAST, hostName);
+            getField(mv, getter);
+            switch (Type.getType(getter.getDesc()).getSort()) {
+                case Type.BOOLEAN: //fall through
+                case Type.CHAR:
+                case Type.BYTE:
+                case Type.SHORT:
+                case Type.INT:
+                    mv.visitJumpInsn(IF_ICMPNE, notEqual);
+                    break;
+                case Type.LONG:
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFNE, notEqual);
+                    break;
+                case Type.FLOAT:
+                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "compare", "(FF)I", false);
+                    mv.visitJumpInsn(IFNE, notEqual);
+                    break;
+                case Type.DOUBLE:
+                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "compare", "(DD)I", false);
+                    mv.visitJumpInsn(IFNE, notEqual);
+                    break;
+                default:
+                    mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "equals", "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+                    mv.visitJumpInsn(IFEQ, notEqual);
+                    break;
+            }
+        }
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
+
+        mv.visitLabel(notEqual);
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+    }
+
+    private void emitHashCode(final MethodVisitor mv) {
+        if (getters.length == 0) {
+            mv.visitInsn(ICONST_0);
+        }
+        for (int i = 0; i < getters.length; ++i) {
+            if (i > 0) {
+                mv.visitIntInsn(BIPUSH, 31);
+                mv.visitInsn(IMUL);
+            }
+            final Type componentType = Type.getType(getters[i].getDesc());
+            mv.visitVarInsn(ALOAD, 0);
+            getField(mv, getters[i]);
+            if (TypeConversions.isPrimitive(componentType)) {
+                mv.visitMethodInsn(INVOKESTATIC, TypeConversions.getWrapperName(componentType), "hashCode",
+                        Type.getMethodDescriptor(Type.INT_TYPE, componentType), false);
+            } else {
+                mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "hashCode", "(Ljava/lang/Object;)I", false);
+            }
+            if (i > 0) {
+                mv.visitInsn(IADD);
+            }
+        }
+        mv.visitInsn(IRETURN);
+    }
+
+    /*
+     * references are appended as Objects, which formats them with String.valueOf as ObjectMethods does, where the
+     * overloads taking a char[] or a CharSequence would not
+     */
+    private void emitToString(final MethodVisitor mv) {
+        mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(owner.getSimpleName() + '[');
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V", false);
+        for (int i = 0; i < getters.length; ++i) {
+            final Type componentType = Type.getType(getters[i].getDesc());
+            mv.visitLdcInsn((i == 0 ? "" : ", ") + componentNames[i] + '=');
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+            mv.visitVarInsn(ALOAD, 0);
+            getField(mv, getters[i]);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", getAppendDescriptor(componentType), false);
+        }
+        mv.visitLdcInsn("]");
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+        mv.visitInsn(ARETURN);
+    }
+
+    private static String getAppendDescriptor(final Type componentType) {
+        switch (componentType.getSort()) {
+            case Type.BOOLEAN:
+                return "(Z)Ljava/lang/StringBuilder;";
+            case Type.CHAR:
+                return "(C)Ljava/lang/StringBuilder;";
+            case Type.BYTE: //fall through
+            case Type.SHORT:
+            case Type.INT:
+                return "(I)Ljava/lang/StringBuilder;";
+            case Type.LONG:
+                return "(J)Ljava/lang/StringBuilder;";
+            case Type.FLOAT:
+                return "(F)Ljava/lang/StringBuilder;";
+            case Type.DOUBLE:
+                return "(D)Ljava/lang/StringBuilder;";
+            default:
+                return "(Ljava/lang/Object;)Ljava/lang/StringBuilder;";
+        }
+    }
+}
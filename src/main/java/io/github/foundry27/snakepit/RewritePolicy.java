@@ -0,0 +1,215 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.Handle;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which invokedynamic call sites are rewritten, leaving the others as they are. A policy file has one rule per
+ * line, and the first rule matching a call site decides it:
+ * <pre>
+ * # comments and blank lines are ignored
+ * allow method com.example.Parser.parse
+ * deny  bootstrap java.lang.invoke.StringConcatFactory.*
+ * deny  class com.example.generated.**
+ * deny  kind generic
+ * default allow
+ * </pre>
+ * {@code bootstrap} patterns match the bootstrap method as {@code owner.name}, {@code class} patterns the binary name
+ * of the class the call site is in, and {@code method} patterns that name followed by {@code .} and the name of the
+ * method, such as {@code com.example.Parser.<init>}. In patterns, {@code *} matches any run of characters without a
+ * {@code .}, and {@code **} any run of characters. {@code kind} rules match the way a call site would be rewritten:
+ * {@code lambda}, {@code concat}, {@code record} or {@code generic}. Call sites no rule matches are rewritten unless the
+ * policy says {@code default deny}.
+ * <p>
+ * Policies can be generated from profiles with {@link RewritePolicyGenerator}.
+ *
+ * @author Foundry
+ */
+final class RewritePolicy {
+
+    /**
+     * Rewrites every call site.
+     */
+    static final RewritePolicy ALLOW_ALL = new RewritePolicy(Collections.emptyList(), true);
+
+    private static final List<String> KINDS = Arrays.asList("lambda", "concat", "record", "generic");
+
+    private enum Target {
+
+        BOOTSTRAP,
+
+        CLASS,
+
+        METHOD,
+
+        KIND
+    }
+
+    private static final class Rule {
+
+        final boolean allow;
+
+        final Target target;
+
+        final Pattern pattern;
+
+        final String text;
+
+        Rule(final boolean allow, final Target target, final Pattern pattern, final String text) {
+            this.allow = allow;
+            this.target = target;
+            this.pattern = pattern;
+            this.text = text;
+        }
+    }
+
+    private final List<Rule> rules;
+
+    private final boolean allowByDefault;
+
+    private RewritePolicy(final List<Rule> rules, final boolean allowByDefault) {
+        this.rules = rules;
+        this.allowByDefault = allowByDefault;
+    }
+
+    /*
+     * * stops at the dots separating packages, classes and methods, while ** does not
+     */
+    private static Pattern compileGlob(final String glob) {
+        final StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); ++i) {
+            if (glob.charAt(i) == '*') {
+                if (literalStart < i) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    ++i;
+                } else {
+                    regex.append("[^.]*");
+                }
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    static RewritePolicy parse(final Path file) throws IOException {
+        final List<Rule> rules = new ArrayList<>();
+        Boolean allowByDefault = null;
+        int lineNumber = 0;
+        for (final String rawLine : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            ++lineNumber;
+            final int commentStart = rawLine.indexOf('#');
+            final String line = (commentStart >= 0 ? rawLine.substring(0, commentStart) : rawLine).trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String[] words = line.split("\\s+");
+            final boolean allow;
+            switch (words[0]) {
+                case "allow":
+                    allow = true;
+                    break;
+                case "deny":
+                    allow = false;
+                    break;
+                case "default":
+                    if (words.length != 2 || !("allow".equals(words[1]) || "deny".equals(words[1]))) {
+                        throw new IllegalStateException(file + ":" + lineNumber + ": expected 'default allow' or 'default deny'");
+                    }
+                    allowByDefault = "allow".equals(words[1]);
+                    continue;
+                default:
+                    throw new IllegalStateException(file + ":" + lineNumber + ": unknown rule '" + words[0] + "'");
+            }
+            if (words.length != 3) {
+                throw new IllegalStateException(file + ":" + lineNumber + ": expected '" + words[0] + " <bootstrap|class|method|kind> <pattern>'");
+            }
+            final Target target;
+            try {
+                target = Target.valueOf(words[1].toUpperCase(Locale.ROOT));
+            } catch (final IllegalArgumentException e) {
+                throw new IllegalStateException(file + ":" + lineNumber + ": unknown rule target '" + words[1] + "'", e);
+            }
+            if (target == Target.KIND && !KINDS.contains(words[2])) {
+                throw new IllegalStateException(file + ":" + lineNumber + ": unknown kind '" + words[2] + "'");
+            }
+            rules.add(new Rule(allow, target, compileGlob(words[2]), words[0] + ' ' + words[1] + ' ' + words[2]));
+        }
+        return new RewritePolicy(rules, allowByDefault == null || allowByDefault);
+    }
+
+    /*
+     * the kind of rewrite a bootstrap method gets, as dispatched by IndyInsnSubstitutingMethodVisitor
+     */
+    private static String getKind(final Handle bootstrapMethodHandle) {
+        if (LambdaClassGenerator.isLambdaMetafactory(bootstrapMethodHandle)) {
+            return "lambda";
+        } else if (StringConcatGenerator.isStringConcatFactory(bootstrapMethodHandle)) {
+            return "concat";
+        } else if (ObjectMethodsGenerator.isObjectMethods(bootstrapMethodHandle)) {
+            return "record";
+        } else {
+            return "generic";
+        }
+    }
+
+    /**
+     * Returns whether the call site bootstrapped by {@code bootstrapMethodHandle} in the method {@code methodName} of
+     * the class with the internal name {@code className} is to be rewritten.
+     */
+    boolean allows(final String className, final String methodName, final Handle bootstrapMethodHandle) {
+        if (rules.isEmpty()) {
+            return allowByDefault;
+        }
+        final String binaryClassName = className.replace('/', '.');
+        for (final Rule rule : rules) {
+            final String subject;
+            switch (rule.target) {
+                case BOOTSTRAP:
+                    subject = bootstrapMethodHandle.getOwner().replace('/', '.') + '.' + bootstrapMethodHandle.getName();
+                    break;
+                case CLASS:
+                    subject = binaryClassName;
+                    break;
+                case METHOD:
+                    subject = binaryClassName + '.' + methodName;
+                    break;
+                default:
+                    subject = getKind(bootstrapMethodHandle);
+                    break;
+            }
+            if (rule.pattern.matcher(subject).matches()) {
+                return rule.allow;
+            }
+        }
+        return allowByDefault;
+    }
+
+    /**
+     * Returns the rules of this policy without comments or formatting, which is what identifies the rewrite it allows
+     * in a {@link TransformCache} configuration.
+     */
+    String describe() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Rule rule : rules) {
+            sb.append(rule.text).append(';');
+        }
+        return sb.append(allowByDefault ? "default allow" : "default deny").toString();
+    }
+}
@@ -0,0 +1,175 @@
+package io.github.foundry27.snakepit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Generates a {@link RewritePolicy} which only rewrites the generic call sites of the methods a profile found hot, and
+ * leaves the generic call sites of all other methods as they are. Lambdas, concatenations and records are still
+ * rewritten everywhere. Run as {@code --policy-from <profile> [--hot <n>] [--slow-bootstrap <millis>] [policy file]},
+ * it reads either of:
+ * <ul>
+ * <li>a profile written by {@link CallSiteTelemetry}, where a method is hot if one of its call sites was invoked at
+ * least {@code n} times, 10000 by default, or took at least {@code millis} to bootstrap, 10 by default. Telemetry
+ * only covers generic call sites, and counts each method's call sites separately;</li>
+ * <li>a JFR recording with execution samples, where a method is hot if it was in the top frames of at least {@code n}
+ * samples, 20 by default.</li>
+ * </ul>
+ * The policy is written to the given file, or to standard output.
+ *
+ * @author Foundry
+ */
+final class RewritePolicyGenerator {
+
+    private static final long DEFAULT_HOT_INVOCATIONS = 10_000;
+
+    private static final long DEFAULT_HOT_SAMPLES = 20;
+
+    private static final long DEFAULT_SLOW_BOOTSTRAP_MILLIS = 10;
+
+    private static final String USAGE = "usage: --policy-from <profile> [--hot <n>] [--slow-bootstrap <millis>] [policy file]";
+
+    private RewritePolicyGenerator() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static long parseThreshold(final String[] args, final int idx) {
+        if (idx >= args.length) {
+            throw new IllegalStateException("option '" + args[idx - 1] + "' requires a value");
+        }
+        try {
+            final long threshold = Long.parseLong(args[idx]);
+            if (threshold >= 0) {
+                return threshold;
+            }
+        } catch (final NumberFormatException e) {
+            /*
+             * reported below
+             */
+        }
+        throw new IllegalStateException("'" + args[idx] + "' is not a valid threshold");
+    }
+
+    static void run(final String[] args) throws IOException {
+        final List<String> positional = new ArrayList<>();
+        long hot = -1;
+        long slowBootstrapMillis = DEFAULT_SLOW_BOOTSTRAP_MILLIS;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--hot":
+                    hot = parseThreshold(args, ++i);
+                    break;
+                case "--slow-bootstrap":
+                    slowBootstrapMillis = parseThreshold(args, ++i);
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalStateException("unknown option '" + args[i] + "'\n" + USAGE);
+                    }
+                    positional.add(args[i]);
+                    break;
+            }
+        }
+        if (positional.isEmpty() || positional.size() > 2) {
+            throw new IllegalStateException(USAGE);
+        }
+
+        final Path profile = Paths.get(positional.get(0));
+        final List<String> lines = new ArrayList<>();
+        if (isTelemetryProfile(profile)) {
+            lines.add("# generated from the call site profile " + profile.getFileName());
+            for (final String method : getHotMethods(profile, hot < 0 ? DEFAULT_HOT_INVOCATIONS : hot, slowBootstrapMillis * 1_000_000)) {
+                lines.add("allow method " + method);
+            }
+        } else if (TransformMetricsEvents.isAvailable()) {
+            lines.add("# generated from the flight recording " + profile.getFileName());
+            for (final String method : JfrExecutionSamples.getHotMethods(profile, hot < 0 ? DEFAULT_HOT_SAMPLES : hot)) {
+                lines.add("allow method " + method);
+            }
+        } else {
+            throw new IllegalStateException("'" + profile + "' is not a call site profile, and this runtime cannot read flight recordings");
+        }
+        lines.add("deny kind generic");
+        lines.add("default allow");
+
+        if (positional.size() > 1) {
+            Files.write(Paths.get(positional.get(1)), lines, StandardCharsets.UTF_8);
+        } else {
+            lines.forEach(System.out::println);
+        }
+    }
+
+    private static boolean isTelemetryProfile(final Path profile) throws IOException {
+        final byte[] header = CallSiteTelemetry.PROFILE_HEADER.getBytes(StandardCharsets.UTF_8);
+        final byte[] start = new byte[header.length];
+        try (final InputStream is = Files.newInputStream(profile)) {
+            int read = 0;
+            int n;
+            while (read < start.length && (n = is.read(start, read, start.length - read)) > 0) {
+                read += n;
+            }
+            return read == start.length && Arrays.equals(header, start);
+        }
+    }
+
+    /*
+     * call sites are named host.helper, where the helper is named after the method the call site was in, followed by
+     * $indy$ and a number, with constructors named new and static initializers static
+     */
+    private static String getCallerMethod(final String callSite) {
+        final int separator = callSite.lastIndexOf('.');
+        final String helper = callSite.substring(separator + 1);
+        final int suffix = helper.lastIndexOf("$indy$");
+        final String method = suffix >= 0 ? helper.substring(0, suffix) : helper;
+        switch (method) {
+            case "new":
+                return callSite.substring(0, separator + 1) + "<init>";
+            case "static":
+                return callSite.substring(0, separator + 1) + "<clinit>";
+            default:
+                return callSite.substring(0, separator + 1) + method;
+        }
+    }
+
+    private static TreeSet<String> getHotMethods(final Path profile, final long hotInvocations, final long slowBootstrapNanos) throws IOException {
+        /*
+         * the most invocations and longest bootstrap of any call site in each method
+         */
+        final Map<String, long[]> methods = new TreeMap<>();
+        int lineNumber = 0;
+        for (final String line : Files.readAllLines(profile, StandardCharsets.UTF_8)) {
+            ++lineNumber;
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("\t");
+            if (fields.length != 4) {
+                throw new IllegalStateException(profile + ":" + lineNumber + ": expected four tab separated fields");
+            }
+            try {
+                final long[] peaks = methods.computeIfAbsent(getCallerMethod(fields[3]), method -> new long[2]);
+                peaks[0] = Math.max(peaks[0], Long.parseLong(fields[0]));
+                peaks[1] = Math.max(peaks[1], Long.parseLong(fields[1]));
+            } catch (final NumberFormatException e) {
+                throw new IllegalStateException(profile + ":" + lineNumber + ": malformed count", e);
+            }
+        }
+        final TreeSet<String> hot = new TreeSet<>();
+        methods.forEach((method, peaks) -> {
+            if (peaks[0] >= hotInvocations || peaks[1] >= slowBootstrapNanos) {
+                hot.add(method);
+            }
+        });
+        return hot;
+    }
+}
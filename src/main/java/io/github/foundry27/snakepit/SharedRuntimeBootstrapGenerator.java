@@ -0,0 +1,184 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates the bootstrap methods and holder classes of the generic call sites of a class rewritten with
+ * {@code --shared-runtime}. Rather than a bootstrap method per call site, each with its own code to call the bootstrap
+ * method of the call site and adapt what it returns, the class gets a single method taking the number of a call site,
+ * which pushes its constants and leaves the rest to {@link SnakepitRuntime}. That saves a method and the constants
+ * naming it per call site, both in the class and in the holder class calling it.
+ * <p>
+ * Referring to the runtime costs every class that does a few hundred bytes of constants, which only pays off with
+ * several call sites, so classes with fewer get a bootstrap method per call site as without the shared runtime. Call
+ * sites are therefore collected while the methods of the class are visited, and their bootstrap methods and holders are
+ * only generated once all of them are known.
+ *
+ * @author Foundry
+ */
+final class SharedRuntimeBootstrapGenerator {
+
+    private static final String METHOD_NAME = "$indy$bootstrap";
+
+    /*
+     * the fewest call sites a class saves more on than referring to the runtime costs it, before and after compression
+     */
+    private static final int MIN_CALL_SITES = 8;
+
+    /*
+     * the call sites one bootstrap method switches over, which keeps it well below the size limit of a method even for
+     * call sites with many static arguments. Classes with more call sites get one method per this many
+     */
+    private static final int CASES_PER_METHOD = 256;
+
+    /*
+     * the most static arguments SnakepitRuntime has a link method taking them one by one for
+     */
+    private static final int MAX_UNPACKED_ARGUMENTS = 3;
+
+    private static final Type OBJECT_TYPE = Type.getObjectType("java/lang/Object");
+
+    private static final String LINK_DESCRIPTOR_PREFIX = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;";
+
+    private final IndyInsnSubstitutingClassVisitor owner;
+
+    private final List<CallSite> callSites;
+
+    private static final class CallSite {
+
+        final String generatedName;
+
+        final String name;
+
+        final String descriptor;
+
+        final Handle bootstrapMethodHandle;
+
+        final Object[] bootstrapMethodArguments;
+
+        CallSite(final String generatedName, final String name, final String descriptor, final Handle bootstrapMethodHandle,
+                 final Object[] bootstrapMethodArguments) {
+            this.generatedName = generatedName;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.bootstrapMethodHandle = bootstrapMethodHandle;
+            this.bootstrapMethodArguments = bootstrapMethodArguments;
+        }
+    }
+
+    SharedRuntimeBootstrapGenerator(final IndyInsnSubstitutingClassVisitor owner) {
+        this.owner = owner;
+        this.callSites = new ArrayList<>();
+    }
+
+    /**
+     * Adds the call site replaced by the helper {@code generatedName}, whose holder is then named after it.
+     */
+    void addCallSite(final String generatedName, final String name, final String descriptor, final Handle bootstrapMethodHandle,
+                     final Object[] bootstrapMethodArguments) {
+        callSites.add(new CallSite(generatedName, name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments));
+    }
+
+    /*
+     * the bootstrap method of a call site by its number, which takes the case of the call site
+     */
+    private static String getMethodName(final int callSite) {
+        final int method = callSite / CASES_PER_METHOD;
+        return method == 0 ? METHOD_NAME : METHOD_NAME + "$" + method;
+    }
+
+    private static int getCase(final int callSite) {
+        return callSite % CASES_PER_METHOD;
+    }
+
+    void generate() {
+        final String hostName = owner.getClassName();
+        if (callSites.size() < MIN_CALL_SITES) {
+            for (final CallSite callSite : callSites) {
+                final String bootstrapName = callSite.generatedName + "$bootstrap";
+                IndyInsnSubstitutingMethodVisitor.createCallsiteBootstrapMethod(owner, bootstrapName, callSite.name, callSite.descriptor,
+                        callSite.bootstrapMethodHandle, callSite.bootstrapMethodArguments);
+                IndyInsnSubstitutingMethodVisitor.defineCallsiteHolderClass(owner, hostName, callSite.generatedName, bootstrapName, -1,
+                        callSite.bootstrapMethodHandle);
+            }
+            return;
+        }
+        for (int first = 0; first < callSites.size(); first += CASES_PER_METHOD) {
+            generateMethod(first, Math.min(first + CASES_PER_METHOD, callSites.size()));
+        }
+        for (int i = 0; i < callSites.size(); ++i) {
+            final CallSite callSite = callSites.get(i);
+            IndyInsnSubstitutingMethodVisitor.defineCallsiteHolderClass(owner, hostName, callSite.generatedName, getMethodName(i), getCase(i),
+                    callSite.bootstrapMethodHandle);
+        }
+    }
+
+    private void generateMethod(final int first, final int end) {
+        owner.requireFrames();
+        /*
+         * the holder classes have to be able to call this, and interface methods can only be public or private
+         */
+        final int access = owner.isInterface() ? Opcodes.ACC_PUBLIC : 0;
+        final MethodVisitor mv = owner.visitGeneratedMethod(access + ACC_STATIC + ACC_SYNTHETIC,
+                getMethodName(first), "(I)Ljava/lang/invoke/MethodHandle;");
+        mv.visitCode();
+
+        final Label[] cases = new Label[end - first];
+        for (int i = 0; i < cases.length; ++i) {
+            cases[i] = new Label();
+        }
+        mv.visitVarInsn(ILOAD, 0);
+        /*
+         * the holders only ever pass the number of an existing case, so any other one can be sent to the first
+         */
+        mv.visitTableSwitchInsn(0, cases.length - 1, cases[0], cases);
+        for (int i = 0; i < cases.length; ++i) {
+            mv.visitLabel(cases[i]);
+            link(mv, callSites.get(first + i));
+        }
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /*
+     * the runtime adapts the static arguments to the bootstrap method itself, so they are passed as objects, and in an
+     * array beyond the arities it has a link method for
+     */
+    private static void link(final MethodVisitor mv, final CallSite callSite) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", false);
+        mv.visitLdcInsn(callSite.name);
+        mv.visitLdcInsn(Type.getMethodType(callSite.descriptor));
+        mv.visitLdcInsn(callSite.bootstrapMethodHandle);
+
+        final Object[] arguments = callSite.bootstrapMethodArguments;
+        final StringBuilder desc = new StringBuilder(LINK_DESCRIPTOR_PREFIX);
+        if (arguments.length <= MAX_UNPACKED_ARGUMENTS) {
+            for (final Object argument : arguments) {
+                IndyInsnSubstitutingMethodVisitor.pushConstant(mv, argument, OBJECT_TYPE);
+                desc.append("Ljava/lang/Object;");
+            }
+        } else {
+            IndyInsnSubstitutingMethodVisitor.pushInt(mv, arguments.length);
+            mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+            for (int i = 0; i < arguments.length; ++i) {
+                mv.visitInsn(DUP);
+                IndyInsnSubstitutingMethodVisitor.pushInt(mv, i);
+                IndyInsnSubstitutingMethodVisitor.pushConstant(mv, arguments[i], OBJECT_TYPE);
+                mv.visitInsn(AASTORE);
+            }
+            desc.append("[Ljava/lang/Object;");
+        }
+        desc.append(")Ljava/lang/invoke/MethodHandle;");
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(SnakepitRuntime.class), "link", desc.toString(), false);
+        mv.visitInsn(ARETURN);
+    }
+}
@@ -0,0 +1,204 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The load-time entry point, applying the same rewrite as {@link Main} to classes as they are loaded. Started with
+ * {@code -javaagent:snakepit.jar[=options]}, where the comma separated options are {@code cache=<directory>} to reuse
+ * transformed classes across runs through a {@link TransformCache}, {@code stats} to print the cache statistics when
+ * the JVM exits, {@code telemetry} to count the invocations of rewritten call sites in {@link CallSiteTelemetry},
+ * {@code policy=<file>} to only rewrite the call sites a {@link RewritePolicy} allows, and {@code runtime} to link
+ * generic call sites through {@link SnakepitRuntime}, which the agent jar provides.
+ * <p>
+ * Classes of the bootstrap and platform class loaders are left alone.
+ *
+ * @author Foundry
+ */
+public final class SnakepitAgent implements ClassFileTransformer {
+
+    private static final String OWN_PACKAGE_PREFIX = "io/github/foundry27/snakepit/";
+
+    private final ClassLoader platformLoader;
+
+    private final TransformCache cache;
+
+    private final boolean recordTelemetry;
+
+    private final RewritePolicy policy;
+
+    private final boolean useSharedRuntime;
+
+    /*
+     * the supertypes of a loader's classes are looked up through the loader's resources, so that computing frames never
+     * loads a class, and are remembered for as long as the loader is alive
+     */
+    private final Map<ClassLoader, ClassHierarchy> hierarchies;
+
+    private SnakepitAgent(final TransformCache cache, final boolean recordTelemetry, final RewritePolicy policy,
+                          final boolean useSharedRuntime) {
+        this.platformLoader = ClassLoader.getSystemClassLoader().getParent();
+        this.cache = cache;
+        this.recordTelemetry = recordTelemetry;
+        this.policy = policy;
+        this.useSharedRuntime = useSharedRuntime;
+        this.hierarchies = Collections.synchronizedMap(new WeakHashMap<>());
+    }
+
+    public static void premain(final String agentArgs, final Instrumentation inst) throws IOException {
+        Path cacheDirectory = null;
+        boolean printStats = false;
+        boolean recordTelemetry = false;
+        RewritePolicy policy = RewritePolicy.ALLOW_ALL;
+        boolean useSharedRuntime = false;
+        for (final String option : agentArgs == null || agentArgs.isEmpty() ? new String[0] : agentArgs.split(",")) {
+            if (option.startsWith("cache=")) {
+                cacheDirectory = Paths.get(option.substring("cache=".length()));
+            } else if ("stats".equals(option)) {
+                printStats = true;
+            } else if ("telemetry".equals(option)) {
+                recordTelemetry = true;
+            } else if (option.startsWith("policy=")) {
+                policy = RewritePolicy.parse(Paths.get(option.substring("policy=".length())));
+            } else if ("runtime".equals(option)) {
+                useSharedRuntime = true;
+            } else {
+                throw new IllegalStateException("unknown agent option '" + option + "'");
+            }
+        }
+
+        TransformCache cache = null;
+        if (cacheDirectory != null) {
+            /*
+             * another JVM using the same cache directory only costs this one its cache, rather than blocking its startup
+             */
+            final String configuration = (recordTelemetry ? "agent;telemetry" : "agent")
+                    + (policy != RewritePolicy.ALLOW_ALL ? ";policy[" + policy.describe() + "]" : "")
+                    + (useSharedRuntime ? ";shared-runtime" : "");
+            cache = TransformCache.tryOpen(cacheDirectory, configuration);
+            if (cache == null) {
+                System.err.println("snakepit: transform cache '" + cacheDirectory + "' is in use, continuing without it");
+            } else {
+                Runtime.getRuntime().addShutdownHook(new Thread(new CacheCloser(cache, printStats), "snakepit-cache-closer"));
+            }
+        }
+        inst.addTransformer(new SnakepitAgent(cache, recordTelemetry, policy, useSharedRuntime));
+    }
+
+    private static final class CacheCloser implements Runnable {
+
+        private final TransformCache cache;
+
+        private final boolean printStats;
+
+        CacheCloser(final TransformCache cache, final boolean printStats) {
+            this.cache = cache;
+            this.printStats = printStats;
+        }
+
+        @Override
+        public void run() {
+            try {
+                cache.close();
+            } catch (final IOException e) {
+                System.err.println("snakepit: failed to write the transform cache: " + e);
+            }
+            if (printStats) {
+                System.err.println("snakepit: transform cache: " + cache.getHitCount() + " hits, " + cache.getMissCount() + " misses");
+            }
+        }
+    }
+
+    /*
+     * the rewritten class is given a static initializer which defines the generated classes, which are handed to the
+     * agent runtime in the meantime. The common supertypes the frames were computed from go to commonSuperClasses,
+     * unless it is null
+     */
+    private static Map<String, byte[]> getTransformedClasses(final byte[] classBytes, final ClassHierarchy hierarchy, final boolean recordTelemetry,
+                                                             final RewritePolicy policy, final boolean useSharedRuntime,
+                                                             final Map<List<String>, String> commonSuperClasses) {
+        final Map<String, byte[]> transformed = ClassTransformation.transform(classBytes, hierarchy, recordTelemetry, policy, useSharedRuntime,
+                commonSuperClasses);
+        if (transformed.size() <= 1) {
+            return transformed;
+        }
+        final Iterator<Map.Entry<String, byte[]>> iterator = transformed.entrySet().iterator();
+        final Map.Entry<String, byte[]> host = iterator.next();
+        final ClassReader cr = new ClassReader(host.getValue());
+        final ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+        cr.accept(new GeneratedClassDefinitionInjector(cw), 0);
+
+        final Map<String, byte[]> classes = new LinkedHashMap<>(transformed.size() * 2);
+        classes.put(host.getKey(), cw.toByteArray());
+        iterator.forEachRemaining(generated -> classes.put(generated.getKey(), generated.getValue()));
+        return classes;
+    }
+
+    private Map<String, byte[]> getCachedTransformedClasses(final byte[] classBytes, final ClassLoader loader) {
+        final ClassHierarchy hierarchy = hierarchies.computeIfAbsent(loader, ClassHierarchy::ofClassLoader);
+        if (cache == null) {
+            return getTransformedClasses(classBytes, hierarchy, recordTelemetry, policy, useSharedRuntime, null);
+        }
+        /*
+         * the same class may be defined by loaders which see different supertypes for what it refers to, so a result
+         * is checked against the hierarchy of the loader at hand
+         */
+        final ByteBuffer key = cache.getKey(classBytes);
+        final Map<String, byte[]> cached = cache.get(key, hierarchy);
+        if (cached != null) {
+            return cached;
+        }
+        final Map<List<String>, String> commonSuperClasses = new LinkedHashMap<>();
+        final Map<String, byte[]> transformed = getTransformedClasses(classBytes, hierarchy, recordTelemetry, policy, useSharedRuntime,
+                commonSuperClasses);
+        cache.put(key, transformed, commonSuperClasses);
+        return transformed;
+    }
+
+    @Override
+    public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
+                            final ProtectionDomain protectionDomain, final byte[] classfileBuffer) {
+        if (loader == null || loader == platformLoader || className == null || classBeingRedefined != null
+                || className.startsWith(OWN_PACKAGE_PREFIX)) {
+            return null;
+        }
+        try {
+            if (!ConstantPoolScanner.hasInvokeDynamic(classfileBuffer)) {
+                return null;
+            }
+            final Map<String, byte[]> classes = getCachedTransformedClasses(classfileBuffer, loader);
+            if (classes.isEmpty()) {
+                return null;
+            }
+
+            final Iterator<Map.Entry<String, byte[]>> iterator = classes.entrySet().iterator();
+            final byte[] hostBytes = iterator.next().getValue();
+            if (iterator.hasNext()) {
+                final Map<String, byte[]> generated = new LinkedHashMap<>(classes.size() * 2);
+                iterator.forEachRemaining(e -> generated.put(e.getKey(), e.getValue()));
+                AgentRuntime.registerGeneratedClasses(loader, className, generated);
+            }
+            return hostBytes;
+        } catch (final RuntimeException e) {
+            /*
+             * the JVM silently discards anything thrown from here, so at least say which class was left untouched
+             */
+            System.err.println("snakepit: failed to transform '" + className + "', loading it unchanged: " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package io.github.foundry27.snakepit;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-lived process running the jobs of {@link Main} which clients submit over a loopback socket, so that builds
+ * transforming many archives neither start a JVM per archive nor run the transformation before the JIT compiled it.
+ * Jobs with the same options share a {@link SnakepitTransformer}, transformers with the same cache directory share its
+ * files, and jobs run concurrently. A transformer only serves new jobs while the jars on its classpath keep the size,
+ * modification time and identity they had when it opened them; otherwise the next job gets a new transformer, and the
+ * old one is closed once the jobs still using it have finished.
+ * <p>
+ * The daemon writes its port and a random token to a file only its user can read, and only runs jobs of clients which
+ * send that token back. A client sends the token, its working directory, which relative file names in its arguments are
+ * resolved against, and its arguments, one per line; the daemon answers with the lines the job printed, prefixed with
+ * {@code out } or {@code err }, and a last line {@code exit <status>}, where the status is 2 if the request itself was
+ * malformed.
+ *
+ * @author Foundry
+ */
+final class SnakepitDaemon {
+
+    private static final String OUT_PREFIX = "out ";
+
+    private static final String ERR_PREFIX = "err ";
+
+    private static final String EXIT_PREFIX = "exit ";
+
+    private static final int TOKEN_BYTES = 32;
+
+    private static final int MAX_ARGUMENTS = 1 << 16;
+
+    private static final int MALFORMED_REQUEST_STATUS = 2;
+
+    private final byte[] token;
+
+    /*
+     * the transformers new jobs get, by getTransformerKey, guarded by itself
+     */
+    private final Map<List<Object>, SharedTransformer> transformers;
+
+    private SnakepitDaemon(final byte[] token) {
+        this.token = token;
+        this.transformers = new HashMap<>();
+    }
+
+    /*
+     * a transformer together with the classpath jars it opened, as described by getClasspathStamps, and the number of
+     * jobs using it, guarded by the map of transformers
+     */
+    private static final class SharedTransformer {
+
+        final SnakepitTransformer transformer;
+
+        final List<List<Object>> classpathStamps;
+
+        int jobs;
+
+        /*
+         * set once new jobs no longer get this transformer, which is then closed by the last job using it
+         */
+        boolean evicted;
+
+        SharedTransformer(final SnakepitTransformer transformer, final List<List<Object>> classpathStamps) {
+            this.transformer = transformer;
+            this.classpathStamps = classpathStamps;
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /*
+     * the file is created unreadable to other users before the token is written to it, where the file system allows
+     */
+    private static void writeDaemonFile(final Path file, final int port, final String token) throws IOException {
+        Files.deleteIfExists(file);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        try (final Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            w.write(port + "\n" + token + "\n");
+        }
+    }
+
+    /**
+     * Runs the daemon until the process is terminated, after which the transformers write back their caches.
+     */
+    static void serve(final Path daemonFile) throws IOException {
+        final byte[] token = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(token);
+        final SnakepitDaemon daemon = new SnakepitDaemon(toHex(token).getBytes(StandardCharsets.US_ASCII));
+
+        try (final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            writeDaemonFile(daemonFile, server.getLocalPort(), toHex(token));
+            daemonFile.toFile().deleteOnExit();
+            Runtime.getRuntime().addShutdownHook(new Thread(daemon::closeTransformers, "snakepit-daemon-shutdown"));
+            System.out.println("snakepit daemon listening on port " + server.getLocalPort());
+
+            final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+                final Thread t = new Thread(r, "snakepit-daemon");
+                t.setDaemon(true);
+                return t;
+            });
+            while (true) {
+                final Socket socket = server.accept();
+                connections.execute(() -> daemon.handle(socket));
+            }
+        }
+    }
+
+    private void closeTransformers() {
+        final List<SharedTransformer> open;
+        synchronized (transformers) {
+            open = new ArrayList<>(transformers.values());
+        }
+        open.forEach(SnakepitDaemon::closeTransformer);
+    }
+
+    private static void closeTransformer(final SharedTransformer shared) {
+        try {
+            shared.transformer.close();
+        } catch (final IOException | RuntimeException e) {
+            System.err.println("snakepit daemon: failed to close a transformer: " + e);
+        }
+    }
+
+    /*
+     * the options which make up the state of a transformer, so that jobs which agree on them can share one
+     */
+    private static List<Object> getTransformerKey(final TransformOptions options) {
+        return Arrays.asList(options.jobs, options.cacheDirectory, options.classpath, options.recordTelemetry, options.policy.describe(),
+                options.useSharedRuntime);
+    }
+
+    private void handle(final Socket socket) {
+        try (final Socket s = socket) {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            final OutputStream os = s.getOutputStream();
+            final String clientToken = in.readLine();
+            if (clientToken == null || !MessageDigest.isEqual(token, clientToken.getBytes(StandardCharsets.US_ASCII))) {
+                return;
+            }
+
+            final PrintStream out = new PrintStream(new PrefixingOutputStream(os, OUT_PREFIX), true, "UTF-8");
+            final PrintStream err = new PrintStream(new PrefixingOutputStream(os, ERR_PREFIX), true, "UTF-8");
+            int status = 0;
+            File workingDirectory = null;
+            String[] args = null;
+            try {
+                workingDirectory = readWorkingDirectory(in);
+                args = readArguments(in);
+            } catch (final IllegalStateException e) {
+                err.println("snakepit daemon: malformed request: " + e.getMessage());
+                status = MALFORMED_REQUEST_STATUS;
+            }
+            if (args != null) {
+                try {
+                    runJob(TransformOptions.parse(args, workingDirectory, true), out);
+                } catch (final IOException | RuntimeException e) {
+                    e.printStackTrace(err);
+                    status = 1;
+                }
+            }
+            out.flush();
+            err.flush();
+            os.write((EXIT_PREFIX + status + "\n").getBytes(StandardCharsets.UTF_8));
+            os.flush();
+        } catch (final IOException | RuntimeException e) {
+            System.err.println("snakepit daemon: failed to run a job: " + e);
+        }
+    }
+
+    private static String readRequestLine(final BufferedReader in, final String what) throws IOException {
+        final String line = in.readLine();
+        if (line == null) {
+            throw new IllegalStateException("the request ended before its " + what);
+        }
+        return line;
+    }
+
+    private static File readWorkingDirectory(final BufferedReader in) throws IOException {
+        final File workingDirectory = new File(readRequestLine(in, "working directory"));
+        if (!workingDirectory.isAbsolute()) {
+            throw new IllegalStateException("the working directory '" + workingDirectory + "' is not absolute");
+        }
+        return workingDirectory;
+    }
+
+    private static String[] readArguments(final BufferedReader in) throws IOException {
+        final String countLine = readRequestLine(in, "argument count");
+        final int argCount;
+        try {
+            argCount = Integer.parseInt(countLine.trim());
+        } catch (final NumberFormatException e) {
+            throw new IllegalStateException("'" + countLine + "' is not a valid argument count", e);
+        }
+        if (argCount < 0 || argCount > MAX_ARGUMENTS) {
+            throw new IllegalStateException("the argument count " + argCount + " is not between 0 and " + MAX_ARGUMENTS);
+        }
+        final String[] args = new String[argCount];
+        for (int i = 0; i < argCount; ++i) {
+            args[i] = readRequestLine(in, "argument " + (i + 1) + " of " + argCount);
+        }
+        return args;
+    }
+
+    /*
+     * what identifies the contents of each classpath jar without reading it. A jar rewritten in place, as builds do,
+     * changes its size or modification time, and one replaced by another file changes its file key where the file
+     * system has them
+     */
+    private static List<List<Object>> getClasspathStamps(final List<File> classpath) throws IOException {
+        final List<List<Object>> stamps = new ArrayList<>(classpath.size());
+        for (final File file : classpath) {
+            final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            stamps.add(Arrays.asList(attributes.size(), attributes.lastModifiedTime(), attributes.fileKey()));
+        }
+        return stamps;
+    }
+
+    /*
+     * the transformer for the options, which the job releases once it has finished. A transformer whose classpath jars
+     * changed is evicted rather than reused, as it maps the jars and remembers the supertypes of their classes
+     */
+    private SharedTransformer acquireTransformer(final TransformOptions options) throws IOException {
+        final List<Object> key = getTransformerKey(options);
+        final List<List<Object>> classpathStamps = getClasspathStamps(options.classpath);
+        SharedTransformer stale = null;
+        final SharedTransformer shared;
+        synchronized (transformers) {
+            final SharedTransformer current = transformers.get(key);
+            if (current != null && current.classpathStamps.equals(classpathStamps)) {
+                shared = current;
+            } else {
+                if (current != null) {
+                    transformers.remove(key);
+                    current.evicted = true;
+                    if (current.jobs == 0) {
+                        stale = current;
+                    }
+                }
+                shared = new SharedTransformer(new SnakepitTransformer(options.withFiles(null, null)), classpathStamps);
+                transformers.put(key, shared);
+            }
+            ++shared.jobs;
+        }
+        if (stale != null) {
+            closeTransformer(stale);
+        }
+        return shared;
+    }
+
+    private void releaseTransformer(final SharedTransformer shared) {
+        final boolean close;
+        synchronized (transformers) {
+            close = --shared.jobs == 0 && shared.evicted;
+        }
+        if (close) {
+            closeTransformer(shared);
+        }
+    }
+
+    private void runJob(final TransformOptions options, final PrintStream out) throws IOException {
+        if (options.scanOnly) {
+            Main.printBootstrapMethodReport(options, out);
+            return;
+        }
+        final SharedTransformer shared = acquireTransformer(options);
+        try {
+            final TransformCache cache = shared.transformer.getCache();
+            final int hits = cache != null ? cache.getHitCount() : 0;
+            final int misses = cache != null ? cache.getMissCount() : 0;
+            shared.transformer.transform(options, out);
+            if (cache != null) {
+                out.println("transform cache: " + (cache.getHitCount() - hits) + " hits, " + (cache.getMissCount() - misses) + " misses");
+            }
+        } finally {
+            releaseTransformer(shared);
+        }
+    }
+
+    /**
+     * Submits {@code args} to the daemon which wrote {@code daemonFile}, prints what the job prints, and returns its
+     * exit status.
+     */
+    static int submit(final Path daemonFile, final String[] args) throws IOException {
+        final List<String> lines = Files.readAllLines(daemonFile, StandardCharsets.UTF_8);
+        if (lines.size() < 2) {
+            throw new IllegalStateException("'" + daemonFile + "' is not a daemon file");
+        }
+        final int port = Integer.parseInt(lines.get(0).trim());
+
+        final List<String> request = new ArrayList<>(args.length + 3);
+        request.add(lines.get(1).trim());
+        request.add(new File("").getAbsolutePath());
+        request.add(Integer.toString(args.length));
+        for (final String arg : args) {
+            if (arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0) {
+                throw new IllegalStateException("arguments submitted to a daemon cannot contain line breaks");
+            }
+            request.add(arg);
+        }
+
+        try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.getOutputStream().write((String.join("\n", request) + "\n").getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(OUT_PREFIX)) {
+                    System.out.println(line.substring(OUT_PREFIX.length()));
+                } else if (line.startsWith(ERR_PREFIX)) {
+                    System.err.println(line.substring(ERR_PREFIX.length()));
+                } else if (line.startsWith(EXIT_PREFIX)) {
+                    return Integer.parseInt(line.substring(EXIT_PREFIX.length()));
+                }
+            }
+        }
+        throw new IllegalStateException("the daemon closed the connection before the job finished");
+    }
+
+    /*
+     * prefixes every line written through it, writing whole lines to the socket at once so that the lines of out and
+     * err do not interleave mid-line
+     */
+    private static final class PrefixingOutputStream extends OutputStream {
+
+        private final OutputStream target;
+
+        private final byte[] prefix;
+
+        private final ByteArrayOutputStream line;
+
+        PrefixingOutputStream(final OutputStream target, final String prefix) {
+            this.target = target;
+            this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+            this.line = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            line.write(b);
+            if (b == '\n') {
+                writeLine();
+            }
+        }
+
+        private void writeLine() throws IOException {
+            synchronized (target) {
+                target.write(prefix);
+                line.writeTo(target);
+            }
+            line.reset();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (line.size() > 0) {
+                line.write('\n');
+                writeLine();
+            }
+            synchronized (target) {
+                target.flush();
+            }
+        }
+    }
+}
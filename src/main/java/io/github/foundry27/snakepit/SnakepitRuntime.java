@@ -0,0 +1,111 @@
+package io.github.foundry27.snakepit;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Links call sites rewritten with {@code --shared-runtime}, whose bootstrap helpers then only push the constants of
+ * the call site and call one of the {@code link} methods here, instead of each carrying its own code to adapt the
+ * static arguments, call the bootstrap method and take the invoker of the call site it returns. There is a method per
+ * number of static arguments up to three, which covers nearly every bootstrap method in practice without allocating an
+ * argument array, and one taking an array for the rest.
+ * <p>
+ * The bootstrap method is invoked as the JVM would for an invokedynamic instruction: static arguments are adapted to
+ * its parameters, collected into its trailing array parameter if it has variable arity, exceptions other than errors
+ * are wrapped in a {@link BootstrapMethodError}, and so is a call site of the wrong type.
+ * <p>
+ * Rewritten classes depend on this class, which the command line tool adds to every archive it rewrites such a class
+ * in. It must not itself contain invokedynamic instructions, so it is written without lambdas.
+ *
+ * @author Foundry
+ */
+public final class SnakepitRuntime {
+
+    private SnakepitRuntime() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static MethodHandle link(final MethodHandles.Lookup caller, final String name, final MethodType type,
+                                    final MethodHandle bootstrapMethod) {
+        final Object callSite;
+        try {
+            callSite = bootstrapMethod.invoke(caller, name, type);
+        } catch (final Throwable t) {
+            throw toBootstrapMethodError(t);
+        }
+        return getInvoker(callSite, type);
+    }
+
+    public static MethodHandle link(final MethodHandles.Lookup caller, final String name, final MethodType type,
+                                    final MethodHandle bootstrapMethod, final Object arg0) {
+        final Object callSite;
+        try {
+            callSite = bootstrapMethod.invoke(caller, name, type, arg0);
+        } catch (final Throwable t) {
+            throw toBootstrapMethodError(t);
+        }
+        return getInvoker(callSite, type);
+    }
+
+    public static MethodHandle link(final MethodHandles.Lookup caller, final String name, final MethodType type,
+                                    final MethodHandle bootstrapMethod, final Object arg0, final Object arg1) {
+        final Object callSite;
+        try {
+            callSite = bootstrapMethod.invoke(caller, name, type, arg0, arg1);
+        } catch (final Throwable t) {
+            throw toBootstrapMethodError(t);
+        }
+        return getInvoker(callSite, type);
+    }
+
+    public static MethodHandle link(final MethodHandles.Lookup caller, final String name, final MethodType type,
+                                    final MethodHandle bootstrapMethod, final Object arg0, final Object arg1, final Object arg2) {
+        final Object callSite;
+        try {
+            callSite = bootstrapMethod.invoke(caller, name, type, arg0, arg1, arg2);
+        } catch (final Throwable t) {
+            throw toBootstrapMethodError(t);
+        }
+        return getInvoker(callSite, type);
+    }
+
+    public static MethodHandle link(final MethodHandles.Lookup caller, final String name, final MethodType type,
+                                    final MethodHandle bootstrapMethod, final Object[] args) {
+        final Object[] arguments = new Object[args.length + 3];
+        arguments[0] = caller;
+        arguments[1] = name;
+        arguments[2] = type;
+        System.arraycopy(args, 0, arguments, 3, args.length);
+        final Object callSite;
+        try {
+            callSite = bootstrapMethod.invokeWithArguments(arguments);
+        } catch (final Throwable t) {
+            throw toBootstrapMethodError(t);
+        }
+        return getInvoker(callSite, type);
+    }
+
+    private static Error toBootstrapMethodError(final Throwable t) {
+        if (t instanceof Error) {
+            return (Error) t;
+        }
+        return new BootstrapMethodError("call site initialization exception", t);
+    }
+
+    /*
+     * for a ConstantCallSite this is the target itself, and for mutable call sites it is a handle which always follows
+     * the current target, so caching it never changes the semantics of the call site
+     */
+    private static MethodHandle getInvoker(final Object callSite, final MethodType type) {
+        if (!(callSite instanceof CallSite)) {
+            throw new BootstrapMethodError("bootstrap method returned " + callSite + " instead of a CallSite");
+        }
+        final CallSite site = (CallSite) callSite;
+        if (!site.type().equals(type)) {
+            throw new BootstrapMethodError("call site type " + site.type() + " does not match the expected type " + type);
+        }
+        return site.dynamicInvoker();
+    }
+}
@@ -0,0 +1,201 @@
+package io.github.foundry27.snakepit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Transforms archives and single classes in the calling process, as build tool plugins do, which would otherwise
+ * start a JVM running {@link Main} per archive. An instance keeps what does not change between archives: its
+ * transform cache, the jars of its classpath, the supertypes of the platform classes it has looked up, and its worker
+ * threads, and it can be used by several threads at once.
+ * <p>
+ * It is configured with the options of {@link Main} without the input and output archive, for example
+ * {@code new SnakepitTransformer("-j", "4", "--cache", "build/snakepit-cache")}.
+ *
+ * @author Foundry
+ */
+public final class SnakepitTransformer implements Closeable {
+
+    private final TransformOptions options;
+
+    private final TransformCache cache;
+
+    private final List<ZipArchiveReader> classpath;
+
+    /*
+     * the classes of the classpath jars, followed by those of the platform
+     */
+    private final ClassHierarchy dependencies;
+
+    private final ExecutorService executor;
+
+    /*
+     * held shared while transforming and exclusively while closing, so that closing waits for the transformations
+     * still reading from the classpath jars before they are unmapped
+     */
+    private final ReadWriteLock lock;
+
+    private boolean closed;
+
+    /**
+     * @throws IllegalStateException if the options are not valid, or name an input or output archive
+     * @throws IOException           if the transform cache or a classpath jar cannot be opened
+     */
+    public SnakepitTransformer(final String... options) throws IOException {
+        this(parseOptions(options));
+    }
+
+    SnakepitTransformer(final TransformOptions options) throws IOException {
+        this.options = options;
+        this.classpath = new ArrayList<>(options.classpath.size());
+        TransformCache cache = null;
+        try {
+            for (final File file : options.classpath) {
+                classpath.add(new ZipArchiveReader(file.toPath()));
+            }
+            if (options.cacheDirectory != null) {
+                cache = TransformCache.open(options.cacheDirectory.toPath(), options.describeTransformConfiguration());
+            }
+        } catch (final IOException | RuntimeException e) {
+            closeClasspath();
+            throw e;
+        }
+        this.cache = cache;
+        this.dependencies = ClassHierarchy.ofArchives(classpath, ClassHierarchy.ofPlatformClasses());
+        this.executor = options.jobs > 1 ? Main.newWorkerPool(options.jobs) : null;
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    private static TransformOptions parseOptions(final String[] args) {
+        final TransformOptions options = TransformOptions.parse(args, null, false);
+        if (options.sourceFile != null) {
+            throw new IllegalStateException("the archives to transform are passed to transform, not as options");
+        }
+        if (options.scanOnly) {
+            throw new IllegalStateException("option '--scan' does not apply to a transformer");
+        }
+        return options;
+    }
+
+    /**
+     * Transforms the archive {@code input} into {@code output}.
+     */
+    public void transform(final Path input, final Path output) throws IOException {
+        transform(options.withFiles(input.toFile(), output.toString()), System.out);
+    }
+
+    /*
+     * jobOptions have to match the options of this transformer but for the files, the metrics and the compression,
+     * which are per archive. Metrics written to - go to out
+     */
+    void transform(final TransformOptions jobOptions, final PrintStream out) throws IOException {
+        lockOpen();
+        try {
+            Main.transform(jobOptions, cache, dependencies, executor, out);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Transforms a single class file, and returns the rewritten class first, followed by the classes generated for it,
+     * all keyed by internal name, or an empty map if the class is left as it is. Classes generated for a class have to
+     * be defined in the same package and class loader as it.
+     */
+    public Map<String, byte[]> transformClass(final byte[] classBytes) {
+        lockOpen();
+        try {
+            return Main.getTransformedClasses(classBytes, dependencies, cache, options.recordTelemetry, options.policy,
+                    options.useSharedRuntime);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * takes the shared lock, which the caller releases, unless this transformer has been closed
+     */
+    private void lockOpen() {
+        lock.readLock().lock();
+        if (closed) {
+            lock.readLock().unlock();
+            throw new IllegalStateException("the transformer has been closed");
+        }
+    }
+
+    /**
+     * As {@link #transformClass(byte[])}, with the class file being the remaining bytes of {@code classBytes}, which
+     * are consumed.
+     */
+    public Map<String, ByteBuffer> transformClass(final ByteBuffer classBytes) {
+        final byte[] bytes = new byte[classBytes.remaining()];
+        classBytes.get(bytes);
+        final Map<String, byte[]> transformed = transformClass(bytes);
+        if (transformed.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, ByteBuffer> buffers = new LinkedHashMap<>(transformed.size() * 2);
+        transformed.forEach((name, data) -> buffers.put(name, ByteBuffer.wrap(data)));
+        return buffers;
+    }
+
+    /*
+     * null without a cache
+     */
+    TransformCache getCache() {
+        return cache;
+    }
+
+    private void closeClasspath() throws IOException {
+        IOException failure = null;
+        for (final ZipArchiveReader reader : classpath) {
+            try {
+                reader.close();
+            } catch (final IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for the transformations running on other threads, then stops the worker threads, writes back the transform
+     * cache and closes the classpath jars. Transformations started afterwards fail.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            try {
+                if (cache != null) {
+                    cache.close();
+                }
+            } finally {
+                closeClasspath();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Expands call sites bootstrapped by {@code StringConcatFactory} into presized {@code StringBuilder} chains at
+ * transform time, so that no concatenation strategy has to be bootstrapped at runtime.
+ * <p>
+ * The chains only append strings, chars and ints, which C2 fuses into a single allocation of the exact result, just
+ * like the JDK's own strategies. Booleans are appended as the constant strings they stand for. C2 does not fuse
+ * {@code append(long)}, {@code append(float)} or {@code append(double)}, and the length of their text is not known up
+ * front, so a builder appending them outgrows its presized array and is copied once more by {@code toString}, where the
+ * JDK's strategies allocate the result once at its exact length: 176 rather than 120 bytes per concatenation of a
+ * string and a long in the benchmarks. Call sites with such arguments are therefore left to
+ * {@code StringConcatFactory}, and {@code --scan} reports how many there are.
+ *
+ * @author Foundry
+ */
+final class StringConcatGenerator {
+
+    private static final String STRING_CONCAT_FACTORY = "java/lang/invoke/StringConcatFactory";
+
+    private static final char TAG_ARG = '\u0001';
+
+    private static final char TAG_CONST = '\u0002';
+
+    private final IndyInsnSubstitutingClassVisitor owner;
+
+    private final String hostName;
+
+    private final String helperName;
+
+    private final Type concatType;
+
+    /*
+     * each element is either a String literal or the Integer index of a call site argument
+     */
+    private final List<Object> elements;
+
+    StringConcatGenerator(final IndyInsnSubstitutingClassVisitor owner, final String hostName, final String helperName,
+                          final String callsiteDescriptor, final Handle bootstrapMethodHandle, final Object[] bootstrapMethodArguments) {
+        this.owner = owner;
+        this.hostName = hostName;
+        this.helperName = helperName;
+        this.concatType = Type.getMethodType(callsiteDescriptor);
+        this.elements = new ArrayList<>();
+
+        final int argCount = concatType.getArgumentTypes().length;
+        final String recipe;
+        int constantIdx = 0;
+        if ("makeConcatWithConstants".equals(bootstrapMethodHandle.getName())) {
+            recipe = (String) bootstrapMethodArguments[constantIdx++];
+        } else {
+            final StringBuilder sb = new StringBuilder(argCount);
+            for (int i = 0; i < argCount; ++i) {
+                sb.append(TAG_ARG);
+            }
+            recipe = sb.toString();
+        }
+
+        final StringBuilder literal = new StringBuilder();
+        int argIdx = 0;
+        for (int i = 0; i < recipe.length(); ++i) {
+            final char c = recipe.charAt(i);
+            if (c == TAG_ARG) {
+                if (literal.length() > 0) {
+                    elements.add(literal.toString());
+                    literal.setLength(0);
+                }
+                elements.add(argIdx++);
+            } else if (c == TAG_CONST) {
+                literal.append(getConstantText(bootstrapMethodArguments[constantIdx++]));
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            elements.add(literal.toString());
+        }
+        if (argIdx != argCount) {
+            throw new IllegalStateException("string concatenation recipe '" + recipe + "' does not match call site descriptor '" + callsiteDescriptor + "'");
+        }
+    }
+
+    static boolean isStringConcatFactory(final Handle bootstrapMethodHandle) {
+        return bootstrapMethodHandle.getTag() == H_INVOKESTATIC
+                && STRING_CONCAT_FACTORY.equals(bootstrapMethodHandle.getOwner())
+                && ("makeConcat".equals(bootstrapMethodHandle.getName()) || "makeConcatWithConstants".equals(bootstrapMethodHandle.getName()));
+    }
+
+    /**
+     * Returns whether a call site is expanded at all, given whether the code generated for it may branch, which
+     * appending booleans as constant strings takes. Its recipe constants have to be numbers or strings, whose text is
+     * known at transform time.
+     */
+    static boolean isExpandable(final String callsiteDescriptor, final Handle bootstrapMethodHandle,
+                                final Object[] bootstrapMethodArguments, final boolean allowBranchingCode) {
+        if ("makeConcatWithConstants".equals(bootstrapMethodHandle.getName())) {
+            if (bootstrapMethodArguments.length == 0 || !(bootstrapMethodArguments[0] instanceof String)) {
+                return false;
+            }
+            for (int i = 1; i < bootstrapMethodArguments.length; ++i) {
+                if (!hasConstantText(bootstrapMethodArguments[i])) {
+                    return false;
+                }
+            }
+        }
+        for (final Type argType : Type.getArgumentTypes(callsiteDescriptor)) {
+            switch (argType.getSort()) {
+                case Type.LONG: //fall through
+                case Type.FLOAT:
+                case Type.DOUBLE:
+                    return false;
+                case Type.BOOLEAN:
+                    if (!allowBranchingCode) {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasConstantText(final Object constant) {
+        return constant instanceof String || constant instanceof Integer || constant instanceof Long
+                || constant instanceof Float || constant instanceof Double;
+    }
+
+    private static String getConstantText(final Object constant) {
+        if (!hasConstantText(constant)) {
+            throw new IllegalStateException("String concatenation constant of type '" + constant.getClass().getCanonicalName() + "' has no text at transform time");
+        }
+        return String.valueOf(constant);
+    }
+
+    private static String getAppendDescriptor(final Type argType) {
+        switch (argType.getSort()) {
+            case Type.CHAR:
+                return "(C)Ljava/lang/StringBuilder;";
+            case Type.BYTE: //fall through
+            case Type.SHORT:
+            case Type.INT:
+                return "(I)Ljava/lang/StringBuilder;";
+            default:
+                /*
+                 * booleans included, which are pushed as the strings they stand for
+                 */
+                return "(Ljava/lang/String;)Ljava/lang/StringBuilder;";
+        }
+    }
+
+    private static void pushBooleanText(final MethodVisitor mv) {
+        final Label isFalse = new Label();
+        final Label end = new Label();
+        mv.visitJumpInsn(IFEQ, isFalse);
+        mv.visitLdcInsn("true");
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(isFalse);
+        mv.visitLdcInsn("false");
+        mv.visitLabel(end);
+    }
+
+    /**
+     * Generates the concatenation helper in the host class and returns the call which replaces the call site.
+     */
+    CallSiteReplacement generate() {
+        createHelperMethod();
+        return CallSiteReplacement.invokeStatic(hostName, helperName, concatType.getDescriptor(), owner.isInterface());
+    }
+
+    private void createHelperMethod() {
+        final MethodVisitor mv = owner.visitGeneratedMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, helperName, concatType.getDescriptor());
+        mv.visitCode();
+
+        final Type[] argTypes = concatType.getArgumentTypes();
+        final int[] argVarIdxs = new int[argTypes.length];
+        for (int i = 0, varIdx = 0; i < argTypes.length; varIdx += argTypes[i].getSize(), ++i) {
+            argVarIdxs[i] = varIdx;
+        }
+
+        /*
+         * references are converted up front and in order, as the JDK's own strategies do, which lets the builder be
+         * presized from their exact lengths. Only the text known to be there is counted, so the builder is never larger
+         * than the result: constants, strings and chars, but not the digits of ints or the text of booleans. The sum is
+         * taken as a long and saturated, so that overflowing it fails like growing the builder past its limit would
+         */
+        long knownLength = 0;
+        for (final Object element : elements) {
+            if (element instanceof String) {
+                knownLength += ((String) element).length();
+            } else {
+                final int argIdx = (Integer) element;
+                if (argTypes[argIdx].getSort() == Type.CHAR) {
+                    ++knownLength;
+                } else if (!TypeConversions.isPrimitive(argTypes[argIdx])) {
+                    mv.visitVarInsn(ALOAD, argVarIdxs[argIdx]);
+                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/String", "valueOf", "(Ljava/lang/Object;)Ljava/lang/String;", false);
+                    mv.visitVarInsn(ASTORE, argVarIdxs[argIdx]);
+                }
+            }
+        }
+
+        mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(knownLength);
+        for (int i = 0; i < argTypes.length; ++i) {
+            if (!TypeConversions.isPrimitive(argTypes[i])) {
+                mv.visitVarInsn(ALOAD, argVarIdxs[i]);
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+                mv.visitInsn(I2L);
+                mv.visitInsn(LADD);
+            }
+        }
+        mv.visitLdcInsn((long) Integer.MAX_VALUE);
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "min", "(JJ)J", false);
+        mv.visitInsn(L2I);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(I)V", false);
+
+        for (final Object element : elements) {
+            if (element instanceof String) {
+                mv.visitLdcInsn(element);
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+            } else {
+                final int argIdx = (Integer) element;
+                mv.visitVarInsn(argTypes[argIdx].getOpcode(ILOAD), argVarIdxs[argIdx]);
+                if (argTypes[argIdx].getSort() == Type.BOOLEAN) {
+                    owner.requireFrames();
+                    pushBooleanText(mv);
+                }
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", getAppendDescriptor(argTypes[argIdx]), false);
+            }
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+}
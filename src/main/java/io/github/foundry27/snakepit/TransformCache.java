@@ -0,0 +1,519 @@
+package io.github.foundry27.snakepit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An on-disk cache of transformed classes, keyed by a SHA-256 hash of the input class bytes, {@link #TRANSFORMER_VERSION}
+ * and the options which affect the transformation.
+ * <p>
+ * The cache directory holds an append-only {@code data} file with the serialized transformation results, and an
+ * {@code index} file with one fixed size record per result: the key, the offset and length of the result in the data
+ * file, and when a run last used it. The index is read once when the directory is opened and only written back when it is closed, while the
+ * cache directory stays locked so that concurrent runs cannot corrupt it.
+ * <p>
+ * Within a process, every cache opened on the same directory shares a single {@link Store} of its files, whatever
+ * configuration it was opened with, as a process cannot lock a file twice. The store is written back and unlocked once
+ * the last of them is closed. Each cache keeps its own hit and miss counts, and can be shared between threads.
+ * <p>
+ * A result whose frames were recomputed is stored with the common supertypes they were computed from, and is only
+ * used while the hierarchy of the run gives the same ones, as the supertypes of the classes it depends on may have
+ * changed since.
+ * <p>
+ * A cache directory may be shared by runs over different jars and configurations: results which no run used for
+ * {@link #MAX_UNUSED_AGE_MILLIS}, and the least recently used ones beyond {@link #MAX_CACHED_BYTES}, are dropped when the
+ * cache is closed, once they outweigh the ones which are kept.
+ *
+ * @author Foundry
+ */
+final class TransformCache implements Closeable {
+
+    /**
+     * Must be incremented whenever a change to the transformation changes the bytes it produces for the same input.
+     */
+    static final int TRANSFORMER_VERSION = 8;
+
+    private static final int INDEX_MAGIC = 0x534E4B43;
+
+    private static final int INDEX_FORMAT = 3;
+
+    private static final int INDEX_HEADER_LENGTH = 8;
+
+    private static final int KEY_LENGTH = 32;
+
+    private static final int INDEX_RECORD_LENGTH = KEY_LENGTH + 8 + 4 + 8;
+
+    /**
+     * How long a result is kept without any run using it.
+     */
+    static final long MAX_UNUSED_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * How many bytes of results are kept at most, dropping the least recently used ones first.
+     */
+    static final long MAX_CACHED_BYTES = 1L << 30;
+
+    /*
+     * the data file is only rewritten once it holds more than this much which is not kept
+     */
+    private static final long MIN_COMPACTION_GARBAGE = 1 << 20;
+
+    /*
+     * the stores open in this process by the real path of their directory, guarded by itself
+     */
+    private static final Map<Path, Store> OPEN_STORES = new HashMap<>();
+
+    private final Store store;
+
+    private final byte[] keySalt;
+
+    private final AtomicInteger hits;
+
+    private final AtomicInteger misses;
+
+    private final AtomicBoolean closed;
+
+    private TransformCache(final Store store, final String configuration) {
+        this.store = store;
+        this.keySalt = (TRANSFORMER_VERSION + ":" + configuration).getBytes(StandardCharsets.UTF_8);
+        this.hits = new AtomicInteger();
+        this.misses = new AtomicInteger();
+        this.closed = new AtomicBoolean();
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating it if needed, and locks it until the cache is closed. Results are
+     * only shared between runs with the same {@code configuration}.
+     */
+    static TransformCache open(final Path directory, final String configuration) throws IOException {
+        return new TransformCache(acquireStore(directory, true), configuration);
+    }
+
+    /**
+     * Like {@link #open}, but returns null instead of waiting when another process holds the cache.
+     */
+    static TransformCache tryOpen(final Path directory, final String configuration) throws IOException {
+        final Store store = acquireStore(directory, false);
+        return store == null ? null : new TransformCache(store, configuration);
+    }
+
+    /*
+     * a store opened by this process is shared right away, and only opening one waits for other processes
+     */
+    private static Store acquireStore(final Path directory, final boolean wait) throws IOException {
+        Files.createDirectories(directory);
+        final Path realDirectory = directory.toRealPath();
+        synchronized (OPEN_STORES) {
+            Store store = OPEN_STORES.get(realDirectory);
+            if (store == null) {
+                store = Store.open(realDirectory, wait);
+                if (store == null) {
+                    return null;
+                }
+                OPEN_STORES.put(realDirectory, store);
+            }
+            ++store.references;
+            return store;
+        }
+    }
+
+    private static final class Location {
+
+        final long offset;
+
+        final int length;
+
+        /*
+         * the time in milliseconds at which the store of the last run which used the result was opened
+         */
+        final long lastUsed;
+
+        Location(final long offset, final int length, final long lastUsed) {
+            this.offset = offset;
+            this.length = length;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * The files of a cache directory, with the results of every configuration, shared by the caches opened on it.
+     */
+    private static final class Store {
+
+        private final Path dataFile;
+
+        private final FileChannel indexChannel;
+
+        private final FileChannel dataChannel;
+
+        private final Map<ByteBuffer, Location> locations;
+
+        private final long openedAt;
+
+        private long dataEnd;
+
+        /*
+         * the number of open caches using this store, guarded by OPEN_STORES
+         */
+        private int references;
+
+        private Store(final Path directory, final FileChannel indexChannel) throws IOException {
+            this.dataFile = directory.resolve("data");
+            this.locations = new ConcurrentHashMap<>();
+            this.openedAt = System.currentTimeMillis();
+
+            this.indexChannel = indexChannel;
+            FileChannel data = null;
+            try {
+                data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.dataEnd = data.size();
+                this.dataChannel = data;
+                readIndex();
+            } catch (final IOException | RuntimeException e) {
+                if (data != null) {
+                    data.close();
+                }
+                indexChannel.close();
+                throw e;
+            }
+        }
+
+        /*
+         * returns null if the directory is locked by another process and wait is false
+         */
+        static Store open(final Path directory, final boolean wait) throws IOException {
+            final FileChannel indexChannel = FileChannel.open(directory.resolve("index"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (wait) {
+                    indexChannel.lock();
+                } else if (indexChannel.tryLock() == null) {
+                    indexChannel.close();
+                    return null;
+                }
+            } catch (final IOException | RuntimeException e) {
+                indexChannel.close();
+                throw e;
+            }
+            return new Store(directory, indexChannel);
+        }
+
+        /*
+         * an index with a foreign header is discarded together with its data, and records pointing past the end of the
+         * data file, as left behind by a run which did not finish writing it, are skipped
+         */
+        private void readIndex() throws IOException {
+            final long indexSize = indexChannel.size();
+            if (indexSize < INDEX_HEADER_LENGTH || indexSize > Integer.MAX_VALUE) {
+                resetFiles();
+                return;
+            }
+            final ByteBuffer index = ByteBuffer.allocate((int) indexSize);
+            readFully(indexChannel, index, 0);
+            if (index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_FORMAT) {
+                resetFiles();
+                return;
+            }
+            while (index.remaining() >= INDEX_RECORD_LENGTH) {
+                final byte[] key = new byte[KEY_LENGTH];
+                index.get(key);
+                final long offset = index.getLong();
+                final int length = index.getInt();
+                final long lastUsed = index.getLong();
+                if (offset >= 0 && length >= 0 && offset + length <= dataEnd) {
+                    locations.put(ByteBuffer.wrap(key), new Location(offset, length, lastUsed));
+                }
+            }
+        }
+
+        private void resetFiles() throws IOException {
+            indexChannel.truncate(0);
+            writeFully(indexChannel, (ByteBuffer) ((Buffer) ByteBuffer.allocate(INDEX_HEADER_LENGTH).putInt(INDEX_MAGIC).putInt(INDEX_FORMAT)).flip(), 0);
+            dataChannel.truncate(0);
+            dataEnd = 0;
+        }
+
+        byte[] read(final ByteBuffer key) throws IOException {
+            final Location location = locations.get(key);
+            if (location == null) {
+                return null;
+            }
+            final ByteBuffer record = ByteBuffer.allocate(location.length);
+            readFully(dataChannel, record, location.offset);
+            if (location.lastUsed != openedAt) {
+                locations.put(key, new Location(location.offset, location.length, openedAt));
+            }
+            return record.array();
+        }
+
+        void write(final ByteBuffer key, final byte[] record) throws IOException {
+            final long offset;
+            synchronized (this) {
+                offset = dataEnd;
+                dataEnd += record.length;
+            }
+            writeFully(dataChannel, ByteBuffer.wrap(record), offset);
+            locations.put(key, new Location(offset, record.length, openedAt));
+        }
+
+        /*
+         * the results which are kept, from the most recently used until they no longer fit into MAX_CACHED_BYTES or
+         * were last used more than MAX_UNUSED_AGE_MILLIS ago
+         */
+        private Map<ByteBuffer, Location> getKeptLocations() {
+            final List<Map.Entry<ByteBuffer, Location>> entries = new ArrayList<>(locations.entrySet());
+            entries.sort(Comparator.comparingLong((Map.Entry<ByteBuffer, Location> entry) -> entry.getValue().lastUsed).reversed());
+            final Map<ByteBuffer, Location> kept = new LinkedHashMap<>();
+            long keptBytes = 0;
+            for (final Map.Entry<ByteBuffer, Location> entry : entries) {
+                final Location location = entry.getValue();
+                if (openedAt - location.lastUsed > MAX_UNUSED_AGE_MILLIS || keptBytes + location.length > MAX_CACHED_BYTES) {
+                    break;
+                }
+                kept.put(entry.getKey(), location);
+                keptBytes += location.length;
+            }
+            return kept;
+        }
+
+        /*
+         * copies only the kept results into a fresh data file, in their order in the old one, which is then moved over
+         * the old one while the index is still locked
+         */
+        private void compact(final Map<ByteBuffer, Location> kept) throws IOException {
+            final List<Map.Entry<ByteBuffer, Location>> entries = new ArrayList<>(kept.entrySet());
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().offset));
+            final Path compactedData = dataFile.resolveSibling("data.tmp");
+            final Map<ByteBuffer, Location> compactedLocations = new LinkedHashMap<>();
+            try (final FileChannel out = FileChannel.open(compactedData, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long offset = 0;
+                for (final Map.Entry<ByteBuffer, Location> entry : entries) {
+                    final Location location = entry.getValue();
+                    final ByteBuffer record = ByteBuffer.allocate(location.length);
+                    readFully(dataChannel, record, location.offset);
+                    writeFully(out, record, offset);
+                    compactedLocations.put(entry.getKey(), new Location(offset, location.length, location.lastUsed));
+                    offset += location.length;
+                }
+            }
+            dataChannel.close();
+            Files.move(compactedData, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeIndex(compactedLocations);
+        }
+
+        /*
+         * the index is rewritten as a whole, as the runs which used a result are recorded in it
+         */
+        private void writeIndex(final Map<ByteBuffer, Location> records) throws IOException {
+            indexChannel.truncate(INDEX_HEADER_LENGTH);
+            writeFully(indexChannel, toIndexRecords(records), INDEX_HEADER_LENGTH);
+        }
+
+        void close() throws IOException {
+            try {
+                final Map<ByteBuffer, Location> kept = getKeptLocations();
+                final long keptBytes = kept.values().stream().mapToLong(location -> location.length).sum();
+                if (dataEnd - keptBytes > Math.max(keptBytes, MIN_COMPACTION_GARBAGE)) {
+                    compact(kept);
+                } else {
+                    writeIndex(locations);
+                }
+            } finally {
+                dataChannel.close();
+                indexChannel.close();
+            }
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        ((Buffer) buffer).flip();
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static ByteBuffer toIndexRecords(final Map<ByteBuffer, Location> records) {
+        final ByteBuffer index = ByteBuffer.allocate(records.size() * INDEX_RECORD_LENGTH);
+        records.forEach((key, location) -> index.put(key.duplicate()).putLong(location.offset).putInt(location.length).putLong(location.lastUsed));
+        ((Buffer) index).flip();
+        return index;
+    }
+
+    /**
+     * Returns the cache key of a class with the bytes {@code classBytes}.
+     */
+    ByteBuffer getKey(final byte[] classBytes) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(keySalt);
+        digest.update(classBytes);
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    /**
+     * Returns the classes stored for {@code key} by {@link #put}, in the same order, or null if there are none or
+     * {@code hierarchy} no longer gives the common supertypes they were stored with.
+     */
+    Map<String, byte[]> get(final ByteBuffer key, final ClassHierarchy hierarchy) {
+        try {
+            final byte[] record = store.read(key);
+            if (record == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            final Map<List<String>, String> commonSuperClasses = new LinkedHashMap<>();
+            final Map<String, byte[]> classes = deserialize(record, commonSuperClasses);
+            if (!hasCommonSuperClasses(classes, commonSuperClasses, hierarchy)) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return classes;
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * the classes of the result stand in for the class and the classes generated for it, which the frames were
+     * computed against as well
+     */
+    private static boolean hasCommonSuperClasses(final Map<String, byte[]> classes, final Map<List<String>, String> commonSuperClasses,
+                                                 final ClassHierarchy hierarchy) {
+        if (commonSuperClasses.isEmpty()) {
+            return true;
+        }
+        final ClassHierarchy current = new ClassHierarchy(classes::get, hierarchy);
+        try {
+            for (final Map.Entry<List<String>, String> entry : commonSuperClasses.entrySet()) {
+                if (!entry.getValue().equals(current.getCommonSuperClass(entry.getKey().get(0), entry.getKey().get(1)))) {
+                    return false;
+                }
+            }
+        } catch (final TypeNotPresentException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stores the classes a transformation produced for the class with the cache key {@code key}, where an empty map
+     * stands for a class which was left as it was, together with the common supertypes their frames were computed
+     * from, as collected by {@link ClassTransformation}.
+     */
+    void put(final ByteBuffer key, final Map<String, byte[]> classes, final Map<List<String>, String> commonSuperClasses) {
+        try {
+            store.write(key, serialize(classes, commonSuperClasses));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] serialize(final Map<String, byte[]> classes, final Map<List<String>, String> commonSuperClasses) {
+        final int size = classes.values().stream().mapToInt(bytes -> bytes.length + 64).sum();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + size);
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(classes.size());
+            for (final Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.writeInt(commonSuperClasses.size());
+            for (final Map.Entry<List<String>, String> entry : commonSuperClasses.entrySet()) {
+                out.writeUTF(entry.getKey().get(0));
+                out.writeUTF(entry.getKey().get(1));
+                out.writeUTF(entry.getValue());
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, byte[]> deserialize(final byte[] record, final Map<List<String>, String> commonSuperClasses) throws IOException {
+        try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            final int count = in.readInt();
+            final Map<String, byte[]> classes = new LinkedHashMap<>();
+            for (int i = 0; i < count; ++i) {
+                final String name = in.readUTF();
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes.put(name, bytes);
+            }
+            final int queryCount = in.readInt();
+            for (int i = 0; i < queryCount; ++i) {
+                final String type1 = in.readUTF();
+                final String type2 = in.readUTF();
+                commonSuperClasses.put(Arrays.asList(type1, type2), in.readUTF());
+            }
+            return classes;
+        }
+    }
+
+    int getHitCount() {
+        return hits.get();
+    }
+
+    int getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Writes the cache back and unlocks its directory, unless other caches in this process still use it. Closing a
+     * cache more than once has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        /*
+         * the store is closed while holding the lock, so that reopening the directory waits for its file lock to be
+         * released instead of overlapping it
+         */
+        synchronized (OPEN_STORES) {
+            if (--store.references == 0) {
+                OPEN_STORES.values().remove(store);
+                store.close();
+            }
+        }
+    }
+}
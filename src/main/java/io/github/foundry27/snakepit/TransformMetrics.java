@@ -0,0 +1,272 @@
+package io.github.foundry27.snakepit;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what a run of {@link Main} did and how long each of its phases took, to be reported as JSON and as JFR
+ * events. Workers record into one instance concurrently.
+ * <p>
+ * Entries go through the phases one at a time, but different entries are in different phases at once, so the time of
+ * a phase is summed over all threads and can exceed the wall time of the run when transforming in parallel.
+ *
+ * @author Foundry
+ */
+final class TransformMetrics {
+
+    enum Phase {
+
+        /**
+         * Reading and inflating class entries.
+         */
+        READ,
+
+        /**
+         * Walking the constant pools of class files for invokedynamic constants.
+         */
+        SCAN,
+
+        /**
+         * Rewriting classes, or looking them up in the transform cache.
+         */
+        TRANSFORM,
+
+        /**
+         * Compressing entries with new contents, on the thread which produced them.
+         */
+        COMPRESS,
+
+        /**
+         * Writing entries to the output archive, raw or as compressed ahead of time.
+         */
+        WRITE;
+
+        String getKey() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Map<Phase, LongAdder> phaseNanos;
+
+    private final LongAdder classes;
+
+    private final LongAdder classesWithInvokeDynamic;
+
+    private final LongAdder rewrittenClasses;
+
+    private final LongAdder generatedClasses;
+
+    private final LongAdder classBytesRead;
+
+    private final LongAdder classBytesWritten;
+
+    private final Map<String, LongAdder> constantsByBootstrapOwner;
+
+    private final boolean countsBootstrapMethods;
+
+    private volatile long wallNanos;
+
+    private volatile long inputArchiveBytes;
+
+    private volatile long outputArchiveBytes;
+
+    /**
+     * Counting the invokedynamic constants of every class by bootstrap method walks and copies their constant pools
+     * once more, so {@code countsBootstrapMethods} is only set when the counts are going to be reported.
+     */
+    TransformMetrics(final boolean countsBootstrapMethods) {
+        this.phaseNanos = new EnumMap<>(Phase.class);
+        for (final Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+        }
+        this.classes = new LongAdder();
+        this.classesWithInvokeDynamic = new LongAdder();
+        this.rewrittenClasses = new LongAdder();
+        this.generatedClasses = new LongAdder();
+        this.classBytesRead = new LongAdder();
+        this.classBytesWritten = new LongAdder();
+        this.constantsByBootstrapOwner = new ConcurrentHashMap<>();
+        this.countsBootstrapMethods = countsBootstrapMethods;
+    }
+
+    boolean countsBootstrapMethods() {
+        return countsBootstrapMethods;
+    }
+
+    /**
+     * Adds the time elapsed since {@code startNanos}, a value of {@link System#nanoTime}, to {@code phase}, and returns
+     * the current time so that the next phase can be timed from it.
+     */
+    long addPhaseTime(final Phase phase, final long startNanos) {
+        final long now = System.nanoTime();
+        phaseNanos.get(phase).add(now - startNanos);
+        return now;
+    }
+
+    void addClassRead(final int size) {
+        classes.increment();
+        classBytesRead.add(size);
+    }
+
+    void addClassWithInvokeDynamic() {
+        classesWithInvokeDynamic.increment();
+    }
+
+    /**
+     * Adds the invokedynamic constants of a class, as counted by {@link ConstantPoolScanner#countBootstrapMethods}.
+     */
+    void addInvokeDynamicConstants(final Map<String, Integer> countsByBootstrapMethod) {
+        countsByBootstrapMethod.forEach((bootstrapMethod, count) -> constantsByBootstrapOwner
+                .computeIfAbsent(bootstrapMethod.substring(0, bootstrapMethod.lastIndexOf('.')), owner -> new LongAdder())
+                .add(count));
+    }
+
+    /**
+     * Adds a rewritten class together with the classes generated for it, keyed as returned by
+     * {@link ClassTransformation#transform}.
+     */
+    void addRewrittenClasses(final Map<String, byte[]> classes) {
+        rewrittenClasses.increment();
+        generatedClasses.add(classes.size() - 1);
+    }
+
+    void addClassWritten(final int size) {
+        classBytesWritten.add(size);
+    }
+
+    void setWallNanos(final long wallNanos) {
+        this.wallNanos = wallNanos;
+    }
+
+    void setArchiveSizes(final long inputArchiveBytes, final long outputArchiveBytes) {
+        this.inputArchiveBytes = inputArchiveBytes;
+        this.outputArchiveBytes = outputArchiveBytes;
+    }
+
+    long getPhaseNanos(final Phase phase) {
+        return phaseNanos.get(phase).sum();
+    }
+
+    long getClassCount() {
+        return classes.sum();
+    }
+
+    long getClassWithInvokeDynamicCount() {
+        return classesWithInvokeDynamic.sum();
+    }
+
+    long getRewrittenClassCount() {
+        return rewrittenClasses.sum();
+    }
+
+    long getGeneratedClassCount() {
+        return generatedClasses.sum();
+    }
+
+    long getClassBytesRead() {
+        return classBytesRead.sum();
+    }
+
+    long getClassBytesWritten() {
+        return classBytesWritten.sum();
+    }
+
+    long getWallNanos() {
+        return wallNanos;
+    }
+
+    long getInputArchiveBytes() {
+        return inputArchiveBytes;
+    }
+
+    long getOutputArchiveBytes() {
+        return outputArchiveBytes;
+    }
+
+    /**
+     * Returns the number of invokedynamic constants by the binary name of the class declaring their bootstrap method,
+     * sorted by name, or nothing if they were not counted. Each constant can be used by any number of instructions.
+     */
+    Map<String, Long> getConstantsByBootstrapOwner() {
+        final Map<String, Long> constants = new TreeMap<>();
+        constantsByBootstrapOwner.forEach((owner, count) -> constants.put(owner, count.sum()));
+        return constants;
+    }
+
+    private static void appendString(final StringBuilder sb, final String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+
+    private static void appendMember(final StringBuilder sb, final String indent, final String name, final long value, final boolean last) {
+        sb.append(indent);
+        appendString(sb, name);
+        sb.append(": ").append(value).append(last ? "\n" : ",\n");
+    }
+
+    /**
+     * Returns the metrics as a JSON object, with {@code extra} members such as the cache statistics appended to it.
+     */
+    String toJson(final String input, final String output, final Map<String, Long> extra) {
+        final StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\n  \"input\": ");
+        appendString(sb, input);
+        sb.append(",\n  \"output\": ");
+        appendString(sb, output);
+        sb.append(",\n");
+        appendMember(sb, "  ", "wallNanos", wallNanos, false);
+
+        sb.append("  \"phaseNanos\": {\n");
+        for (final Phase phase : Phase.values()) {
+            appendMember(sb, "    ", phase.getKey(), getPhaseNanos(phase), phase.ordinal() == Phase.values().length - 1);
+        }
+        sb.append("  },\n  \"classes\": {\n");
+        appendMember(sb, "    ", "total", getClassCount(), false);
+        appendMember(sb, "    ", "withInvokeDynamic", getClassWithInvokeDynamicCount(), false);
+        appendMember(sb, "    ", "rewritten", getRewrittenClassCount(), false);
+        appendMember(sb, "    ", "generated", getGeneratedClassCount(), true);
+        sb.append("  },\n  \"bytes\": {\n");
+        appendMember(sb, "    ", "inputArchive", inputArchiveBytes, false);
+        appendMember(sb, "    ", "outputArchive", outputArchiveBytes, false);
+        appendMember(sb, "    ", "classesRead", getClassBytesRead(), false);
+        appendMember(sb, "    ", "classesWritten", getClassBytesWritten(), true);
+        sb.append("  },\n  \"invokeDynamicConstantsByBootstrapOwner\": {");
+        final Map<String, Long> constants = getConstantsByBootstrapOwner();
+        int remaining = constants.size();
+        sb.append(remaining == 0 ? "" : "\n");
+        for (final Map.Entry<String, Long> constant : constants.entrySet()) {
+            appendMember(sb, "    ", constant.getKey(), constant.getValue(), --remaining == 0);
+        }
+        sb.append(constants.isEmpty() ? "}" : "  }");
+
+        for (final Map.Entry<String, Long> member : extra.entrySet()) {
+            sb.append(",\n  ");
+            appendString(sb, member.getKey());
+            sb.append(": ").append(member.getValue());
+        }
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+}
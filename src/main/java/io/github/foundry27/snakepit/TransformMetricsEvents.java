@@ -0,0 +1,29 @@
+package io.github.foundry27.snakepit;
+
+/**
+ * Stands in for the JFR events of {@link TransformMetrics} on Java 8, which has no {@code jdk.jfr} API to compile them
+ * against. Java 11 and up use the version under {@code src/main/java11}, which the jar carries as a multi-release
+ * class, and which commits the metrics as events.
+ *
+ * @author Foundry
+ */
+final class TransformMetricsEvents {
+
+    private TransformMetricsEvents() {
+        throw new UnsupportedOperationException();
+    }
+
+    static boolean isAvailable() {
+        return false;
+    }
+
+    static boolean isRecordingBootstrapConstants() {
+        return false;
+    }
+
+    static void commit(final TransformMetrics metrics, final String input, final String output) {
+        /*
+         * there is no flight recorder to commit to
+         */
+    }
+}
@@ -0,0 +1,311 @@
+package io.github.foundry27.snakepit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The command line options of {@link Main}: {@code [options] <input jar> [output jar]}. The same options without any
+ * files configure a {@link SnakepitTransformer}, which gets the files of each archive it transforms separately.
+ *
+ * @author Foundry
+ */
+final class TransformOptions {
+
+    private static final long DEFAULT_MAX_BUFFERED_BYTES = 256L << 20;
+
+    final File sourceFile;
+
+    final String outputFileName;
+
+    /**
+     * The number of worker threads transforming entries, where 1 transforms everything on the calling thread.
+     */
+    final int jobs;
+
+    /**
+     * The estimated number of bytes of entry data which parallel workers may hold on the heap at once before the writer
+     * has caught up with them.
+     */
+    final long maxBufferedBytes;
+
+    /**
+     * Whether to only report the bootstrap methods used by the input's invokedynamic call sites, without writing an
+     * output jar.
+     */
+    final boolean scanOnly;
+
+    /**
+     * The directory of the {@link TransformCache} to reuse transformed classes from, or null to transform every class.
+     */
+    final File cacheDirectory;
+
+    /**
+     * Jars with the classes the input depends on, which are only read to compute stack map frames for rewritten
+     * classes.
+     */
+    final List<File> classpath;
+
+    /**
+     * Whether rewritten call sites with a generic bootstrap method report to {@link CallSiteTelemetry}, which is
+     * then added to the archives they are in, together with its MXBean interface.
+     */
+    final boolean recordTelemetry;
+
+    /**
+     * The file to write the {@link TransformMetrics} of the run to as JSON, {@code -} for standard output, or null.
+     */
+    final String metricsFileName;
+
+    /**
+     * Which call sites to rewrite, as read from the file given with {@code --policy}.
+     */
+    final RewritePolicy policy;
+
+    /**
+     * Whether rewritten call sites with a generic bootstrap method are linked through {@link SnakepitRuntime}, which is
+     * then added to the archives they are in.
+     */
+    final boolean useSharedRuntime;
+
+    /**
+     * How class files are compressed, as given with {@code --compression class=...}, or null to compress rewritten and
+     * generated classes at the default level and copy all others as they are.
+     */
+    final ZipCompression classCompression;
+
+    /**
+     * How nested archives are compressed, as given with {@code --compression jar=...}, or null to copy those without
+     * rewritten classes as they are, and to store the others uncompressed if they were and compress them otherwise.
+     */
+    final ZipCompression archiveCompression;
+
+    /**
+     * How all other files are compressed, as given with {@code --compression other=...}, or null to copy them as they
+     * are.
+     */
+    final ZipCompression resourceCompression;
+
+    private TransformOptions(final File sourceFile, final String outputFileName, final int jobs, final long maxBufferedBytes,
+                             final boolean scanOnly, final File cacheDirectory, final List<File> classpath,
+                             final boolean recordTelemetry, final String metricsFileName, final RewritePolicy policy,
+                             final boolean useSharedRuntime, final ZipCompression classCompression,
+                             final ZipCompression archiveCompression, final ZipCompression resourceCompression) {
+        this.sourceFile = sourceFile;
+        this.outputFileName = outputFileName;
+        this.jobs = jobs;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.scanOnly = scanOnly;
+        this.cacheDirectory = cacheDirectory;
+        this.classpath = classpath;
+        this.recordTelemetry = recordTelemetry;
+        this.metricsFileName = metricsFileName;
+        this.policy = policy;
+        this.useSharedRuntime = useSharedRuntime;
+        this.classCompression = classCompression;
+        this.archiveCompression = archiveCompression;
+        this.resourceCompression = resourceCompression;
+    }
+
+    /**
+     * Returns these options with another input and output archive.
+     */
+    TransformOptions withFiles(final File sourceFile, final String outputFileName) {
+        return new TransformOptions(sourceFile, outputFileName, jobs, maxBufferedBytes, scanOnly, cacheDirectory, classpath,
+                recordTelemetry, metricsFileName, policy, useSharedRuntime, classCompression, archiveCompression, resourceCompression);
+    }
+
+    /**
+     * Describes the options which change the bytes of transformed classes, so that cached classes are only reused by
+     * runs which would have produced the same bytes. The classpath does so through the stack map frames, and is
+     * described by its file names alone, as the jars it names change between runs: the cache checks the supertypes the
+     * frames of a result were computed from against the current jars before reusing it. The policy is described by its
+     * rules, which change with the profile it was generated from.
+     */
+    String describeTransformConfiguration() {
+        final StringBuilder sb = new StringBuilder(recordTelemetry ? "telemetry;" : "");
+        if (useSharedRuntime) {
+            sb.append("shared-runtime;");
+        }
+        if (policy != RewritePolicy.ALLOW_ALL) {
+            sb.append("policy[").append(policy.describe()).append("];");
+        }
+        for (final File file : classpath) {
+            sb.append(file.getAbsolutePath()).append(File.pathSeparatorChar);
+        }
+        return sb.toString();
+    }
+
+    private static String getOptionValue(final String[] args, final int idx) {
+        if (idx < args.length) {
+            return args[idx];
+        } else {
+            throw new IllegalStateException("option '" + args[idx - 1] + "' requires a value");
+        }
+    }
+
+    private static int parseJobCount(final String value) {
+        final int jobs;
+        try {
+            jobs = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalStateException("'" + value + "' is not a valid number of jobs", e);
+        }
+        if (jobs < 0) {
+            throw new IllegalStateException("the number of jobs cannot be negative");
+        }
+        return jobs == 0 ? Runtime.getRuntime().availableProcessors() : jobs;
+    }
+
+    /*
+     * a byte count with an optional k, m or g suffix for powers of 1024
+     */
+    private static long parseByteCount(final String value) {
+        final String lower = value.toLowerCase(Locale.ROOT);
+        final int shift;
+        switch (lower.isEmpty() ? ' ' : lower.charAt(lower.length() - 1)) {
+            case 'k':
+                shift = 10;
+                break;
+            case 'm':
+                shift = 20;
+                break;
+            case 'g':
+                shift = 30;
+                break;
+            default:
+                shift = 0;
+                break;
+        }
+        final long count;
+        try {
+            count = Long.parseLong(shift == 0 ? lower : lower.substring(0, lower.length() - 1));
+        } catch (final NumberFormatException e) {
+            throw new IllegalStateException("'" + value + "' is not a valid byte count", e);
+        }
+        if (count <= 0 || count > Long.MAX_VALUE >> shift) {
+            throw new IllegalStateException("'" + value + "' is not a valid byte count");
+        }
+        return count << shift;
+    }
+
+    static TransformOptions parse(final String[] args) {
+        return parse(args, null, true);
+    }
+
+    /*
+     * relative file names are resolved against workingDirectory, unless it is null
+     */
+    private static File resolveFile(final File workingDirectory, final String fileName) {
+        final File file = new File(fileName);
+        return workingDirectory == null || file.isAbsolute() ? file : new File(workingDirectory, fileName);
+    }
+
+    /**
+     * Parses {@code args} as given in {@code workingDirectory}, or as given to this process if null. Without
+     * {@code requireInput}, the input and output archive may be left out, and are then null.
+     */
+    static TransformOptions parse(final String[] args, final File workingDirectory, final boolean requireInput) {
+        final List<String> positional = new ArrayList<>();
+        int jobs = 1;
+        long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+        boolean scanOnly = false;
+        File cacheDirectory = null;
+        final List<File> classpath = new ArrayList<>();
+        boolean recordTelemetry = false;
+        String metricsFileName = null;
+        RewritePolicy policy = RewritePolicy.ALLOW_ALL;
+        boolean useSharedRuntime = false;
+        ZipCompression classCompression = null;
+        ZipCompression archiveCompression = null;
+        ZipCompression resourceCompression = null;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "-j": //fall through
+                case "--jobs":
+                    jobs = parseJobCount(getOptionValue(args, ++i));
+                    break;
+                case "--max-buffered-bytes":
+                    maxBufferedBytes = parseByteCount(getOptionValue(args, ++i));
+                    break;
+                case "--cache":
+                    cacheDirectory = resolveFile(workingDirectory, getOptionValue(args, ++i));
+                    break;
+                case "-cp": //fall through
+                case "--classpath":
+                    for (final String path : getOptionValue(args, ++i).split(Pattern.quote(File.pathSeparator))) {
+                        if (!path.isEmpty()) {
+                            classpath.add(resolveFile(workingDirectory, path));
+                        }
+                    }
+                    break;
+                case "--telemetry":
+                    recordTelemetry = true;
+                    break;
+                case "--metrics":
+                    final String metrics = getOptionValue(args, ++i);
+                    metricsFileName = "-".equals(metrics) ? metrics : resolveFile(workingDirectory, metrics).getPath();
+                    break;
+                case "--policy":
+                    final File policyFile = resolveFile(workingDirectory, getOptionValue(args, ++i));
+                    try {
+                        policy = RewritePolicy.parse(policyFile.toPath());
+                    } catch (final IOException e) {
+                        throw new IllegalStateException("cannot read policy file '" + policyFile + "': " + e, e);
+                    }
+                    break;
+                case "--shared-runtime":
+                    useSharedRuntime = true;
+                    break;
+                case "--compression":
+                    /*
+                     * a comma separated list of type=level, or a level for every type
+                     */
+                    for (final String setting : getOptionValue(args, ++i).split(",")) {
+                        final int separator = setting.indexOf('=');
+                        final ZipCompression compression = ZipCompression.parse(setting.substring(separator + 1));
+                        switch (separator < 0 ? "all" : setting.substring(0, separator)) {
+                            case "all":
+                                classCompression = compression;
+                                archiveCompression = compression;
+                                resourceCompression = compression;
+                                break;
+                            case "class":
+                                classCompression = compression;
+                                break;
+                            case "jar":
+                                archiveCompression = compression;
+                                break;
+                            case "other":
+                                resourceCompression = compression;
+                                break;
+                            default:
+                                throw new IllegalStateException("unknown entry type '" + setting.substring(0, separator)
+                                        + "', expected class, jar or other");
+                        }
+                    }
+                    break;
+                case "--scan":
+                    scanOnly = true;
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalStateException("unknown option '" + args[i] + "'");
+                    }
+                    positional.add(args[i]);
+                    break;
+            }
+        }
+
+        if (positional.isEmpty() && requireInput) {
+            throw new IllegalStateException("an input file name must be specified as a first argument");
+        }
+        final File sourceFile = positional.isEmpty() ? null : resolveFile(workingDirectory, positional.get(0));
+        final String outputFileName = positional.isEmpty() ? null : resolveFile(workingDirectory, positional.size() > 1 ? positional.get(1) : "out.jar").getPath();
+        return new TransformOptions(sourceFile, outputFileName, jobs, maxBufferedBytes, scanOnly, cacheDirectory, classpath,
+                recordTelemetry, metricsFileName, policy, useSharedRuntime, classCompression, archiveCompression, resourceCompression);
+    }
+}
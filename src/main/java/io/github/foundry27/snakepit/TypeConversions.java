@@ -0,0 +1,133 @@
+package io.github.foundry27.snakepit;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Emits the conversions between primitive, wrapper and reference types which method handle adaptation performs.
+ *
+ * @author Foundry
+ */
+final class TypeConversions {
+
+    private TypeConversions() {
+    }
+
+    static boolean isPrimitive(final Type t) {
+        return t.getSort() != Type.OBJECT && t.getSort() != Type.ARRAY;
+    }
+
+    static String getWrapperName(final Type primitiveType) {
+        switch (primitiveType.getSort()) {
+            case Type.BOOLEAN:
+                return "java/lang/Boolean";
+            case Type.BYTE:
+                return "java/lang/Byte";
+            case Type.CHAR:
+                return "java/lang/Character";
+            case Type.SHORT:
+                return "java/lang/Short";
+            case Type.INT:
+                return "java/lang/Integer";
+            case Type.LONG:
+                return "java/lang/Long";
+            case Type.FLOAT:
+                return "java/lang/Float";
+            case Type.DOUBLE:
+                return "java/lang/Double";
+            default:
+                throw new IllegalStateException("type '" + primitiveType.getClassName() + "' is not primitive");
+        }
+    }
+
+    static Type getUnwrappedType(final Type referenceType) {
+        switch (referenceType.getInternalName()) {
+            case "java/lang/Boolean":
+                return Type.BOOLEAN_TYPE;
+            case "java/lang/Byte":
+                return Type.BYTE_TYPE;
+            case "java/lang/Character":
+                return Type.CHAR_TYPE;
+            case "java/lang/Short":
+                return Type.SHORT_TYPE;
+            case "java/lang/Integer":
+                return Type.INT_TYPE;
+            case "java/lang/Long":
+                return Type.LONG_TYPE;
+            case "java/lang/Float":
+                return Type.FLOAT_TYPE;
+            case "java/lang/Double":
+                return Type.DOUBLE_TYPE;
+            default:
+                return null;
+        }
+    }
+
+    static void box(final MethodVisitor mv, final Type primitiveType) {
+        final String wrapperName = getWrapperName(primitiveType);
+        mv.visitMethodInsn(INVOKESTATIC, wrapperName, "valueOf", "(" + primitiveType.getDescriptor() + ")L" + wrapperName + ";", false);
+    }
+
+    static void unbox(final MethodVisitor mv, final Type primitiveType) {
+        final String wrapperName = getWrapperName(primitiveType);
+        mv.visitTypeInsn(CHECKCAST, wrapperName);
+        mv.visitMethodInsn(INVOKEVIRTUAL, wrapperName, primitiveType.getClassName() + "Value", "()" + primitiveType.getDescriptor(), false);
+    }
+
+    static void widen(final MethodVisitor mv, final Type from, final Type to) {
+        final int fromSort = from.getSort() <= Type.INT ? Type.INT : from.getSort();
+        final int toSort = to.getSort() <= Type.INT ? Type.INT : to.getSort();
+        if (fromSort == toSort) {
+            return;
+        }
+        switch (fromSort * 16 + toSort) {
+            case Type.INT * 16 + Type.LONG:
+                mv.visitInsn(I2L);
+                break;
+            case Type.INT * 16 + Type.FLOAT:
+                mv.visitInsn(I2F);
+                break;
+            case Type.INT * 16 + Type.DOUBLE:
+                mv.visitInsn(I2D);
+                break;
+            case Type.LONG * 16 + Type.FLOAT:
+                mv.visitInsn(L2F);
+                break;
+            case Type.LONG * 16 + Type.DOUBLE:
+                mv.visitInsn(L2D);
+                break;
+            case Type.FLOAT * 16 + Type.DOUBLE:
+                mv.visitInsn(F2D);
+                break;
+            default:
+                throw new UnsupportedOperationException("Cannot widen '" + from.getClassName() + "' to '" + to.getClassName() + "'");
+        }
+    }
+
+    /*
+     * applies the same adaptations LambdaMetafactory and MethodHandle.asType permit between two types: reference
+     * casts, primitive widening, boxing and unboxing
+     */
+    static void convert(final MethodVisitor mv, final Type from, final Type to) {
+        if (from.equals(to)) {
+            return;
+        }
+        if (isPrimitive(from) && isPrimitive(to)) {
+            widen(mv, from, to);
+        } else if (isPrimitive(from)) {
+            box(mv, from);
+        } else if (isPrimitive(to)) {
+            final Type unwrapped = getUnwrappedType(from);
+            if (unwrapped == null) {
+                unbox(mv, to);
+            } else {
+                unbox(mv, unwrapped);
+                widen(mv, unwrapped, to);
+            }
+        } else if (!"java/lang/Object".equals(to.getInternalName())) {
+            mv.visitTypeInsn(CHECKCAST, to.getInternalName());
+        }
+    }
+}
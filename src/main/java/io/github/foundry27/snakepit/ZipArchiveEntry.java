@@ -0,0 +1,71 @@
+package io.github.foundry27.snakepit;
+
+/**
+ * The central directory record of a single entry in a zip archive, as read by {@link ZipArchiveReader} and written by
+ * {@link ZipArchiveWriter}.
+ *
+ * @author Foundry
+ */
+final class ZipArchiveEntry {
+
+    static final int STORED = 0;
+
+    static final int DEFLATED = 8;
+
+    final String name;
+
+    final int versionMadeBy;
+
+    final int flags;
+
+    final int method;
+
+    /**
+     * The MS-DOS date in the upper 16 bits and the MS-DOS time in the lower 16 bits.
+     */
+    final int dosDateTime;
+
+    final int crc;
+
+    final long compressedSize;
+
+    final long size;
+
+    /**
+     * The offset of the entry's local header from the start of the archive.
+     */
+    final long localHeaderOffset;
+
+    /**
+     * The extra field of the central directory record, without any zip64 extended information.
+     */
+    final byte[] extra;
+
+    final byte[] comment;
+
+    final int internalAttributes;
+
+    final int externalAttributes;
+
+    ZipArchiveEntry(final String name, final int versionMadeBy, final int flags, final int method, final int dosDateTime,
+                    final int crc, final long compressedSize, final long size, final long localHeaderOffset,
+                    final byte[] extra, final byte[] comment, final int internalAttributes, final int externalAttributes) {
+        this.name = name;
+        this.versionMadeBy = versionMadeBy;
+        this.flags = flags;
+        this.method = method;
+        this.dosDateTime = dosDateTime;
+        this.crc = crc;
+        this.compressedSize = compressedSize;
+        this.size = size;
+        this.localHeaderOffset = localHeaderOffset;
+        this.extra = extra;
+        this.comment = comment;
+        this.internalAttributes = internalAttributes;
+        this.externalAttributes = externalAttributes;
+    }
+
+    boolean isDirectory() {
+        return name.endsWith("/");
+    }
+}
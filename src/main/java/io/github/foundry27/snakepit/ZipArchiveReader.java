@@ -0,0 +1,531 @@
+package io.github.foundry27.snakepit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the central directory of a zip archive and gives access to the data of its entries, either inflated or as the
+ * raw stored bytes. All reads are positional, so one reader can be shared between threads.
+ * <p>
+ * The archive is memory-mapped in overlapping segments, so that headers and entry data are read straight from the
+ * page cache without any intermediate buffer, however large the archive is. Raw copies are left to
+ * {@link FileChannel#transferTo}, which lets the kernel move the bytes without them passing through the heap.
+ * <p>
+ * Closing the reader unmaps the segments right away rather than whenever the buffers are collected, which a long
+ * running process might not get to before it runs out of address space, and which keeps the file from being deleted
+ * on some platforms. So the reader must only be closed once nothing reads from it any more, including the streams it
+ * returned.
+ *
+ * @author Foundry
+ */
+final class ZipArchiveReader implements Closeable {
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    static final int ZIP64_EXTRA_ID = 0x0001;
+
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int LOCAL_HEADER_LENGTH = 30;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH = 56;
+
+    /*
+     * segment i maps the file from i * SEGMENT_STRIDE on for as much as one buffer can hold, so that every region of
+     * up to MAX_MAPPED_REGION_LENGTH bytes lies entirely within a single segment. Anything larger than that is read
+     * through the channel instead
+     */
+    private static final long SEGMENT_STRIDE = 1L << 30;
+
+    private static final long MAX_MAPPED_REGION_LENGTH = Integer.MAX_VALUE - SEGMENT_STRIDE;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer[] segments;
+
+    /*
+     * where offset 0 of the archive lies in the file, which is not the start of the file when something like a
+     * launch script has been prepended to the archive
+     */
+    private final long archiveStart;
+
+    private final List<ZipArchiveEntry> entries;
+
+    ZipArchiveReader(final Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        MappedByteBuffer[] segments = null;
+        try {
+            final long fileSize = channel.size();
+            segments = mapSegments(channel, fileSize);
+            this.segments = segments;
+            final long eocdPosition = findEndOfCentralDirectory(fileSize);
+            final ByteBuffer eocd = read(eocdPosition, END_OF_CENTRAL_DIRECTORY_LENGTH);
+            long entryCount = eocd.getShort(10) & 0xFFFF;
+            long centralDirectorySize = eocd.getInt(12) & ZIP64_MAGIC;
+            long centralDirectoryOffset = eocd.getInt(16) & ZIP64_MAGIC;
+            long centralDirectoryEnd = eocdPosition;
+
+            if (eocdPosition >= ZIP64_LOCATOR_LENGTH && read(eocdPosition - ZIP64_LOCATOR_LENGTH, 4).getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                final long zip64EocdPosition = findZip64EndOfCentralDirectory(read(eocdPosition - ZIP64_LOCATOR_LENGTH, ZIP64_LOCATOR_LENGTH).getLong(8), eocdPosition);
+                final ByteBuffer zip64Eocd = read(zip64EocdPosition, ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH);
+                entryCount = zip64Eocd.getLong(32);
+                centralDirectorySize = zip64Eocd.getLong(40);
+                centralDirectoryOffset = zip64Eocd.getLong(48);
+                centralDirectoryEnd = zip64EocdPosition;
+            }
+
+            this.archiveStart = centralDirectoryEnd - centralDirectorySize - centralDirectoryOffset;
+            if (archiveStart < 0 || centralDirectorySize > Integer.MAX_VALUE) {
+                throw new IOException("malformed zip archive: invalid central directory bounds");
+            }
+            this.entries = Collections.unmodifiableList(readCentralDirectory(archiveStart + centralDirectoryOffset, (int) centralDirectorySize, entryCount));
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            if (segments != null) {
+                unmap(segments);
+            }
+            throw e;
+        }
+    }
+
+    private static MappedByteBuffer[] mapSegments(final FileChannel channel, final long fileSize) throws IOException {
+        final List<MappedByteBuffer> segments = new ArrayList<>();
+        for (long start = 0; start < fileSize; start += SEGMENT_STRIDE) {
+            final long length = Math.min(fileSize - start, Integer.MAX_VALUE);
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+            if (start + length == fileSize) {
+                break;
+            }
+        }
+        return segments.toArray(new MappedByteBuffer[0]);
+    }
+
+    /*
+     * a little endian view of the given region of the file which does not share its position with anything else, or
+     * null if the region is too large to have been mapped in one piece
+     */
+    private ByteBuffer getMappedRegion(final long position, final long length) throws IOException {
+        if (length > MAX_MAPPED_REGION_LENGTH) {
+            return null;
+        }
+        /*
+         * a closed reader has unmapped its segments, which would crash the JVM rather than fail if they were read
+         */
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        /*
+         * the last segment reaches the end of the file, past the start of any further segment
+         */
+        final int segmentIdx = (int) Math.min(position / SEGMENT_STRIDE, segments.length - 1);
+        if (position < 0 || segmentIdx < 0) {
+            throw new EOFException("unexpected end of zip archive");
+        }
+        /*
+         * buffers are positioned through Buffer, as the covariant overrides Java 9 added to ByteBuffer and
+         * MappedByteBuffer do not exist on Java 8
+         */
+        final ByteBuffer segment = ((ByteBuffer) segments[segmentIdx]).duplicate();
+        final long offset = position - segmentIdx * SEGMENT_STRIDE;
+        if (offset + length > segment.capacity()) {
+            throw new EOFException("unexpected end of zip archive");
+        }
+        ((Buffer) segment).position((int) offset);
+        ((Buffer) segment).limit((int) (offset + length));
+        return segment.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer read(final long position, final int length) throws IOException {
+        final ByteBuffer mapped = getMappedRegion(position, length);
+        if (mapped != null) {
+            return mapped;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of zip archive");
+            }
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    private long findEndOfCentralDirectory(final long fileSize) throws IOException {
+        final int tailLength = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_LENGTH + 0xFFFF);
+        final long tailPosition = fileSize - tailLength;
+        final ByteBuffer tail = read(tailPosition, tailLength);
+        for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_LENGTH; i >= 0; --i) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE && i + END_OF_CENTRAL_DIRECTORY_LENGTH + (tail.getShort(i + 20) & 0xFFFF) == tailLength) {
+                return tailPosition + i;
+            }
+        }
+        throw new IOException("not a zip archive: no end of central directory record found");
+    }
+
+    /*
+     * the locator holds an archive-relative offset, which is only a file position if nothing was prepended to the
+     * archive, but without an extensible data sector the record sits directly in front of the locator
+     */
+    private long findZip64EndOfCentralDirectory(final long locatedOffset, final long eocdPosition) throws IOException {
+        final long adjacentPosition = eocdPosition - ZIP64_LOCATOR_LENGTH - ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH;
+        for (final long candidate : new long[]{locatedOffset, adjacentPosition}) {
+            if (candidate >= 0 && candidate <= adjacentPosition && read(candidate, 4).getInt(0) == ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                return candidate;
+            }
+        }
+        throw new IOException("malformed zip archive: no zip64 end of central directory record found");
+    }
+
+    private List<ZipArchiveEntry> readCentralDirectory(final long position, final int length, final long entryCount) throws IOException {
+        final ByteBuffer cd = read(position, length);
+        final List<ZipArchiveEntry> entries = new ArrayList<>((int) Math.min(entryCount, 1 << 16));
+        while (cd.remaining() >= 46) {
+            if (cd.getInt() != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("malformed zip archive: invalid central directory header signature");
+            }
+            final int versionMadeBy = cd.getShort() & 0xFFFF;
+            cd.getShort(); //version needed to extract, recomputed when writing
+            final int flags = cd.getShort() & 0xFFFF;
+            final int method = cd.getShort() & 0xFFFF;
+            final int dosTime = cd.getShort() & 0xFFFF;
+            final int dosDate = cd.getShort() & 0xFFFF;
+            final int crc = cd.getInt();
+            long compressedSize = cd.getInt() & ZIP64_MAGIC;
+            long size = cd.getInt() & ZIP64_MAGIC;
+            final int nameLength = cd.getShort() & 0xFFFF;
+            final int extraLength = cd.getShort() & 0xFFFF;
+            final int commentLength = cd.getShort() & 0xFFFF;
+            cd.getShort(); //disk number start
+            final int internalAttributes = cd.getShort() & 0xFFFF;
+            final int externalAttributes = cd.getInt();
+            long localHeaderOffset = cd.getInt() & ZIP64_MAGIC;
+
+            final byte[] nameBytes = new byte[nameLength];
+            cd.get(nameBytes);
+            final byte[] extra = new byte[extraLength];
+            cd.get(extra);
+            final byte[] comment = new byte[commentLength];
+            cd.get(comment);
+
+            /*
+             * the zip64 extended information only holds the values whose 32 bit fields overflowed, in this order
+             */
+            final ByteBuffer extraBuffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+            final ByteArrayOutputStream retainedExtra = new ByteArrayOutputStream(extraLength);
+            while (extraBuffer.remaining() >= 4) {
+                final int headerId = extraBuffer.getShort() & 0xFFFF;
+                final int dataSize = Math.min(extraBuffer.getShort() & 0xFFFF, extraBuffer.remaining());
+                final int dataStart = extraBuffer.position();
+                if (headerId == ZIP64_EXTRA_ID) {
+                    if (size == ZIP64_MAGIC) {
+                        size = extraBuffer.getLong();
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = extraBuffer.getLong();
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC) {
+                        localHeaderOffset = extraBuffer.getLong();
+                    }
+                } else {
+                    retainedExtra.write(extra, dataStart - 4, dataSize + 4);
+                }
+                ((Buffer) extraBuffer).position(dataStart + dataSize);
+            }
+
+            entries.add(new ZipArchiveEntry(new String(nameBytes, StandardCharsets.UTF_8), versionMadeBy, flags, method,
+                    (dosDate << 16) | dosTime, crc, compressedSize, size, localHeaderOffset,
+                    retainedExtra.toByteArray(), comment, internalAttributes, externalAttributes));
+        }
+        return entries;
+    }
+
+    List<ZipArchiveEntry> getEntries() {
+        return entries;
+    }
+
+    private long getDataPosition(final ZipArchiveEntry entry) throws IOException {
+        final long headerPosition = archiveStart + entry.localHeaderOffset;
+        final ByteBuffer header = read(headerPosition, LOCAL_HEADER_LENGTH);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("malformed zip archive: invalid local header signature for '" + entry.name + "'");
+        }
+        return headerPosition + LOCAL_HEADER_LENGTH + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+
+    /**
+     * Copies the entry's data, exactly as it is stored in the archive, to {@code target}.
+     */
+    void transferRawData(final ZipArchiveEntry entry, final WritableByteChannel target) throws IOException {
+        long position = getDataPosition(entry);
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            final long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new EOFException("unexpected end of zip archive while copying '" + entry.name + "'");
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    /**
+     * Opens a stream over the entry's uncompressed data.
+     */
+    InputStream getInputStream(final ZipArchiveEntry entry) throws IOException {
+        final long dataPosition = getDataPosition(entry);
+        final ByteBuffer mapped = getMappedRegion(dataPosition, entry.compressedSize);
+        final InputStream raw = mapped != null
+                ? new ByteBufferInputStream(mapped)
+                : new ChannelRegionInputStream(channel, dataPosition, entry.compressedSize);
+        switch (entry.method) {
+            case ZipArchiveEntry.STORED:
+                return raw;
+            case ZipArchiveEntry.DEFLATED:
+                return new RawInflaterInputStream(raw);
+            default:
+                throw new IOException("unsupported compression method " + entry.method + " for '" + entry.name + "'");
+        }
+    }
+
+    /**
+     * Reads the entry's uncompressed data into an array.
+     */
+    byte[] readData(final ZipArchiveEntry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE - 8) {
+            throw new IOException("entry '" + entry.name + "' of " + entry.size + " bytes is too large to buffer");
+        }
+        try (final InputStream is = getInputStream(entry)) {
+            /*
+             * the central directory already tells us the size, so this normally fills a single exactly sized array
+             */
+            byte[] data = new byte[(int) entry.size];
+            int length = 0;
+            int nRead;
+            while ((nRead = is.read(data, length, data.length - length)) != -1) {
+                length += nRead;
+                if (length == data.length) {
+                    final int next = is.read();
+                    if (next == -1) {
+                        return data;
+                    }
+                    data = Arrays.copyOf(data, Math.max(16, data.length * 2));
+                    data[length++] = (byte) next;
+                }
+            }
+            return length == data.length ? data : Arrays.copyOf(data, length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.close();
+            unmap(segments);
+        }
+    }
+
+    private static void unmap(final MappedByteBuffer[] segments) {
+        for (final MappedByteBuffer segment : segments) {
+            BufferUnmapper.unmap(segment);
+        }
+    }
+
+    /*
+     * there is no public way to unmap a buffer, so this goes through sun.misc.Unsafe#invokeCleaner on Java 9 and up,
+     * and through the cleaner of the buffer itself on Java 8. Where neither can be reached, buffers are left to be
+     * unmapped when they are collected, as they were before
+     */
+    private static final class BufferUnmapper {
+
+        private static final Object UNSAFE;
+
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafe = theUnsafe.get(null);
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        static void unmap(final MappedByteBuffer buffer) {
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                } else {
+                    final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    final Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                /*
+                 * left to the garbage collector
+                 */
+            }
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            ((Buffer) buffer).position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static final class ChannelRegionInputStream extends InputStream {
+
+        private final FileChannel channel;
+
+        private long position;
+
+        private long remaining;
+
+        ChannelRegionInputStream(final FileChannel channel, final long position, final long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (n < 0) {
+                throw new EOFException("unexpected end of zip archive");
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(n, remaining));
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+
+    private static final class RawInflaterInputStream extends InflaterInputStream {
+
+        private boolean eof;
+
+        RawInflaterInputStream(final InputStream in) {
+            super(in, new Inflater(true), 8192);
+        }
+
+        /*
+         * an inflater in nowrap mode needs one dummy byte past the end of the deflated data
+         */
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("unexpected end of deflated data");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package io.github.foundry27.snakepit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive sequentially. Entries can either be copied as raw stored bytes from a {@link ZipArchiveReader},
+ * keeping their original compression, CRC and sizes, or be written from bytes {@link #compress} compressed ahead of
+ * time, possibly on other threads, and held in memory or spooled to a file.
+ *
+ * @author Foundry
+ */
+final class ZipArchiveWriter implements Closeable {
+
+    private static final int VERSION_DEFAULT = 20;
+
+    private static final int VERSION_ZIP64 = 45;
+
+    /*
+     * set when sizes and CRC follow the data in a data descriptor, which is never the case for what this writes
+     */
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    /*
+     * deflaters are never ended explicitly, as they belong to threads the writer does not own; they are freed once
+     * their thread is gone
+     */
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final FileChannel channel;
+
+    private final List<ZipArchiveEntry> written;
+
+    private final ByteBuffer headerBuffer;
+
+    private long position;
+
+    /**
+     * The contents of an entry as they are stored in the archive, together with the CRC and size of the uncompressed
+     * contents. The stored bytes are either held in memory or spooled to a file, which is only read once the entry is
+     * written.
+     */
+    static final class CompressedData {
+
+        final int method;
+
+        final int crc;
+
+        final long size;
+
+        /**
+         * Holds the stored bytes unless {@link #file} does, in which case it is null.
+         */
+        final byte[] bytes;
+
+        /**
+         * The file holding the stored bytes, or null if {@link #bytes} does. Whoever got the data deletes it once it
+         * has been written or is no longer needed.
+         */
+        final Path file;
+
+        /**
+         * The number of leading bytes of {@link #bytes} or {@link #file} which are stored.
+         */
+        final long length;
+
+        CompressedData(final int method, final int crc, final long size, final byte[] bytes, final int length) {
+            this(method, crc, size, bytes, null, length);
+        }
+
+        CompressedData(final int method, final int crc, final long size, final Path file, final long length) {
+            this(method, crc, size, null, file, length);
+        }
+
+        private CompressedData(final int method, final int crc, final long size, final byte[] bytes, final Path file, final long length) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.bytes = bytes;
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    ZipArchiveWriter(final Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.written = new ArrayList<>();
+        this.headerBuffer = ByteBuffer.allocate(1 << 17).order(ByteOrder.LITTLE_ENDIAN);
+        this.position = 0;
+    }
+
+    private static boolean requiresZip64(final ZipArchiveEntry entry) {
+        return entry.size >= ZipArchiveReader.ZIP64_MAGIC || entry.compressedSize >= ZipArchiveReader.ZIP64_MAGIC
+                || entry.localHeaderOffset >= ZipArchiveReader.ZIP64_MAGIC;
+    }
+
+    private static int getFlags(final String name, final int flags) {
+        final int withoutDescriptor = flags & ~FLAG_DATA_DESCRIPTOR;
+        for (int i = 0; i < name.length(); ++i) {
+            if (name.charAt(i) >= 0x80) {
+                return withoutDescriptor | FLAG_UTF8;
+            }
+        }
+        return withoutDescriptor;
+    }
+
+    private void flushHeaderBuffer() throws IOException {
+        ((Buffer) headerBuffer).flip();
+        while (headerBuffer.hasRemaining()) {
+            position += channel.write(headerBuffer);
+        }
+        ((Buffer) headerBuffer).clear();
+    }
+
+    private void writeLocalHeader(final ZipArchiveEntry entry) throws IOException {
+        final byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+        final boolean zip64Sizes = entry.size >= ZipArchiveReader.ZIP64_MAGIC || entry.compressedSize >= ZipArchiveReader.ZIP64_MAGIC;
+        headerBuffer.putInt(ZipArchiveReader.LOCAL_HEADER_SIGNATURE);
+        headerBuffer.putShort((short) (zip64Sizes ? VERSION_ZIP64 : VERSION_DEFAULT));
+        headerBuffer.putShort((short) entry.flags);
+        headerBuffer.putShort((short) entry.method);
+        headerBuffer.putShort((short) entry.dosDateTime);
+        headerBuffer.putShort((short) (entry.dosDateTime >>> 16));
+        headerBuffer.putInt(entry.crc);
+        headerBuffer.putInt((int) (zip64Sizes ? ZipArchiveReader.ZIP64_MAGIC : entry.compressedSize));
+        headerBuffer.putInt((int) (zip64Sizes ? ZipArchiveReader.ZIP64_MAGIC : entry.size));
+        headerBuffer.putShort((short) nameBytes.length);
+        headerBuffer.putShort((short) (entry.extra.length + (zip64Sizes ? 20 : 0)));
+        headerBuffer.put(nameBytes);
+        if (zip64Sizes) {
+            headerBuffer.putShort((short) ZipArchiveReader.ZIP64_EXTRA_ID);
+            headerBuffer.putShort((short) 16);
+            headerBuffer.putLong(entry.size);
+            headerBuffer.putLong(entry.compressedSize);
+        }
+        headerBuffer.put(entry.extra);
+        flushHeaderBuffer();
+    }
+
+    /**
+     * Copies {@code entry} from {@code source} without decompressing it.
+     */
+    void writeRawEntry(final ZipArchiveReader source, final ZipArchiveEntry entry) throws IOException {
+        final ZipArchiveEntry copy = new ZipArchiveEntry(entry.name, entry.versionMadeBy, getFlags(entry.name, entry.flags),
+                entry.method, entry.dosDateTime, entry.crc, entry.compressedSize, entry.size, position,
+                entry.extra, entry.comment, entry.internalAttributes, entry.externalAttributes);
+        writeLocalHeader(copy);
+        source.transferRawData(entry, channel);
+        position = channel.position();
+        written.add(copy);
+    }
+
+    /**
+     * Compresses {@code data} for {@link #writeEntry}. This does not touch the writer, so that entries can be compressed
+     * concurrently on the threads which produced them, each of which keeps a deflater to reuse, and then be written in
+     * order by the single thread writing the archive.
+     */
+    static CompressedData compress(final byte[] data, final ZipCompression compression) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if (compression.method == ZipArchiveEntry.STORED) {
+            return new CompressedData(ZipArchiveEntry.STORED, (int) crc.getValue(), data.length, data, data.length);
+        }
+
+        final Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(compression.level);
+        deflater.setInput(data, 0, data.length);
+        deflater.finish();
+        byte[] compressed = new byte[Math.max(64, data.length + (data.length >>> 4) + 64)];
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        return new CompressedData(ZipArchiveEntry.DEFLATED, (int) crc.getValue(), data.length, compressed, compressedLength);
+    }
+
+    /**
+     * Compresses the contents of {@code file} like {@link #compress(byte[], ZipCompression)}, without ever holding them
+     * in memory. The result takes over {@code file}: stored contents are written from it as they are, and deflated ones
+     * are streamed into a new temporary file, after which it is deleted. If compressing fails, {@code file} is left to
+     * the caller.
+     */
+    static CompressedData compress(final Path file, final ZipCompression compression) throws IOException {
+        if (compression.method == ZipArchiveEntry.STORED) {
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[1 << 16];
+            long size = 0;
+            try (final InputStream is = Files.newInputStream(file)) {
+                int nRead;
+                while ((nRead = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, nRead);
+                    size += nRead;
+                }
+            }
+            return new CompressedData(ZipArchiveEntry.STORED, (int) crc.getValue(), size, file, size);
+        }
+
+        final CompressedData data;
+        try (final InputStream is = Files.newInputStream(file)) {
+            data = compress(is, compression);
+        }
+        try {
+            Files.delete(file);
+        } catch (final IOException e) {
+            Files.deleteIfExists(data.file);
+            throw e;
+        }
+        return data;
+    }
+
+    /**
+     * Compresses the rest of {@code is} like {@link #compress(byte[], ZipCompression)}, streaming it into a new
+     * temporary file which the result holds, so that contents of any size are never held in memory. The temporary
+     * file is deleted again if compressing fails.
+     */
+    static CompressedData compress(final InputStream is, final ZipCompression compression) throws IOException {
+        final Path target = Files.createTempFile("snakepit-", ".compressed");
+        try (final OutputStream os = Files.newOutputStream(target)) {
+            if (compression.method == ZipArchiveEntry.STORED) {
+                final CRC32 crc = new CRC32();
+                final byte[] buffer = new byte[1 << 16];
+                long size = 0;
+                int nRead;
+                while ((nRead = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, nRead);
+                    os.write(buffer, 0, nRead);
+                    size += nRead;
+                }
+                return new CompressedData(ZipArchiveEntry.STORED, (int) crc.getValue(), size, target, size);
+            }
+
+            final Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setLevel(compression.level);
+            final CRC32 crc = new CRC32();
+            final byte[] input = new byte[1 << 16];
+            final byte[] output = new byte[1 << 16];
+            long inputLength = 0;
+            int nRead;
+            while ((nRead = is.read(input)) != -1) {
+                crc.update(input, 0, nRead);
+                inputLength += nRead;
+                deflater.setInput(input, 0, nRead);
+                while (!deflater.needsInput()) {
+                    os.write(output, 0, deflater.deflate(output));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                os.write(output, 0, deflater.deflate(output));
+            }
+            return new CompressedData(ZipArchiveEntry.DEFLATED, (int) crc.getValue(), inputLength, target, deflater.getBytesWritten());
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes {@code data} as a new entry, stamped with {@code dosDateTime}.
+     */
+    void writeEntry(final String name, final CompressedData data, final int dosDateTime) throws IOException {
+        writeEntry(name, data, dosDateTime, VERSION_DEFAULT, new byte[0], new byte[0], 0, 0);
+    }
+
+    /**
+     * Writes {@code data} as the new contents of {@code original}, keeping its name, timestamp, attributes and comment.
+     */
+    void writeEntry(final ZipArchiveEntry original, final CompressedData data) throws IOException {
+        writeEntry(original.name, data, original.dosDateTime, original.versionMadeBy, original.extra, original.comment,
+                original.internalAttributes, original.externalAttributes);
+    }
+
+    private void writeEntry(final String name, final CompressedData data, final int dosDateTime, final int versionMadeBy,
+                            final byte[] extra, final byte[] comment, final int internalAttributes, final int externalAttributes) throws IOException {
+        final ZipArchiveEntry entry = new ZipArchiveEntry(name, versionMadeBy, getFlags(name, 0), data.method,
+                dosDateTime, data.crc, data.length, data.size, position,
+                extra, comment, internalAttributes, externalAttributes);
+        writeLocalHeader(entry);
+        if (data.file != null) {
+            try (final FileChannel source = FileChannel.open(data.file, StandardOpenOption.READ)) {
+                long transferred = 0;
+                while (transferred < data.length) {
+                    final long n = source.transferTo(transferred, data.length - transferred, channel);
+                    if (n <= 0) {
+                        throw new IOException("'" + data.file + "' is shorter than the " + data.length + " bytes to be stored");
+                    }
+                    transferred += n;
+                }
+            }
+            position = channel.position();
+        } else {
+            final ByteBuffer buffer = ByteBuffer.wrap(data.bytes, 0, (int) data.length);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer);
+            }
+        }
+        written.add(entry);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        final long centralDirectoryOffset = position;
+        for (final ZipArchiveEntry entry : written) {
+            final byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+            final boolean zip64 = requiresZip64(entry);
+            final int zip64ExtraLength = zip64
+                    ? 4 + (entry.size >= ZipArchiveReader.ZIP64_MAGIC ? 8 : 0) + (entry.compressedSize >= ZipArchiveReader.ZIP64_MAGIC ? 8 : 0)
+                        + (entry.localHeaderOffset >= ZipArchiveReader.ZIP64_MAGIC ? 8 : 0)
+                    : 0;
+            if (headerBuffer.remaining() < 46 + nameBytes.length + zip64ExtraLength + entry.extra.length + entry.comment.length) {
+                flushHeaderBuffer();
+            }
+            headerBuffer.putInt(ZipArchiveReader.CENTRAL_HEADER_SIGNATURE);
+            headerBuffer.putShort((short) entry.versionMadeBy);
+            headerBuffer.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+            headerBuffer.putShort((short) entry.flags);
+            headerBuffer.putShort((short) entry.method);
+            headerBuffer.putShort((short) entry.dosDateTime);
+            headerBuffer.putShort((short) (entry.dosDateTime >>> 16));
+            headerBuffer.putInt(entry.crc);
+            headerBuffer.putInt((int) Math.min(entry.compressedSize, ZipArchiveReader.ZIP64_MAGIC));
+            headerBuffer.putInt((int) Math.min(entry.size, ZipArchiveReader.ZIP64_MAGIC));
+            headerBuffer.putShort((short) nameBytes.length);
+            headerBuffer.putShort((short) (zip64ExtraLength + entry.extra.length));
+            headerBuffer.putShort((short) entry.comment.length);
+            headerBuffer.putShort((short) 0);
+            headerBuffer.putShort((short) entry.internalAttributes);
+            headerBuffer.putInt(entry.externalAttributes);
+            headerBuffer.putInt((int) Math.min(entry.localHeaderOffset, ZipArchiveReader.ZIP64_MAGIC));
+            headerBuffer.put(nameBytes);
+            if (zip64) {
+                headerBuffer.putShort((short) ZipArchiveReader.ZIP64_EXTRA_ID);
+                headerBuffer.putShort((short) (zip64ExtraLength - 4));
+                if (entry.size >= ZipArchiveReader.ZIP64_MAGIC) {
+                    headerBuffer.putLong(entry.size);
+                }
+                if (entry.compressedSize >= ZipArchiveReader.ZIP64_MAGIC) {
+                    headerBuffer.putLong(entry.compressedSize);
+                }
+                if (entry.localHeaderOffset >= ZipArchiveReader.ZIP64_MAGIC) {
+                    headerBuffer.putLong(entry.localHeaderOffset);
+                }
+            }
+            headerBuffer.put(entry.extra);
+            headerBuffer.put(entry.comment);
+        }
+        flushHeaderBuffer();
+
+        final long centralDirectorySize = position - centralDirectoryOffset;
+        final boolean zip64 = written.size() >= 0xFFFF || centralDirectoryOffset >= ZipArchiveReader.ZIP64_MAGIC
+                || centralDirectorySize >= ZipArchiveReader.ZIP64_MAGIC;
+        if (zip64) {
+            final long zip64EocdOffset = position;
+            headerBuffer.putInt(ZipArchiveReader.ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            headerBuffer.putLong(44);
+            headerBuffer.putShort((short) VERSION_ZIP64);
+            headerBuffer.putShort((short) VERSION_ZIP64);
+            headerBuffer.putInt(0);
+            headerBuffer.putInt(0);
+            headerBuffer.putLong(written.size());
+            headerBuffer.putLong(written.size());
+            headerBuffer.putLong(centralDirectorySize);
+            headerBuffer.putLong(centralDirectoryOffset);
+
+            headerBuffer.putInt(ZipArchiveReader.ZIP64_LOCATOR_SIGNATURE);
+            headerBuffer.putInt(0);
+            headerBuffer.putLong(zip64EocdOffset);
+            headerBuffer.putInt(1);
+        }
+        headerBuffer.putInt(ZipArchiveReader.END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        headerBuffer.putShort((short) 0);
+        headerBuffer.putShort((short) 0);
+        headerBuffer.putShort((short) Math.min(written.size(), 0xFFFF));
+        headerBuffer.putShort((short) Math.min(written.size(), 0xFFFF));
+        headerBuffer.putInt((int) Math.min(centralDirectorySize, ZipArchiveReader.ZIP64_MAGIC));
+        headerBuffer.putInt((int) Math.min(centralDirectoryOffset, ZipArchiveReader.ZIP64_MAGIC));
+        headerBuffer.putShort((short) 0);
+        flushHeaderBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeCentralDirectory();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.foundry27.snakepit;
+
+import java.util.zip.Deflater;
+
+/**
+ * How an entry given new contents is compressed by {@link ZipArchiveWriter#compress}: deflated at a level from 1 to 9
+ * or at the default level, or stored uncompressed.
+ *
+ * @author Foundry
+ */
+final class ZipCompression {
+
+    static final ZipCompression DEFAULT = new ZipCompression(ZipArchiveEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION);
+
+    static final ZipCompression STORED = new ZipCompression(ZipArchiveEntry.STORED, Deflater.NO_COMPRESSION);
+
+    final int method;
+
+    final int level;
+
+    private ZipCompression(final int method, final int level) {
+        this.method = method;
+        this.level = level;
+    }
+
+    /**
+     * Parses {@code stored}, {@code default} or a level from 0 to 9, where 0 stores the entry like {@code zip -0} does,
+     * rather than wrapping it in deflate blocks without compressing it.
+     */
+    static ZipCompression parse(final String value) {
+        if ("stored".equals(value)) {
+            return STORED;
+        } else if ("default".equals(value)) {
+            return DEFAULT;
+        }
+        final int level;
+        try {
+            level = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalStateException("'" + value + "' is not a valid compression level", e);
+        }
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalStateException("'" + value + "' is not a valid compression level");
+        }
+        return level == Deflater.NO_COMPRESSION ? STORED : new ZipCompression(ZipArchiveEntry.DEFLATED, level);
+    }
+}
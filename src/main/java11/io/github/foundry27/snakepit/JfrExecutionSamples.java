@@ -0,0 +1,80 @@
+package io.github.foundry27.snakepit;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Reads the methods which execution samples of a JFR recording found hot, for {@link RewritePolicyGenerator}.
+ * <p>
+ * Like {@link TransformMetricsEvents}, this refers to {@code jdk.jfr}, is compiled for Java 11 into the multi-release
+ * part of the jar, and is only loaded after {@link TransformMetricsEvents#isAvailable} said so.
+ *
+ * @author Foundry
+ */
+final class JfrExecutionSamples {
+
+    private static final String EXECUTION_SAMPLE_EVENT = "jdk.ExecutionSample";
+
+    /*
+     * the invokedynamic call sites a sample is spending time on are mostly in the methods at the top of its stack, but
+     * not always the topmost, which is as often in the library the call site calls into
+     */
+    private static final int TOP_FRAMES = 4;
+
+    private JfrExecutionSamples() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the methods in the top frames of at least {@code minSamples} execution samples, as the binary name of
+     * their class followed by {@code .} and their name.
+     */
+    static TreeSet<String> getHotMethods(final Path recording, final long minSamples) throws IOException {
+        final Map<String, Long> samples = new HashMap<>();
+        final Set<String> sampleMethods = new HashSet<>();
+        try (final RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                final RecordedEvent event = file.readEvent();
+                final RecordedStackTrace stackTrace = event.getStackTrace();
+                if (!EXECUTION_SAMPLE_EVENT.equals(event.getEventType().getName()) || stackTrace == null) {
+                    continue;
+                }
+                final List<RecordedFrame> frames = stackTrace.getFrames();
+                sampleMethods.clear();
+                for (int i = 0; i < frames.size() && i < TOP_FRAMES; ++i) {
+                    final RecordedMethod method = frames.get(i).getMethod();
+                    final String className = method.getType().getName();
+                    /*
+                     * hidden classes, such as those of lambdas and lambda forms spun at run time, cannot be named by a
+                     * policy, and are recorded with a / or + before their address
+                     */
+                    if (frames.get(i).isJavaFrame() && className.indexOf('/') < 0 && className.indexOf('+') < 0) {
+                        sampleMethods.add(className + '.' + method.getName());
+                    }
+                }
+                for (final String method : sampleMethods) {
+                    samples.merge(method, 1L, Long::sum);
+                }
+            }
+        }
+        final TreeSet<String> hot = new TreeSet<>();
+        samples.forEach((method, count) -> {
+            if (count >= minSamples) {
+                hot.add(method);
+            }
+        });
+        return hot;
+    }
+}
@@ -0,0 +1,153 @@
+package io.github.foundry27.snakepit;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.util.Map;
+
+/**
+ * Commits {@link TransformMetrics} as JFR events, which are recorded when the tool runs with a flight recording, for
+ * example with {@code -XX:StartFlightRecording}.
+ * <p>
+ * Together with {@link JfrExecutionSamples}, this is the only class referring to {@code jdk.jfr}. Both are compiled for
+ * Java 11 into the multi-release part of the jar, with stand-ins for Java 8 in the base part. On a runtime without the
+ * {@code jdk.jfr} module, {@link #isAvailable} says so before any event is loaded.
+ *
+ * @author Foundry
+ */
+final class TransformMetricsEvents {
+
+    private static final String CATEGORY = "Snakepit";
+
+    private TransformMetricsEvents() {
+        throw new UnsupportedOperationException();
+    }
+
+    /*
+     * checked by name, so that this does not depend on the events having been loaded
+     */
+    static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, TransformMetricsEvents.class.getClassLoader());
+            return true;
+        } catch (final ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Name("io.github.foundry27.snakepit.TransformRun")
+    @Label("Transform Run")
+    @Category(CATEGORY)
+    static final class TransformRunEvent extends Event {
+
+        @Label("Input")
+        String input;
+
+        @Label("Output")
+        String output;
+
+        @Label("Wall Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long wallTime;
+
+        @Label("Classes")
+        long classes;
+
+        @Label("Classes With Invokedynamic")
+        long classesWithInvokeDynamic;
+
+        @Label("Rewritten Classes")
+        long rewrittenClasses;
+
+        @Label("Generated Classes")
+        long generatedClasses;
+
+        @Label("Input Archive Size")
+        @DataAmount
+        long inputArchiveBytes;
+
+        @Label("Output Archive Size")
+        @DataAmount
+        long outputArchiveBytes;
+
+        @Label("Class Bytes Read")
+        @DataAmount
+        long classBytesRead;
+
+        @Label("Class Bytes Written")
+        @DataAmount
+        long classBytesWritten;
+    }
+
+    @Name("io.github.foundry27.snakepit.TransformPhase")
+    @Label("Transform Phase")
+    @Category(CATEGORY)
+    static final class TransformPhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Time Summed Over Threads")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("io.github.foundry27.snakepit.BootstrapConstants")
+    @Label("Invokedynamic Constants By Bootstrap Owner")
+    @Category(CATEGORY)
+    static final class BootstrapConstantsEvent extends Event {
+
+        @Label("Bootstrap Method Owner")
+        String bootstrapOwner;
+
+        @Label("Invokedynamic Constants")
+        long constants;
+    }
+
+    /*
+     * whether a running recording takes the counts of invokedynamic constants, which are only collected then
+     */
+    static boolean isRecordingBootstrapConstants() {
+        return new BootstrapConstantsEvent().isEnabled();
+    }
+
+    static void commit(final TransformMetrics metrics, final String input, final String output) {
+        final TransformRunEvent run = new TransformRunEvent();
+        if (run.shouldCommit()) {
+            run.input = input;
+            run.output = output;
+            run.wallTime = metrics.getWallNanos();
+            run.classes = metrics.getClassCount();
+            run.classesWithInvokeDynamic = metrics.getClassWithInvokeDynamicCount();
+            run.rewrittenClasses = metrics.getRewrittenClassCount();
+            run.generatedClasses = metrics.getGeneratedClassCount();
+            run.inputArchiveBytes = metrics.getInputArchiveBytes();
+            run.outputArchiveBytes = metrics.getOutputArchiveBytes();
+            run.classBytesRead = metrics.getClassBytesRead();
+            run.classBytesWritten = metrics.getClassBytesWritten();
+            run.commit();
+        }
+
+        for (final TransformMetrics.Phase phase : TransformMetrics.Phase.values()) {
+            final TransformPhaseEvent event = new TransformPhaseEvent();
+            if (event.shouldCommit()) {
+                event.phase = phase.getKey();
+                event.time = metrics.getPhaseNanos(phase);
+                event.commit();
+            }
+        }
+
+        for (final Map.Entry<String, Long> constants : metrics.getConstantsByBootstrapOwner().entrySet()) {
+            final BootstrapConstantsEvent event = new BootstrapConstantsEvent();
+            if (event.shouldCommit()) {
+                event.bootstrapOwner = constants.getKey();
+                event.constants = constants.getValue();
+                event.commit();
+            }
+        }
+    }
+}